@@ -5,8 +5,45 @@ plugins {
 group = "org.csc.java"
 version = "1.0-SNAPSHOT"
 
+// JMH benchmarks live in src/jmh and see the store's package-private classes
+val jmh: SourceSet by sourceSets.creating {
+    compileClasspath += sourceSets.main.get().output
+    runtimeClasspath += sourceSets.main.get().output
+}
+
 dependencies {
     testImplementation(libs.junit.jupyter.api)
     testImplementation(libs.assertj.core)
     testRuntimeOnly(libs.junit.jupyter.engine)
+
+    "jmhImplementation"(libs.jmh.core)
+    "jmhAnnotationProcessor"(libs.jmh.generator.annprocess)
+}
+
+tasks {
+    // benchmarks are not run by check, but they must keep compiling
+    check {
+        dependsOn(jmh.classesTaskName)
+    }
+
+    // ./gradlew jmh -Pjmh.include=ValueOperations -Pjmh.args="-p valueSize=16"
+    register<JavaExec>("jmh") {
+        group = "benchmark"
+        description = "Runs the JMH benchmarks and writes the results as JSON"
+        classpath = jmh.runtimeClasspath
+        mainClass.set("org.openjdk.jmh.Main")
+        val results = layout.buildDirectory.file("reports/jmh/results.json")
+        outputs.file(results)
+        outputs.upToDateWhen { false }
+        doFirst {
+            results.get().asFile.parentFile.mkdirs()
+        }
+        argumentProviders.add(CommandLineArgumentProvider {
+            val include = project.findProperty("jmh.include")?.toString()
+            val extra = project.findProperty("jmh.args")?.toString()
+            listOfNotNull(include) +
+                listOf("-rf", "json", "-rff", results.get().asFile.absolutePath) +
+                (extra?.split(" ")?.filter { it.isNotBlank() } ?: emptyList())
+        })
+    }
 }
@@ -0,0 +1,60 @@
+package org.csc.java.spring2023;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Общие части бенчмарков. Рабочие директории создаются во временной директории, путь к которой
+ * можно задать свойством {@code kv.bench.dir}, чтобы мерить нужный диск, а не tmpfs.
+ */
+final class BenchmarkStores {
+
+  private static final int FILL_BATCH_SIZE = 1024;
+
+  private BenchmarkStores() {
+  }
+
+  /**
+   * Ключ с номером index, одинаковый во всех бенчмарках.
+   */
+  static byte[] key(int index) {
+    return ("key" + index).getBytes();
+  }
+
+  /**
+   * Записывает по ключам с номерами [0, count) одно и то же значение наборами изменений.
+   */
+  static void fill(KeyValueStore store, int count, byte[] value) throws IOException {
+    WriteBatch batch = new WriteBatch();
+    for (int i = 0; i < count; i++) {
+      batch.put(key(i), value);
+      if (batch.size() == FILL_BATCH_SIZE) {
+        store.write(batch);
+        batch.clear();
+      }
+    }
+    store.write(batch);
+  }
+
+  static Path createDirectory(String prefix) throws IOException {
+    String root = System.getProperty("kv.bench.dir");
+    if (root == null) {
+      return Files.createTempDirectory(prefix);
+    }
+    return Files.createTempDirectory(Files.createDirectories(Path.of(root)), prefix);
+  }
+
+  static void deleteDirectory(Path directory) throws IOException {
+    if (directory == null || !Files.exists(directory)) {
+      return;
+    }
+    try (Stream<Path> paths = Files.walk(directory)) {
+      for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+        Files.delete(path);
+      }
+    }
+  }
+}
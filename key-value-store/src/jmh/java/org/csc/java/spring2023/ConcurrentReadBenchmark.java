@@ -0,0 +1,98 @@
+package org.csc.java.spring2023;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Чтения случайных ключей из 1, 4 и 8 потоков над одним хранилищем, без записей. Пропускная
+ * способность должна расти с числом потоков: чтения не должны упираться в общие блокировки кеша
+ * открытых файлов и кеша значений. Маленький maxOpenFiles заставляет чтения еще и постоянно
+ * открывать и вытеснять файлы.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ConcurrentReadBenchmark {
+
+  private static final int KEYS = 100_000;
+  private static final int VALUE_SIZE = 256;
+
+  @Param({"0", "67108864"})
+  public long valueCacheBytes;
+
+  @Param({"4", "256"})
+  public int maxOpenFiles;
+
+  private Path workDir;
+  private KeyValueStore store;
+  private byte[][] keys;
+
+  @State(Scope.Thread)
+  public static class ThreadRandom {
+
+    private final SplittableRandom random = new SplittableRandom();
+  }
+
+  @Setup(Level.Trial)
+  public void open() throws IOException {
+    workDir = BenchmarkStores.createDirectory("kv-concurrent-read");
+    // small value files, so that reads are spread over many of them
+    store = KeyValueStoreFactory.create(workDir, 1 << 20, KeyValueStoreOptions.defaults()
+        .valueCacheBytes(valueCacheBytes)
+        .maxOpenFiles(maxOpenFiles));
+    byte[] value = new byte[VALUE_SIZE];
+    new SplittableRandom(42).nextBytes(value);
+    BenchmarkStores.fill(store, KEYS, value);
+    keys = new byte[KEYS][];
+    for (int i = 0; i < KEYS; i++) {
+      keys[i] = BenchmarkStores.key(i);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void close() throws IOException {
+    store.close();
+    BenchmarkStores.deleteDirectory(workDir);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public byte[] read1(ThreadRandom thread) throws IOException {
+    return read(thread);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public byte[] read4(ThreadRandom thread) throws IOException {
+    return read(thread);
+  }
+
+  @Benchmark
+  @Threads(8)
+  public byte[] read8(ThreadRandom thread) throws IOException {
+    return read(thread);
+  }
+
+  private byte[] read(ThreadRandom thread) throws IOException {
+    return store.loadValue(keys[thread.random.nextInt(KEYS)]);
+  }
+}
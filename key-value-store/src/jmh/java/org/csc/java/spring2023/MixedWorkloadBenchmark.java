@@ -0,0 +1,86 @@
+package org.csc.java.spring2023;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Смесь чтений и записей из нескольких потоков над одним хранилищем. Каждая операция с
+ * вероятностью readPercent читает случайный ключ, а иначе перезаписывает его.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Threads(4)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MixedWorkloadBenchmark {
+
+  private static final int KEYS = 100_000;
+
+  @Param({"0", "50", "90", "99"})
+  public int readPercent;
+
+  @Param({"128", "4096"})
+  public int valueSize;
+
+  @Param({"IN_MEMORY", "LSM_TREE"})
+  public KeyValueStoreOptions.IndexType indexType;
+
+  private Path workDir;
+  private KeyValueStore store;
+  private byte[][] keys;
+  private byte[] value;
+
+  @State(Scope.Thread)
+  public static class ThreadRandom {
+
+    private final SplittableRandom random = new SplittableRandom();
+  }
+
+  @Setup(Level.Trial)
+  public void open() throws IOException {
+    workDir = BenchmarkStores.createDirectory("kv-mixed");
+    store = KeyValueStoreFactory.create(workDir, 1 << 24,
+        KeyValueStoreOptions.defaults().indexType(indexType));
+    value = new byte[valueSize];
+    new SplittableRandom(42).nextBytes(value);
+    BenchmarkStores.fill(store, KEYS, value);
+    keys = new byte[KEYS][];
+    for (int i = 0; i < KEYS; i++) {
+      keys[i] = BenchmarkStores.key(i);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void close() throws IOException {
+    store.close();
+    BenchmarkStores.deleteDirectory(workDir);
+  }
+
+  @Benchmark
+  public byte[] readOrWrite(ThreadRandom thread) throws IOException {
+    byte[] key = keys[thread.random.nextInt(KEYS)];
+    if (thread.random.nextInt(100) < readPercent) {
+      return store.loadValue(key);
+    }
+    store.upsert(key, value);
+    return null;
+  }
+}
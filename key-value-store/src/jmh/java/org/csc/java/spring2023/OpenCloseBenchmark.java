@@ -0,0 +1,67 @@
+package org.csc.java.spring2023;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Открытие и закрытие хранилища с большим числом ключей. Хранилище заполняется один раз на
+ * прогон, а каждый замер открывает его заново, читает один ключ и закрывает. Страничный кеш ОС
+ * между замерами не сбрасывается, так что «холодным» здесь бывает только процесс, а не диск.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+public class OpenCloseBenchmark {
+
+  private static final int VALUE_FILE_SIZE = 1 << 26;
+
+  @Param({"1000000", "10000000"})
+  public int keys;
+
+  @Param({"IN_MEMORY", "MAPPED_HASH_TABLE", "LSM_TREE"})
+  public KeyValueStoreOptions.IndexType indexType;
+
+  private Path workDir;
+
+  @Setup(Level.Trial)
+  public void fill() throws IOException {
+    workDir = BenchmarkStores.createDirectory("kv-open");
+    try (KeyValueStore store = open()) {
+      BenchmarkStores.fill(store, keys, new byte[8]);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void delete() throws IOException {
+    BenchmarkStores.deleteDirectory(workDir);
+  }
+
+  @Benchmark
+  public boolean openAndClose() throws IOException {
+    try (KeyValueStore store = open()) {
+      return store.contains(BenchmarkStores.key(keys - 1));
+    }
+  }
+
+  private KeyValueStore open() throws IOException {
+    return KeyValueStoreFactory.create(workDir, VALUE_FILE_SIZE,
+        KeyValueStoreOptions.defaults().indexType(indexType));
+  }
+}
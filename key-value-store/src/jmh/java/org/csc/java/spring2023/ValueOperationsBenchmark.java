@@ -0,0 +1,117 @@
+package org.csc.java.spring2023;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Запись, чтение и удаление одного значения в зависимости от размера значения и размера файлов
+ * со значениями. Ключи берутся из набора, в котором лежит около {@value #WORKING_SET_BYTES} байт
+ * значений, так что записи перезаписывают уже существующие ключи и место переиспользуется, а не
+ * растет от итерации к итерации. Удаление меряется отдельно, пачками по {@value #REMOVE_BATCH}
+ * ключей.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ValueOperationsBenchmark {
+
+  private static final long WORKING_SET_BYTES = 64L << 20;
+  private static final int MAX_KEYS = 4096;
+  private static final int REMOVE_BATCH = 64;
+
+  @Param({"16", "1024", "65536", "1048576", "16777216"})
+  public int valueSize;
+
+  @Param({"65536", "1048576", "16777216"})
+  public int valueFileSize;
+
+  private Path workDir;
+  private KeyValueStore store;
+  private byte[][] keys;
+  private byte[] value;
+  private final SplittableRandom random = new SplittableRandom(42);
+
+  /**
+   * Пачка ключей, которые {@link #remove} удаляет по очереди. Перед каждой итерацией все они
+   * записываются заново, так что замер не задевает ни одна запись, а каждый вызов удаляет
+   * существующий ключ. Ключи пачки не входят в рабочий набор, поэтому upsert и load их не видят.
+   */
+  @State(Scope.Thread)
+  public static class RemovedKeys {
+
+    private final byte[][] keys = new byte[REMOVE_BATCH][];
+    private int next;
+
+    @Setup(Level.Iteration)
+    public void populate(ValueOperationsBenchmark benchmark) throws IOException {
+      for (int i = 0; i < REMOVE_BATCH; i++) {
+        keys[i] = BenchmarkStores.key(MAX_KEYS + i);
+        benchmark.store.upsert(keys[i], benchmark.value);
+      }
+      next = 0;
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void open() throws IOException {
+    workDir = BenchmarkStores.createDirectory("kv-values");
+    store = KeyValueStoreFactory.create(workDir, valueFileSize);
+    int keyCount = (int) Math.max(1, Math.min(MAX_KEYS, WORKING_SET_BYTES / valueSize));
+    keys = new byte[keyCount][];
+    value = new byte[valueSize];
+    random.nextBytes(value);
+    for (int i = 0; i < keyCount; i++) {
+      keys[i] = BenchmarkStores.key(i);
+      store.upsert(keys[i], value);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void close() throws IOException {
+    store.close();
+    BenchmarkStores.deleteDirectory(workDir);
+  }
+
+  @Benchmark
+  public void upsert() throws IOException {
+    store.upsert(nextKey(), value);
+  }
+
+  @Benchmark
+  public byte[] load() throws IOException {
+    return store.loadValue(nextKey());
+  }
+
+  /**
+   * Одна итерация удаляет всю пачку, по ключу за вызов, и время итерации отчитывается целиком.
+   */
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @Warmup(iterations = 3, batchSize = REMOVE_BATCH)
+  @Measurement(iterations = 5, batchSize = REMOVE_BATCH)
+  public boolean remove(RemovedKeys batch) throws IOException {
+    return store.remove(batch.keys[batch.next++]);
+  }
+
+  private byte[] nextKey() {
+    return keys[random.nextInt(keys.length)];
+  }
+}
@@ -0,0 +1,32 @@
+package org.csc.java.spring2023;
+
+import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Неблокирующий интерфейс хранилища. Операции выполняются на собственных потоках ввода-вывода, а
+ * результат приходит через {@link CompletableFuture}, который завершается на одном из этих
+ * потоков. Операции с одним ключом выполняются в том порядке, в котором были поданы.
+ * <p>
+ * Массивы не копируются, поэтому их нельзя менять, пока операция не завершилась. Если очередь
+ * операций переполнена, future сразу завершается с
+ * {@link java.util.concurrent.RejectedExecutionException}, после закрытия -- с
+ * {@link IllegalStateException}
+ */
+public interface AsyncKeyValueStore extends Closeable {
+
+  /**
+   * Читает значение целиком, null, если такого ключа нет
+   */
+  CompletableFuture<byte[]> getAsync(byte[] key);
+
+  /**
+   * Записывает новое значение по ключу
+   */
+  CompletableFuture<Void> upsertAsync(byte[] key, byte[] value);
+
+  /**
+   * Удаляет значение, true, если оно существовало
+   */
+  CompletableFuture<Boolean> removeAsync(byte[] key);
+}
@@ -0,0 +1,274 @@
+package org.csc.java.spring2023;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Асинхронное хранилище поверх блокирующего. Операции раскладываются по полосам по хешу ключа, у
+ * каждой полосы своя ограниченная очередь и свой поток, так что операции одного ключа
+ * упорядочены. Поток полосы забирает из очереди все накопившиеся операции и объединяет подряд
+ * идущие чтения в один {@link KeyValueStore#loadValues}, который читает файлы по возрастанию
+ * смещений, склеивая соседние участки, а подряд идущие изменения -- в один {@link WriteBatch}
+ * размером не больше {@value #MAX_COALESCED_BYTES} байт значений.
+ */
+final class AsyncKeyValueStoreImpl implements AsyncKeyValueStore {
+
+  private static final int MAX_COALESCED_OPERATIONS = 256;
+  // a larger value still goes alone in its own batch
+  private static final long MAX_COALESCED_BYTES = 4L << 20;
+  // tells a lane to stop once everything queued before it is done
+  private static final Operation STOP = new Get(new byte[0], new CompletableFuture<>());
+
+  private final KeyValueStore store;
+  private final Lane[] lanes;
+  // submissions take the read lock, so no operation is queued after the lanes are stopped
+  private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+  private boolean closed;
+
+  private sealed interface Operation {
+
+    byte[] key();
+
+    CompletableFuture<?> future();
+  }
+
+  private record Get(byte[] key, CompletableFuture<byte[]> future) implements Operation {
+
+  }
+
+  private record Upsert(byte[] key, byte[] value, CompletableFuture<Void> future)
+      implements Operation {
+
+  }
+
+  private record Remove(byte[] key, CompletableFuture<Boolean> future) implements Operation {
+
+  }
+
+  AsyncKeyValueStoreImpl(KeyValueStore store, int ioThreads, int queueCapacity) {
+    this.store = store;
+    this.lanes = new Lane[ioThreads];
+    for (int i = 0; i < ioThreads; i++) {
+      lanes[i] = new Lane(queueCapacity, "async-store-io-" + i);
+    }
+  }
+
+  @Override
+  public CompletableFuture<byte[]> getAsync(byte[] key) {
+    Objects.requireNonNull(key, "Key can't be null");
+    return submit(new Get(key, new CompletableFuture<>()));
+  }
+
+  @Override
+  public CompletableFuture<Void> upsertAsync(byte[] key, byte[] value) {
+    Objects.requireNonNull(key, "Key can't be null");
+    Objects.requireNonNull(value, "Value can't be null");
+    return submit(new Upsert(key, value, new CompletableFuture<>()));
+  }
+
+  @Override
+  public CompletableFuture<Boolean> removeAsync(byte[] key) {
+    Objects.requireNonNull(key, "Key can't be null");
+    return submit(new Remove(key, new CompletableFuture<>()));
+  }
+
+  @SuppressWarnings("unchecked")
+  private <T> CompletableFuture<T> submit(Operation operation) {
+    CompletableFuture<T> future = (CompletableFuture<T>) operation.future();
+    closeLock.readLock().lock();
+    try {
+      if (closed) {
+        future.completeExceptionally(new IllegalStateException("Storage is closed"));
+      } else if (!laneFor(operation.key()).queue.offer(operation)) {
+        future.completeExceptionally(
+            new RejectedExecutionException("Too many queued operations"));
+      }
+    } finally {
+      closeLock.readLock().unlock();
+    }
+    return future;
+  }
+
+  private Lane laneFor(byte[] key) {
+    return lanes[Math.floorMod(Arrays.hashCode(key), lanes.length)];
+  }
+
+  /**
+   * Выполняет уже поданные операции, останавливает потоки и закрывает хранилище. Если это
+   * происходит повторно, ничего не делает.
+   */
+  @Override
+  public void close() throws IOException {
+    closeLock.writeLock().lock();
+    try {
+      if (closed) {
+        return;
+      }
+      closed = true;
+    } finally {
+      closeLock.writeLock().unlock();
+    }
+    boolean interrupted = false;
+    for (Lane lane : lanes) {
+      while (true) {
+        try {
+          lane.queue.put(STOP);
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    }
+    for (Lane lane : lanes) {
+      while (true) {
+        try {
+          lane.thread.join();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    }
+    store.close();
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private final class Lane implements Runnable {
+
+    private final BlockingQueue<Operation> queue;
+    private final Thread thread;
+
+    Lane(int queueCapacity, String name) {
+      queue = new ArrayBlockingQueue<>(queueCapacity);
+      thread = new Thread(this, name);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    @Override
+    public void run() {
+      List<Operation> operations = new ArrayList<>();
+      while (true) {
+        try {
+          operations.add(queue.take());
+        } catch (InterruptedException e) {
+          // only close stops the lane, and it does so through the queue
+          continue;
+        }
+        queue.drainTo(operations, MAX_COALESCED_OPERATIONS - 1);
+        boolean stop = operations.get(operations.size() - 1) == STOP;
+        if (stop) {
+          operations.remove(operations.size() - 1);
+        }
+        execute(operations);
+        operations.clear();
+        if (stop) {
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Выполняет операции по порядку, объединяя подряд идущие чтения и подряд идущие изменения.
+   * Изменения объединяются, пока их значения вместе не превышают {@value #MAX_COALESCED_BYTES}
+   * байт.
+   */
+  private void execute(List<Operation> operations) {
+    int from = 0;
+    while (from < operations.size()) {
+      boolean reads = operations.get(from) instanceof Get;
+      long bytes = valueBytes(operations.get(from));
+      int to = from + 1;
+      while (to < operations.size() && (operations.get(to) instanceof Get) == reads
+          && bytes + valueBytes(operations.get(to)) <= MAX_COALESCED_BYTES) {
+        bytes += valueBytes(operations.get(to));
+        to++;
+      }
+      if (reads) {
+        read(operations.subList(from, to));
+      } else {
+        write(operations.subList(from, to));
+      }
+      from = to;
+    }
+  }
+
+  private static long valueBytes(Operation operation) {
+    return operation instanceof Upsert upsert ? upsert.value().length : 0;
+  }
+
+  private void read(List<Operation> gets) {
+    List<byte[]> keys = gets.stream().map(Operation::key).toList();
+    List<byte[]> values;
+    try {
+      values = store.loadValues(keys);
+    } catch (IOException | RuntimeException e) {
+      if (gets.size() == 1) {
+        gets.get(0).future().completeExceptionally(e);
+      } else {
+        // one broken value must not fail the neighbours it was read with
+        gets.forEach(get -> read(List.of(get)));
+      }
+      return;
+    }
+    for (int i = 0; i < gets.size(); i++) {
+      ((Get) gets.get(i)).future().complete(values.get(i));
+    }
+  }
+
+  /**
+   * Применяет изменения одним набором. Если набор не удался, изменения применяются заново по
+   * одному, так что ошибка достается только той операции, которая ее вызвала.
+   */
+  private void write(List<Operation> changes) {
+    WriteBatch batch = new WriteBatch();
+    boolean[] removed = new boolean[changes.size()];
+    try {
+      // whether a key exists after the changes of the batch seen so far
+      Map<ByteWrapper, Boolean> exists = new HashMap<>();
+      for (int i = 0; i < changes.size(); i++) {
+        Operation change = changes.get(i);
+        ByteWrapper key = new ByteWrapper(change.key());
+        if (change instanceof Upsert upsert) {
+          batch.put(upsert.key(), upsert.value());
+          exists.put(key, true);
+        } else {
+          Boolean existed = exists.get(key);
+          removed[i] = existed != null ? existed : store.contains(change.key());
+          batch.delete(change.key());
+          exists.put(key, false);
+        }
+      }
+      store.write(batch);
+    } catch (IOException | RuntimeException e) {
+      if (changes.size() == 1) {
+        changes.get(0).future().completeExceptionally(e);
+      } else {
+        // one failing change must not fail the changes it was batched with
+        changes.forEach(change -> write(List.of(change)));
+      }
+      return;
+    }
+    for (int i = 0; i < changes.size(); i++) {
+      if (changes.get(i) instanceof Upsert upsert) {
+        upsert.future().complete(null);
+      } else {
+        ((Remove) changes.get(i)).future().complete(removed[i]);
+      }
+    }
+  }
+}
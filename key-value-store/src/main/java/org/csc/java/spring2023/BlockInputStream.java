@@ -0,0 +1,92 @@
+package org.csc.java.spring2023;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+/**
+ * Входной поток, лениво читающий один блок позиционными чтениями через {@link FileChannelCache}.
+ * Короткие чтения идут через внутренний буфер, так что побайтовое чтение не делает чтения с
+ * диска на каждый байт, а длинные читаются сразу в массив вызывающего. Контрольная сумма блока
+ * считается по ходу чтения с диска и сверяется, когда блок прочитан до конца.
+ */
+final class BlockInputStream extends InputStream {
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private final FileChannelCache channels;
+  private final FileBlockLocation block;
+  private final CRC32C checksum = new CRC32C();
+  // how much of the block has been read from the file, buffered bytes included
+  private int position;
+  // allocated with the first short read
+  private byte[] buffer;
+  private int bufferPosition;
+  private int bufferLimit;
+
+  BlockInputStream(FileChannelCache channels, FileBlockLocation block) {
+    this.channels = channels;
+    this.block = block;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (bufferPosition == bufferLimit && fill() < 0) {
+      return -1;
+    }
+    return buffer[bufferPosition++] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] bytes, int off, int desiredLen) throws IOException {
+    if (desiredLen == 0) {
+      return 0;
+    }
+    if (bufferPosition == bufferLimit) {
+      if (desiredLen >= BUFFER_SIZE) {
+        return readFromFile(bytes, off, desiredLen);
+      }
+      if (fill() < 0) {
+        return -1;
+      }
+    }
+    int len = Math.min(desiredLen, bufferLimit - bufferPosition);
+    System.arraycopy(buffer, bufferPosition, bytes, off, len);
+    bufferPosition += len;
+    return len;
+  }
+
+  private int fill() throws IOException {
+    if (buffer == null) {
+      buffer = new byte[Math.max(1, Math.min(BUFFER_SIZE, block.size()))];
+    }
+    int read = readFromFile(buffer, 0, buffer.length);
+    bufferPosition = 0;
+    bufferLimit = Math.max(read, 0);
+    return read;
+  }
+
+  private int readFromFile(byte[] bytes, int off, int desiredLen) throws IOException {
+    int remaining = block.size() - position;
+    if (remaining <= 0) {
+      return -1;
+    }
+    int len = Math.min(desiredLen, remaining);
+    channels.readFully(block.fileName(), ByteBuffer.wrap(bytes, off, len),
+        (long) block.offset() + position);
+    position += len;
+    if (block.hasChecksum()) {
+      checksum.update(bytes, off, len);
+      if (position == block.size()) {
+        block.verify(checksum.getValue());
+      }
+    }
+    return len;
+  }
+
+  @Override
+  public int available() {
+    return block.size() - position + bufferLimit - bufferPosition;
+  }
+}
@@ -0,0 +1,128 @@
+package org.csc.java.spring2023;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Откладывает освобождение блоков, пока их могут читать. Читатель закрепляет текущую эпоху до того,
+ * как смотрит в индекс, а блоки, убранные из индекса, освобождаются в {@link ValueStoreManager}
+ * только когда не останется закреплений, сделанных раньше их удаления.
+ */
+final class BlockReclaimer {
+
+  private final ValueStoreManager valueStoreManager;
+  private final AtomicLong epoch = new AtomicLong();
+  private final Set<Pin> pins = ConcurrentHashMap.newKeySet();
+  // retire epochs only grow, so the queue is ordered by them
+  private final Queue<Retired> retired = new ArrayDeque<>();
+  // the newest retire epoch whose blocks were freed, guarded by retired
+  private long freedUpTo;
+
+  private record Retired(long epoch, List<FileBlockLocation> blocks) {
+
+  }
+
+  /**
+   * Закрепление эпохи. Пока оно не снято, блоки, которые были в индексе в момент закрепления, не
+   * переиспользуются.
+   */
+  final class Pin implements AutoCloseable {
+
+    private final long epoch;
+    private boolean released;
+
+    private Pin(long epoch) {
+      this.epoch = epoch;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (released) {
+        return;
+      }
+      released = true;
+      pins.remove(this);
+      releaseRetired();
+    }
+  }
+
+  BlockReclaimer(ValueStoreManager valueStoreManager) {
+    this.valueStoreManager = valueStoreManager;
+  }
+
+  Pin pin() {
+    Pin pin = new Pin(epoch.get());
+    pins.add(pin);
+    return pin;
+  }
+
+  /**
+   * Текущая эпоха. Блоки, которые есть в индексе после этого вызова, освобождаются только в более
+   * поздних эпохах, см. {@link #pinAt}.
+   */
+  long epoch() {
+    return epoch.get();
+  }
+
+  /**
+   * Закрепляет эпоху, полученную раньше из {@link #epoch()}, если блоки, которые с тех пор были в
+   * индексе, еще ни разу не освобождались. Иначе возвращает null: такие блоки могли уже
+   * переиспользовать, и их надо заново найти в индексе.
+   */
+  Pin pinAt(long pinnedEpoch) {
+    synchronized (retired) {
+      if (freedUpTo > pinnedEpoch) {
+        return null;
+      }
+      Pin pin = new Pin(pinnedEpoch);
+      pins.add(pin);
+      return pin;
+    }
+  }
+
+  /**
+   * Освобождает блоки, уже убранные из индекса, как только их перестанут читать.
+   */
+  void retire(List<FileBlockLocation> blocks) throws IOException {
+    synchronized (retired) {
+      retired.add(new Retired(epoch.incrementAndGet(), blocks));
+    }
+    releaseRetired();
+  }
+
+  /**
+   * Освобождает все отложенные блоки, не дожидаясь читателей. Вызывается при закрытии хранилища.
+   */
+  void releaseAll() throws IOException {
+    synchronized (retired) {
+      while (!retired.isEmpty()) {
+        Retired released = retired.poll();
+        freedUpTo = released.epoch();
+        valueStoreManager.remove(released.blocks());
+      }
+    }
+  }
+
+  private void releaseRetired() throws IOException {
+    synchronized (retired) {
+      if (retired.isEmpty()) {
+        return;
+      }
+      long oldestPinned = Long.MAX_VALUE;
+      for (Pin pin : pins) {
+        oldestPinned = Math.min(oldestPinned, pin.epoch);
+      }
+      // a pin taken at epoch e may still see blocks retired at epochs after e
+      while (!retired.isEmpty() && retired.peek().epoch() <= oldestPinned) {
+        Retired released = retired.poll();
+        freedUpTo = released.epoch();
+        valueStoreManager.remove(released.blocks());
+      }
+    }
+  }
+}
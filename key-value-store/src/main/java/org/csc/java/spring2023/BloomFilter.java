@@ -0,0 +1,88 @@
+package org.csc.java.spring2023;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Фильтр Блума над ключами: {@link #mightContain} никогда не ошибается для добавленных ключей, а
+ * для остальных ошибается с вероятностью около 1% при 10 битах на ключ.
+ */
+final class BloomFilter {
+
+  private static final int BITS_PER_KEY = 10;
+  // ln 2 * BITS_PER_KEY hash functions minimize the false positive rate
+  private static final int HASH_FUNCTIONS = 7;
+
+  private final long[] bits;
+  private final int hashFunctions;
+
+  BloomFilter(long expectedKeys) {
+    long bitCount = Math.max(64, expectedKeys * BITS_PER_KEY);
+    this.bits = new long[Math.toIntExact((bitCount + 63) / 64)];
+    this.hashFunctions = HASH_FUNCTIONS;
+  }
+
+  private BloomFilter(long[] bits, int hashFunctions) {
+    this.bits = bits;
+    this.hashFunctions = hashFunctions;
+  }
+
+  void add(byte[] key) {
+    long hash = hash(key);
+    int first = (int) hash;
+    int second = (int) (hash >>> 32);
+    long bitCount = (long) bits.length * 64;
+    for (int i = 0; i < hashFunctions; i++) {
+      long bit = Integer.toUnsignedLong(first + i * second) % bitCount;
+      bits[(int) (bit >>> 6)] |= 1L << bit;
+    }
+  }
+
+  boolean mightContain(byte[] key) {
+    long hash = hash(key);
+    int first = (int) hash;
+    int second = (int) (hash >>> 32);
+    long bitCount = (long) bits.length * 64;
+    for (int i = 0; i < hashFunctions; i++) {
+      long bit = Integer.toUnsignedLong(first + i * second) % bitCount;
+      if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  void writeTo(DataOutputStream out) throws IOException {
+    out.writeInt(hashFunctions);
+    out.writeInt(bits.length);
+    for (long word : bits) {
+      out.writeLong(word);
+    }
+  }
+
+  static BloomFilter readFrom(DataInputStream in) throws IOException {
+    int hashFunctions = in.readInt();
+    long[] bits = new long[in.readInt()];
+    for (int i = 0; i < bits.length; i++) {
+      bits[i] = in.readLong();
+    }
+    return new BloomFilter(bits, hashFunctions);
+  }
+
+  /**
+   * 64-битный FNV-1a с финальным перемешиванием, половины которого дают две независимые хеш-функции
+   * для двойного хеширования.
+   */
+  private static long hash(byte[] key) {
+    long hash = 0xcbf29ce484222325L;
+    for (byte b : key) {
+      hash ^= b & 0xff;
+      hash *= 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
@@ -6,7 +6,7 @@ import java.util.Arrays;
  * Вспомогательная обертка над массивом байтов, понадобится для хранения Map<ByteWrapper,
  * List<FileBlockLocation>> в {@link IndexManager}
  */
-final class ByteWrapper {
+final class ByteWrapper implements Comparable<ByteWrapper> {
 
   private final byte[] data;
 
@@ -31,4 +31,12 @@ final class ByteWrapper {
   public int hashCode() {
     return Arrays.hashCode(data);
   }
-}
\ No newline at end of file
+
+  /**
+   * Беззнаковый лексикографический порядок байтов.
+   */
+  @Override
+  public int compareTo(ByteWrapper other) {
+    return Arrays.compareUnsigned(data, other.data);
+  }
+}
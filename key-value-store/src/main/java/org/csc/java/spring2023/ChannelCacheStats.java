@@ -0,0 +1,13 @@
+package org.csc.java.spring2023;
+
+/**
+ * Статистика кеша открытых файлов со значениями.
+ *
+ * @param hits      сколько раз канал нашелся в кеше
+ * @param misses    сколько раз файл пришлось открыть
+ * @param evictions сколько каналов было закрыто из-за превышения лимита открытых файлов
+ * @param openFiles сколько файлов открыто сейчас
+ */
+public record ChannelCacheStats(long hits, long misses, long evictions, int openFiles) {
+
+}
@@ -1,23 +1,37 @@
 package org.csc.java.spring2023;
 
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Deque;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
 
 class ConfigSaver {
 
+  private static final int CHECKSUMS_FLAG = 1 << 31;
+  private static final int LOG_MAGIC = 0x4B564C43;
+
   /**
    * Static class for saving KeyValueStore and ValueStoreManage state on disk and loading them from
    * disk.
@@ -26,19 +40,194 @@ class ConfigSaver {
   }
 
 
-  static void saveEmptyBlocks(Deque<FileBlockLocation> emptyBlocks,
+  static void saveEmptyBlocks(Collection<FileBlockLocation> emptyBlocks,
       File saveFile) throws IOException {
-    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(saveFile))) {
+    try (FileOutputStream fileOut = new FileOutputStream(saveFile);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
       writeBlocks(out, emptyBlocks);
+      out.flush();
+      fileOut.getFD().sync();
+    }
+  }
+
+  static List<FileBlockLocation> loadEmptyBlocks(File loadFile) throws IOException {
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(loadFile)))) {
+      return readBlocks(in);
+    }
+  }
+
+  /**
+   * Сохраняет сегменты log-structured хранилища в формате int количество сегментов, для каждого
+   * сегмента { название файла, int записано байт, int живых байт }.
+   */
+  static void saveSegments(Collection<LogStructuredValueStoreManager.Segment> segments,
+      File saveFile) throws IOException {
+    try (FileOutputStream fileOut = new FileOutputStream(saveFile);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+      out.writeInt(segments.size());
+      for (var segment : segments) {
+        out.writeUTF(segment.fileName);
+        out.writeInt(segment.written);
+        out.writeInt(segment.live);
+      }
+      out.flush();
+      fileOut.getFD().sync();
+    }
+  }
+
+  static List<LogStructuredValueStoreManager.Segment> loadSegments(File loadFile)
+      throws IOException {
+    try (DataInputStream in = new DataInputStream(new FileInputStream(loadFile))) {
+      int segmentsNumber = in.readInt();
+      List<LogStructuredValueStoreManager.Segment> segments = new ArrayList<>(segmentsNumber);
+      for (int i = 0; i < segmentsNumber; i++) {
+        String fileName = in.readUTF();
+        int written = in.readInt();
+        int live = in.readInt();
+        segments.add(new LogStructuredValueStoreManager.Segment(fileName, written, live));
+      }
+      return segments;
+    }
+  }
+
+  /**
+   * Сохраняет состав LSM-индекса: long следующий номер файла, long номер последнего сброшенного на
+   * диск журнала, затем номера файлов нулевого уровня и номера файлов остальных уровней (-1 для
+   * пустого уровня), каждый список в формате { int длина, long номера }.
+   */
+  static void saveLsmManifest(LsmIndexManager.Manifest manifest, File saveFile)
+      throws IOException {
+    try (FileOutputStream fileOut = new FileOutputStream(saveFile);
+        DataOutputStream out = new DataOutputStream(fileOut)) {
+      out.writeLong(manifest.nextId());
+      out.writeLong(manifest.flushedUpTo());
+      writeLongs(out, manifest.level0());
+      writeLongs(out, manifest.levels());
+      out.flush();
+      // the manifest replaces the previous one and allows deleting the logs it covers
+      fileOut.getFD().sync();
+    }
+  }
+
+  static LsmIndexManager.Manifest loadLsmManifest(File loadFile) throws IOException {
+    try (DataInputStream in = new DataInputStream(new FileInputStream(loadFile))) {
+      long nextId = in.readLong();
+      long flushedUpTo = in.readLong();
+      return new LsmIndexManager.Manifest(nextId, flushedUpTo, readLongs(in), readLongs(in));
+    }
+  }
+
+  /**
+   * Сохраняет место рабочей директории в шардированном хранилище: int номер шарда, int число
+   * шардов.
+   */
+  static void saveShardInfo(ShardedKeyValueStore.ShardInfo info, File saveFile)
+      throws IOException {
+    try (FileOutputStream fileOut = new FileOutputStream(saveFile);
+        DataOutputStream out = new DataOutputStream(fileOut)) {
+      out.writeInt(info.shard());
+      out.writeInt(info.shards());
+      out.flush();
+      fileOut.getFD().sync();
     }
   }
 
-  static Deque<FileBlockLocation> loadEmptyBlocks(File loadFile) throws IOException {
-    Deque<FileBlockLocation> deque;
+  static ShardedKeyValueStore.ShardInfo loadShardInfo(File loadFile) throws IOException {
     try (DataInputStream in = new DataInputStream(new FileInputStream(loadFile))) {
-      deque = new ArrayDeque<>(readBlocks(in));
+      return new ShardedKeyValueStore.ShardInfo(in.readInt(), in.readInt());
+    }
+  }
+
+  /**
+   * Сохраняет тип индекса хранилища: название {@link KeyValueStoreOptions.IndexType}.
+   */
+  static void saveIndexType(KeyValueStoreOptions.IndexType indexType, File saveFile)
+      throws IOException {
+    try (FileOutputStream fileOut = new FileOutputStream(saveFile);
+        DataOutputStream out = new DataOutputStream(fileOut)) {
+      out.writeUTF(indexType.name());
+      out.flush();
+      fileOut.getFD().sync();
+    }
+  }
+
+  static KeyValueStoreOptions.IndexType loadIndexType(File loadFile) throws IOException {
+    try (DataInputStream in = new DataInputStream(new FileInputStream(loadFile))) {
+      String name = in.readUTF();
+      try {
+        return KeyValueStoreOptions.IndexType.valueOf(name);
+      } catch (IllegalArgumentException e) {
+        throw new IOException("Unknown index type " + name + " in " + loadFile, e);
+      }
     }
-    return deque;
+  }
+
+  /**
+   * Сериализует запись журнала сроков жизни: long срок в миллисекундах от начала эпохи
+   * ({@link ExpiryTable#NEVER} снимает срок) и ключ.
+   */
+  static byte[] encodeExpiryRecord(byte[] key, long deadlineMillis) throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(buffer)) {
+      out.writeLong(deadlineMillis);
+      writeBytes(out, key);
+    }
+    return buffer.toByteArray();
+  }
+
+  /**
+   * Сохраняет сроки жизни в формате журнала, по записи на ключ, в файл, который потом заменит
+   * журнал.
+   */
+  static void saveExpiries(Map<ByteWrapper, Long> deadlines, File saveFile) throws IOException {
+    try (FileOutputStream fileOut = new FileOutputStream(saveFile);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+      out.write(logHeader());
+      for (var entry : deadlines.entrySet()) {
+        out.write(frameLogRecord(
+            encodeExpiryRecord(entry.getKey().getBytes(), entry.getValue())).array());
+      }
+      out.flush();
+      fileOut.getFD().sync();
+    }
+  }
+
+  /**
+   * Применяет журнал сроков жизни к маппе до первой испорченной записи, см. {@link #replayLog}.
+   * Журнал после этого все равно переписывается целиком, так что хвост не обрезается.
+   */
+  static void replayExpiryLog(File logFile, Map<ByteWrapper, Long> deadlines)
+      throws IOException {
+    replayLog(logFile, record -> {
+      try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(record))) {
+        long deadline = in.readLong();
+        return new TimingWheel.Timer(readBytes(in), deadline);
+      }
+    }, timer -> {
+      ByteWrapper key = new ByteWrapper(timer.key());
+      if (timer.deadlineMillis() == ExpiryTable.NEVER) {
+        deadlines.remove(key);
+      } else {
+        deadlines.put(key, timer.deadlineMillis());
+      }
+    });
+  }
+
+  private static void writeLongs(DataOutputStream out, List<Long> values) throws IOException {
+    out.writeInt(values.size());
+    for (long value : values) {
+      out.writeLong(value);
+    }
+  }
+
+  private static List<Long> readLongs(DataInputStream in) throws IOException {
+    int size = in.readInt();
+    List<Long> values = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      values.add(in.readLong());
+    }
+    return values;
   }
 
   /**
@@ -48,8 +237,8 @@ class ConfigSaver {
    */
   static void saveIndex(Map<ByteWrapper, List<FileBlockLocation>> map, File indexFile)
       throws IOException {
-    try (DataOutputStream out = new DataOutputStream(
-        Files.newOutputStream(indexFile.toPath()))) {
+    try (FileOutputStream fileOut = new FileOutputStream(indexFile);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
       out.writeInt(map.size());
       for (var entry : map.entrySet()) {
         byte[] bytes = entry.getKey().getBytes();
@@ -57,6 +246,9 @@ class ConfigSaver {
         writeBytes(out, bytes);
         writeBlocks(out, fileBlockLocations);
       }
+      out.flush();
+      // the snapshot replaces the previous one and allows deleting the deltas it covers
+      fileOut.getFD().sync();
     }
   }
 
@@ -65,7 +257,7 @@ class ConfigSaver {
     try (DataInputStream in = new DataInputStream(Files.newInputStream(indexFile.toPath()))) {
       int entryNumber = in.readInt();
       // capacity to avoid rehashing in the beginning
-      map = new HashMap<>((int) Math.ceil(entryNumber / 0.75), 0.75f);
+      map = new ConcurrentHashMap<>((int) Math.ceil(entryNumber / 0.75), 0.75f);
       for (int i = 0; i < entryNumber; i++) {
         byte[] key = readBytes(in);
         List<FileBlockLocation> blockList = readBlocks(in);
@@ -75,6 +267,325 @@ class ConfigSaver {
     return map;
   }
 
+  /**
+   * Переписывает индекс из baseFile в targetFile в том же формате, применяя к нему changes: ключ
+   * со списком блоков добавляется или заменяется, ключ с null удаляется. Базовый индекс читается
+   * и пишется по одной записи, а количество ключей вписывается в начало файла в конце. Примененные
+   * изменения убираются из changes.
+   */
+  static void mergeIndex(File baseFile, Map<ByteWrapper, List<FileBlockLocation>> changes,
+      File targetFile) throws IOException {
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(Files.newInputStream(baseFile.toPath())));
+        FileOutputStream fileOut = new FileOutputStream(targetFile);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+      int written = 0;
+      out.writeInt(written);
+      int entryNumber = in.readInt();
+      for (int i = 0; i < entryNumber; i++) {
+        ByteWrapper key = new ByteWrapper(readBytes(in));
+        List<FileBlockLocation> blocks = readBlocks(in);
+        if (changes.containsKey(key)) {
+          blocks = changes.remove(key);
+        }
+        if (blocks != null) {
+          writeBytes(out, key.getBytes());
+          writeBlocks(out, blocks);
+          written++;
+        }
+      }
+      for (var entry : changes.entrySet()) {
+        if (entry.getValue() != null) {
+          writeBytes(out, entry.getKey().getBytes());
+          writeBlocks(out, entry.getValue());
+          written++;
+        }
+      }
+      changes.clear();
+      out.flush();
+      fileOut.getChannel().write(ByteBuffer.allocate(Integer.BYTES).putInt(0, written), 0);
+      // the merged index replaces the base and allows deleting the deltas it covers
+      fileOut.getFD().sync();
+    }
+  }
+
+  /**
+   * Сериализует запись журнала индекса: byte тип записи, ключ и, для upsert, список блоков.
+   * Записи с remove содержат только ключ.
+   */
+  static byte[] encodeIndexRecord(byte type, byte[] key, List<FileBlockLocation> blocks)
+      throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(buffer)) {
+      out.writeByte(type);
+      writeBytes(out, key);
+      if (type == IndexLog.UPSERT) {
+        writeBlocks(out, blocks);
+      }
+    }
+    return buffer.toByteArray();
+  }
+
+  /**
+   * Сериализует набор изменений как одну запись журнала: byte {@link IndexLog#BATCH}, int число
+   * вложенных записей и сами записи в формате {int длина, запись}.
+   */
+  static byte[] encodeIndexBatch(List<IndexEntry> upserts, List<byte[]> removes)
+      throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(buffer)) {
+      out.writeByte(IndexLog.BATCH);
+      out.writeInt(upserts.size() + removes.size());
+      for (IndexEntry entry : upserts) {
+        writeBytes(out, encodeIndexRecord(IndexLog.UPSERT, entry.key(), entry.blocks()));
+      }
+      for (byte[] key : removes) {
+        writeBytes(out, encodeIndexRecord(IndexLog.REMOVE, key, null));
+      }
+    }
+    return buffer.toByteArray();
+  }
+
+  /**
+   * Применяет записи журнала индекса к маппе, см. {@link #replayLog}.
+   *
+   * @return количество примененных записей и длину корректного префикса журнала
+   */
+  static IndexLog.ReplayResult replayIndexLog(File logFile,
+      Map<ByteWrapper, List<FileBlockLocation>> map) throws IOException {
+    return replayIndexLog(logFile, IndexLog.Visitor.applyingTo(map));
+  }
+
+  /**
+   * То же, что {@link #replayIndexLog(File, Map)}, но передает изменения visitor. Запись
+   * разбирается целиком до того, как ее изменения попадут к visitor, так что запись, которая не
+   * разобралась, не применяется даже частично.
+   */
+  static IndexLog.ReplayResult replayIndexLog(File logFile, IndexLog.Visitor visitor)
+      throws IOException {
+    int[] records = new int[1];
+    LogReplay replay = replayLog(logFile, record -> {
+      List<IndexEntry> changes = new ArrayList<>();
+      decodeIndexRecord(record, changes);
+      return changes;
+    }, changes -> {
+      for (IndexEntry change : changes) {
+        if (change.blocks() == null) {
+          visitor.remove(change.key());
+        } else {
+          visitor.upsert(change.key(), change.blocks());
+        }
+      }
+      records[0] += changes.size();
+    });
+    return new IndexLog.ReplayResult(records[0], replay.validLength(), replay.checksummed());
+  }
+
+  /**
+   * Разбирает запись журнала индекса в changes; у удаления блоки null.
+   */
+  private static void decodeIndexRecord(byte[] record, List<IndexEntry> changes)
+      throws IOException {
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(record))) {
+      byte type = in.readByte();
+      if (type == IndexLog.BATCH) {
+        int nested = in.readInt();
+        for (int i = 0; i < nested; i++) {
+          decodeIndexRecord(readBytes(in), changes);
+        }
+        return;
+      }
+      byte[] key = readBytes(in);
+      switch (type) {
+        case IndexLog.UPSERT -> changes.add(new IndexEntry(key, readBlocks(in)));
+        case IndexLog.REMOVE -> changes.add(new IndexEntry(key, null));
+        default -> throw new IOException("Unknown index log record type: " + type);
+      }
+    }
+  }
+
+  /**
+   * Разбирает одну запись журнала.
+   */
+  interface RecordDecoder<T> {
+
+    T decode(byte[] record) throws IOException;
+  }
+
+  /**
+   * Длина корректного префикса журнала и то, записан ли он с контрольными суммами.
+   */
+  record LogReplay(long validLength, boolean checksummed) {
+
+  }
+
+  /**
+   * Журнал с контрольными суммами начинается с int {@value #LOG_MAGIC}, за которым идут записи
+   * { int длина, int CRC32C, запись }. Журналы, записанные до этого, -- просто
+   * { int длина, запись }. Длина записи всегда положительна.
+   */
+  static byte[] logHeader() {
+    return ByteBuffer.allocate(Integer.BYTES).putInt(LOG_MAGIC).array();
+  }
+
+  /**
+   * Открывает журнал на дописывание, а в пустой файл сначала пишет заголовок.
+   */
+  static FileChannel openLog(File logFile) throws IOException {
+    FileChannel channel = FileChannel.open(logFile.toPath(), WRITE, APPEND, CREATE);
+    try {
+      if (channel.size() == 0) {
+        ByteBuffer header = ByteBuffer.wrap(logHeader());
+        while (header.hasRemaining()) {
+          channel.write(header);
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      try {
+        channel.close();
+      } catch (IOException suppressed) {
+        e.addSuppressed(suppressed);
+      }
+      throw e;
+    }
+    return channel;
+  }
+
+  /**
+   * Обрамляет запись журнала длиной и контрольной суммой, см. {@link #logHeader()}.
+   */
+  static ByteBuffer frameLogRecord(byte[] record) {
+    CRC32C crc = new CRC32C();
+    crc.update(record);
+    return ByteBuffer.allocate(2 * Integer.BYTES + record.length)
+        .putInt(record.length).putInt((int) crc.getValue()).put(record).flip();
+  }
+
+  /**
+   * Передает apply записи журнала по порядку. Останавливается на первой записи, которая
+   * недописана, имеет неположительную длину, не сходится с контрольной суммой или не разбирается
+   * decoder: после падения ОС хвост журнала может оказаться заполнен нулями или мусором, и все,
+   * что за ним, отбрасывается.
+   */
+  static <T> LogReplay replayLog(File logFile, RecordDecoder<T> decoder, Consumer<T> apply)
+      throws IOException {
+    long fileLength = logFile.length();
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(Files.newInputStream(logFile.toPath())))) {
+      in.mark(Integer.BYTES);
+      boolean checksummed = fileLength >= Integer.BYTES && in.readInt() == LOG_MAGIC;
+      if (!checksummed) {
+        in.reset();
+      }
+      long position = checksummed ? Integer.BYTES : 0;
+      int frame = checksummed ? 2 * Integer.BYTES : Integer.BYTES;
+      CRC32C crc = new CRC32C();
+      while (fileLength - position >= frame) {
+        int length = in.readInt();
+        int checksum = checksummed ? in.readInt() : 0;
+        if (length <= 0 || length > fileLength - position - frame) {
+          break;
+        }
+        byte[] record = in.readNBytes(length);
+        if (record.length != length) {
+          break;
+        }
+        if (checksummed) {
+          crc.reset();
+          crc.update(record);
+          if ((int) crc.getValue() != checksum) {
+            break;
+          }
+        }
+        T decoded;
+        try {
+          decoded = decoder.decode(record);
+        } catch (IOException | RuntimeException e) {
+          break;
+        }
+        apply.accept(decoded);
+        position += frame + length;
+      }
+      return new LogReplay(position, checksummed);
+    }
+  }
+
+  /**
+   * Переписывает первые validLength байт журнала без контрольных сумм в журнал с ними. Новый
+   * журнал подменяет старый атомарным переименованием.
+   */
+  static void upgradeLog(File logFile, long validLength) throws IOException {
+    File tmpFile = new File(logFile.getParentFile(), logFile.getName() + ".tmp");
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(Files.newInputStream(logFile.toPath())));
+        FileOutputStream fileOut = new FileOutputStream(tmpFile);
+        BufferedOutputStream out = new BufferedOutputStream(fileOut)) {
+      out.write(logHeader());
+      long position = 0;
+      while (position < validLength) {
+        byte[] record = readBytes(in);
+        out.write(frameLogRecord(record).array());
+        position += Integer.BYTES + record.length;
+      }
+      out.flush();
+      fileOut.getFD().sync();
+    }
+    Files.move(tmpFile.toPath(), logFile.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+    FileChannelCache.syncDirectory(logFile.getParentFile().toPath());
+  }
+
+  /**
+   * Сериализует одну запись индекса: ключ и список его блоков в том же формате, что и
+   * {@link #saveIndex}.
+   */
+  static byte[] encodeIndexEntry(byte[] key, List<FileBlockLocation> blocks) throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(buffer)) {
+      writeBytes(out, key);
+      writeBlocks(out, blocks);
+    }
+    return buffer.toByteArray();
+  }
+
+  static IndexEntry decodeIndexEntry(byte[] entry) throws IOException {
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(entry))) {
+      byte[] key = readBytes(in);
+      return new IndexEntry(key, readBlocks(in));
+    }
+  }
+
+  /**
+   * Сериализует запись отсортированного файла LSM-индекса: ключ, byte 1 и список блоков для живой
+   * записи или byte 0 для надгробия (blocks == null).
+   */
+  static byte[] encodeRunEntry(byte[] key, List<FileBlockLocation> blocks) throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(buffer)) {
+      writeBytes(out, key);
+      out.writeBoolean(blocks != null);
+      if (blocks != null) {
+        writeBlocks(out, blocks);
+      }
+    }
+    return buffer.toByteArray();
+  }
+
+  /**
+   * Читает запись, записанную {@link #encodeRunEntry}. У надгробия список блоков null.
+   */
+  static IndexEntry readRunEntry(DataInputStream in) throws IOException {
+    byte[] key = readBytes(in);
+    return new IndexEntry(key, in.readBoolean() ? readBlocks(in) : null);
+  }
+
+  static void writeKey(DataOutputStream out, byte[] key) throws IOException {
+    writeBytes(out, key);
+  }
+
+  static byte[] readKey(DataInputStream in) throws IOException {
+    return readBytes(in);
+  }
+
   private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
     out.writeInt(bytes.length);
     out.write(bytes);
@@ -85,25 +596,40 @@ class ConfigSaver {
     return in.readNBytes(bytesSize);
   }
 
-  private static void writeBlocks(DataOutputStream out, Collection<FileBlockLocation> emptyBlocks)
+  /**
+   * Пишет int число блоков, затем для каждого блока { название файла, int смещение, int размер }.
+   * Если у всех блоков есть контрольные суммы, в числе блоков выставляется старший бит, а за каждым
+   * блоком идет int CRC32C. Записи без этого бита -- это блоки, записанные до появления
+   * контрольных сумм, и они читаются как прежде.
+   */
+  private static void writeBlocks(DataOutputStream out, Collection<FileBlockLocation> blocks)
       throws IOException {
-    out.writeInt(emptyBlocks.size());
-    for (FileBlockLocation block : emptyBlocks) {
+    boolean checksummed = !blocks.isEmpty()
+        && blocks.stream().allMatch(FileBlockLocation::hasChecksum);
+    out.writeInt(checksummed ? blocks.size() | CHECKSUMS_FLAG : blocks.size());
+    for (FileBlockLocation block : blocks) {
       out.writeUTF(block.fileName());
       out.writeInt(block.offset());
       out.writeInt(block.size());
+      if (checksummed) {
+        out.writeInt((int) block.checksum());
+      }
     }
   }
 
   private static List<FileBlockLocation> readBlocks(DataInputStream in)
       throws IOException {
-    int blocksNumber = in.readInt();
+    int header = in.readInt();
+    boolean checksummed = (header & CHECKSUMS_FLAG) != 0;
+    int blocksNumber = header & ~CHECKSUMS_FLAG;
     List<FileBlockLocation> blocks = new ArrayList<>(blocksNumber);
     for (int j = 0; j < blocksNumber; j++) {
       String fileName = in.readUTF();
       int offset = in.readInt();
       int size = in.readInt();
-      blocks.add(new FileBlockLocation(fileName, offset, size));
+      long checksum = checksummed ? Integer.toUnsignedLong(in.readInt())
+          : FileBlockLocation.NO_CHECKSUM;
+      blocks.add(new FileBlockLocation(fileName, offset, size, checksum));
     }
     return blocks;
   }
@@ -0,0 +1,50 @@
+package org.csc.java.spring2023;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Сжатие значений через {@link Deflater}.
+ */
+final class DeflateCodec implements ValueCodec {
+
+  static final byte ID = 1;
+
+  private final int level;
+
+  DeflateCodec(int level) {
+    this.level = level;
+  }
+
+  @Override
+  public byte id() {
+    return ID;
+  }
+
+  @Override
+  public byte[] compress(byte[] value) {
+    Deflater deflater = new Deflater(level);
+    try {
+      deflater.setInput(value);
+      deflater.finish();
+      ByteArrayOutputStream out = new ByteArrayOutputStream(value.length / 2 + 64);
+      byte[] buffer = new byte[8192];
+      while (!deflater.finished()) {
+        out.write(buffer, 0, deflater.deflate(buffer));
+      }
+      return out.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * The stream owns its inflater and releases it on close.
+   */
+  @Override
+  public InputStream decompress(InputStream compressed) {
+    return new InflaterInputStream(compressed);
+  }
+}
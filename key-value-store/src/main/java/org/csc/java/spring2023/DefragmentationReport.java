@@ -0,0 +1,17 @@
+package org.csc.java.spring2023;
+
+/**
+ * Результат дефрагментации хранилища.
+ * <p>
+ * Фрагментация -- доля блоков, которые лишние по сравнению с хранением каждого значения в одном
+ * блоке: (число блоков - число значений) / число блоков.
+ *
+ * @param relocatedValues     сколько значений было переписано
+ * @param reclaimedBytes      сколько байт освобождено на диске удалением и обрезкой файлов
+ * @param fragmentationBefore фрагментация до дефрагментации
+ * @param fragmentationAfter  фрагментация после дефрагментации
+ */
+public record DefragmentationReport(int relocatedValues, long reclaimedBytes,
+                                    double fragmentationBefore, double fragmentationAfter) {
+
+}
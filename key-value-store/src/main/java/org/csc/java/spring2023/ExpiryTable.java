@@ -0,0 +1,229 @@
+package org.csc.java.spring2023;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Сроки жизни ключей. Сроки лежат в памяти, а каждое их изменение дописывается в журнал
+ * {@value #LOG_FILE_NAME}, который при открытии проигрывается и переписывается без снятых сроков.
+ * Колесо таймеров подсказывает сборщику, какие ключи истекли, так что ему не нужно перебирать все
+ * ключи.
+ * <p>
+ * Срок ключа меняется под блокировкой его полосы в {@link KeyValueStoreImpl}, поэтому записи
+ * журнала об одном ключе идут в том же порядке, что и изменения индекса.
+ */
+final class ExpiryTable implements Closeable {
+
+  static final long NEVER = Long.MAX_VALUE;
+  static final String LOG_FILE_NAME = "expiry.log";
+  static final long TICK_MILLIS = 100;
+
+  private final File logFile;
+  private final Map<ByteWrapper, Long> deadlines = new ConcurrentHashMap<>();
+  // guarded by itself
+  private final TimingWheel wheel;
+  // appends take the read lock and may run concurrently, compaction takes the write lock
+  private final ReadWriteLock logLock = new ReentrantReadWriteLock();
+  private final AtomicInteger records = new AtomicInteger();
+  // opened with the first record, so stores without expiring keys have no log at all
+  private volatile FileChannel channel;
+  private volatile boolean directoryUnsynced;
+
+  ExpiryTable(Path workDir, long nowMillis) throws IOException {
+    logFile = new File(workDir.toString(), LOG_FILE_NAME);
+    if (logFile.exists()) {
+      ConfigSaver.replayExpiryLog(logFile, deadlines);
+      compact();
+    }
+    wheel = new TimingWheel(TICK_MILLIS, nowMillis);
+    deadlines.forEach(
+        (key, deadline) -> wheel.add(new TimingWheel.Timer(key.getBytes(), deadline)));
+  }
+
+  /**
+   * Срок, который наступит через ttl после nowMillis.
+   */
+  static long deadline(Duration ttl, long nowMillis) {
+    if (ttl.compareTo(Duration.ofMillis(NEVER - nowMillis)) >= 0) {
+      return NEVER;
+    }
+    return nowMillis + ttl.toMillis();
+  }
+
+  boolean isEmpty() {
+    return deadlines.isEmpty();
+  }
+
+  /**
+   * Назначает ключу срок или снимает его, если deadlineMillis равен {@link #NEVER}. Вызывается
+   * под блокировкой полосы ключа.
+   */
+  void set(byte[] key, long deadlineMillis) throws IOException {
+    ByteWrapper wrapped = new ByteWrapper(key.clone());
+    if (deadlineMillis == NEVER && (deadlines.isEmpty() || !deadlines.containsKey(wrapped))) {
+      return;
+    }
+    logLock.readLock().lock();
+    try {
+      if (deadlineMillis == NEVER) {
+        deadlines.remove(wrapped);
+      } else {
+        deadlines.put(wrapped, deadlineMillis);
+      }
+      append(ConfigSaver.encodeExpiryRecord(key, deadlineMillis));
+    } finally {
+      logLock.readLock().unlock();
+    }
+    if (deadlineMillis != NEVER) {
+      synchronized (wheel) {
+        wheel.add(new TimingWheel.Timer(wrapped.getBytes(), deadlineMillis));
+      }
+    }
+  }
+
+  /**
+   * Истек ли срок ключа к nowMillis. Ключ без срока не истекает никогда.
+   */
+  boolean isExpired(byte[] key, long nowMillis) {
+    if (deadlines.isEmpty()) {
+      return false;
+    }
+    Long deadline = deadlines.get(new ByteWrapper(key));
+    return deadline != null && deadline <= nowMillis;
+  }
+
+  /**
+   * Срок ключа или {@link #NEVER}, если срока у него нет.
+   */
+  long deadlineOf(byte[] key) {
+    if (deadlines.isEmpty()) {
+      return NEVER;
+    }
+    return deadlines.getOrDefault(new ByteWrapper(key), NEVER);
+  }
+
+  /**
+   * Продвигает колесо до nowMillis и возвращает ключи, чей срок наступил. Таймеры ключей, которые
+   * с тех пор перезаписали или удалили, остаются в колесе и отбрасываются здесь.
+   */
+  List<byte[]> due(long nowMillis) {
+    List<TimingWheel.Timer> fired;
+    synchronized (wheel) {
+      fired = wheel.advance(nowMillis);
+    }
+    List<byte[]> keys = new ArrayList<>();
+    for (TimingWheel.Timer timer : fired) {
+      Long deadline = deadlines.get(new ByteWrapper(timer.key()));
+      if (deadline != null && deadline == timer.deadlineMillis()) {
+        keys.add(timer.key());
+      }
+    }
+    return keys;
+  }
+
+  /**
+   * Переписывает журнал, если снятых и замененных сроков в нем стало больше, чем живых.
+   */
+  void compactIfNeeded() throws IOException {
+    if (records.get() > 2 * deadlines.size() + 1024) {
+      logLock.writeLock().lock();
+      try {
+        compact();
+      } finally {
+        logLock.writeLock().unlock();
+      }
+    }
+  }
+
+  /**
+   * Сбрасывает на диск записи, дописанные до вызова.
+   */
+  void sync() throws IOException {
+    if (directoryUnsynced) {
+      directoryUnsynced = false;
+      FileChannelCache.syncDirectory(logFile.getParentFile().toPath());
+    }
+    FileChannel current = channel;
+    if (current == null) {
+      return;
+    }
+    try {
+      current.force(false);
+    } catch (ClosedChannelException e) {
+      // compacted in the meantime, the new log is already on disk
+    }
+  }
+
+  private void append(byte[] record) throws IOException {
+    FileChannel current = channel;
+    if (current == null) {
+      synchronized (this) {
+        if (channel == null) {
+          channel = ConfigSaver.openLog(logFile);
+          directoryUnsynced = true;
+        }
+        current = channel;
+      }
+    }
+    ByteBuffer buffer = ConfigSaver.frameLogRecord(record);
+    // one write per record; a torn, zero-filled or garbage tail fails its checksum on replay
+    while (buffer.hasRemaining()) {
+      current.write(buffer);
+    }
+    records.incrementAndGet();
+  }
+
+  /**
+   * Заменяет журнал файлом с одной записью на каждый живой срок, а если сроков нет, удаляет его.
+   */
+  private void compact() throws IOException {
+    closeChannel();
+    if (deadlines.isEmpty()) {
+      Files.deleteIfExists(logFile.toPath());
+    } else {
+      File tmpFile = new File(logFile.getParentFile(), LOG_FILE_NAME + ".tmp");
+      ConfigSaver.saveExpiries(deadlines, tmpFile);
+      Files.move(tmpFile.toPath(), logFile.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+    }
+    FileChannelCache.syncDirectory(logFile.getParentFile().toPath());
+    records.set(deadlines.size());
+  }
+
+  private void closeChannel() throws IOException {
+    FileChannel current = channel;
+    if (current != null) {
+      channel = null;
+      current.force(false);
+      current.close();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    logLock.writeLock().lock();
+    try {
+      if (channel != null || records.get() != deadlines.size()) {
+        compact();
+      }
+    } finally {
+      logLock.writeLock().unlock();
+    }
+  }
+}
@@ -1,17 +1,89 @@
 package org.csc.java.spring2023;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
 
 /**
  * Класс-дескриптор блока, в котором хранится значение.
  * <p>
+ * Блок значения хранит CRC32C своих байт, который проверяется при чтении. У свободных участков,
+ * частей блоков и блоков, записанных до появления контрольных сумм, суммы нет
+ * ({@link #NO_CHECKSUM}).
+ * <p>
  * Если вам это потребуется, можете заменить этот record на class.
  */
-record FileBlockLocation(String fileName, int offset, int size) {
+record FileBlockLocation(String fileName, int offset, int size, long checksum) {
+
+  static final long NO_CHECKSUM = -1;
+
+  FileBlockLocation(String fileName, int offset, int size) {
+    this(fileName, offset, size, NO_CHECKSUM);
+  }
 
   public File file(Path workDir) {
     return new File(workDir.toFile(), fileName);
   }
 
+  boolean hasChecksum() {
+    return checksum != NO_CHECKSUM;
+  }
+
+  /**
+   * Тот же блок с контрольной суммой size байт data, начиная с dataOffset.
+   */
+  FileBlockLocation withChecksumOf(byte[] data, int dataOffset) {
+    return new FileBlockLocation(fileName, offset, size, checksum(data, dataOffset, size));
+  }
+
+  /**
+   * Сверяет контрольную сумму блока с size байтами data, начиная с dataOffset.
+   */
+  void verify(byte[] data, int dataOffset) throws IOException {
+    if (hasChecksum()) {
+      verify(checksum(data, dataOffset, size));
+    }
+  }
+
+  /**
+   * Сверяет контрольную сумму блока с size байтами data, начиная с позиции from.
+   */
+  void verify(ByteBuffer data, int from) throws IOException {
+    if (!hasChecksum()) {
+      return;
+    }
+    CRC32C crc = new CRC32C();
+    crc.update(data.duplicate().limit(from + size).position(from));
+    verify(crc.getValue());
+  }
+
+  void verify(long actualChecksum) throws IOException {
+    if (hasChecksum() && actualChecksum != checksum) {
+      throw new IOException("Checksum mismatch in " + fileName + " at offset " + offset
+          + ": the block is corrupted");
+    }
+  }
+
+  /**
+   * Снабжает блоки, в которые подряд записано value, контрольными суммами их частей.
+   */
+  static List<FileBlockLocation> withChecksums(List<FileBlockLocation> blocks, byte[] value) {
+    List<FileBlockLocation> checksummed = new ArrayList<>(blocks.size());
+    int valueOffset = 0;
+    for (FileBlockLocation block : blocks) {
+      checksummed.add(block.withChecksumOf(value, valueOffset));
+      valueOffset += block.size();
+    }
+    return checksummed;
+  }
+
+  private static long checksum(byte[] data, int offset, int length) {
+    CRC32C crc = new CRC32C();
+    crc.update(data, offset, length);
+    return crc.getValue();
+  }
 }
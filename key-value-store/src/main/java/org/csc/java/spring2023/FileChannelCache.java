@@ -0,0 +1,338 @@
+package org.csc.java.spring2023;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LRU-кеш открытых на чтение и запись файлов со значениями. Вместо открытия файла на каждую
+ * операцию чтение и запись идут позиционно через закешированный канал.
+ * <p>
+ * Кеш потокобезопасен и не берет общих блокировок на чтение: попадание в кеш -- это поиск в
+ * {@link ConcurrentHashMap} и атомарное увеличение счетчика ссылок канала, а файл при промахе
+ * открывается вне всяких блокировок. Общая блокировка берется только на вытеснение. Каналы
+ * выдаются в аренду: канал, вытесненный из кеша, пока им кто-то пользуется, закрывается только
+ * после возврата последней аренды. Вытесняется канал, к которому дольше всех не обращались, с
+ * точностью до гонок с одновременными обращениями.
+ */
+final class FileChannelCache implements Closeable {
+
+  private final Path workDir;
+  private final int maxOpenFiles;
+  private final ConcurrentHashMap<String, Lease> channels = new ConcurrentHashMap<>();
+  // only eviction is serialized, so that concurrent misses don't evict more than needed
+  private final Object evictionLock = new Object();
+  // files written since the last force, a created file also makes the directory unsynced
+  private final Set<String> unsynced = ConcurrentHashMap.newKeySet();
+  private volatile boolean directoryUnsynced;
+  // counted outside the cache lock, reads and writes go in parallel
+  private final LongAdder bytesRead = new LongAdder();
+  private final LongAdder bytesWritten = new LongAdder();
+  private final LongAdder filesCreated = new LongAdder();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private volatile boolean closed;
+
+  /**
+   * Сколько байт значений прочитано и записано через кеш и сколько файлов создано с момента
+   * открытия хранилища.
+   */
+  record IoStats(long bytesRead, long bytesWritten, long filesCreated) {
+
+  }
+
+  /**
+   * Аренда канала, которую нужно вернуть через {@link #close()}.
+   */
+  final class Lease implements Closeable {
+
+    private final FileChannel channel;
+    // one reference is held by the cache itself until the channel is evicted, the other one is
+    // the lease of the thread that has opened the file
+    private final AtomicInteger references = new AtomicInteger(2);
+    private final AtomicBoolean evicted = new AtomicBoolean();
+    private volatile long lastUsedNanos = System.nanoTime();
+
+    private Lease(FileChannel channel) {
+      this.channel = channel;
+    }
+
+    FileChannel channel() {
+      return channel;
+    }
+
+    /**
+     * Берет ссылку на канал, если он еще не закрыт.
+     */
+    private boolean tryRetain() {
+      while (true) {
+        int current = references.get();
+        if (current == 0) {
+          return false;
+        }
+        if (references.compareAndSet(current, current + 1)) {
+          lastUsedNanos = System.nanoTime();
+          return true;
+        }
+      }
+    }
+
+    /**
+     * Отдает ссылку кеша, канал закроется с возвратом последней аренды.
+     */
+    private void retire() throws IOException {
+      if (evicted.compareAndSet(false, true)) {
+        close();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (references.decrementAndGet() == 0) {
+        channel.close();
+      }
+    }
+  }
+
+  FileChannelCache(Path workDir, int maxOpenFiles) {
+    this.workDir = workDir;
+    this.maxOpenFiles = maxOpenFiles;
+  }
+
+  Lease acquire(String fileName) throws IOException {
+    while (true) {
+      if (closed) {
+        throw new IllegalStateException("Storage is closed");
+      }
+      Lease lease = channels.get(fileName);
+      if (lease != null) {
+        if (lease.tryRetain()) {
+          hits.increment();
+          return lease;
+        }
+        // the channel has been evicted and closed between the lookup and the retain
+        channels.remove(fileName, lease);
+        continue;
+      }
+      Lease opened = new Lease(FileChannel.open(workDir.resolve(fileName), READ, WRITE));
+      if (channels.putIfAbsent(fileName, opened) != null) {
+        // another thread has opened the same file meanwhile, use its channel
+        opened.channel.close();
+        continue;
+      }
+      misses.increment();
+      if (closed) {
+        // close() may have missed the channel put after it had cleared the cache
+        channels.remove(fileName, opened);
+        opened.channel.close();
+        throw new IllegalStateException("Storage is closed");
+      }
+      try {
+        evictIfNeeded(opened);
+      } catch (IOException e) {
+        opened.close();
+        throw e;
+      }
+      return opened;
+    }
+  }
+
+  /**
+   * Читает из файла начиная с position, пока dst не заполнится.
+   */
+  void readFully(String fileName, ByteBuffer dst, long position) throws IOException {
+    try (Lease lease = acquire(fileName)) {
+      while (dst.hasRemaining()) {
+        int read = lease.channel().read(dst, position);
+        if (read < 0) {
+          throw new EOFException("Value file " + fileName + " is shorter than expected");
+        }
+        position += read;
+        bytesRead.add(read);
+      }
+    }
+  }
+
+  /**
+   * Записывает src в файл начиная с position.
+   */
+  void writeFully(String fileName, ByteBuffer src, long position) throws IOException {
+    try (Lease lease = acquire(fileName)) {
+      while (src.hasRemaining()) {
+        int written = lease.channel().write(src, position);
+        position += written;
+        bytesWritten.add(written);
+      }
+    }
+    unsynced.add(fileName);
+  }
+
+  /**
+   * Отмечает, что в каталоге появился новый файл, так что при следующем {@link #force()} нужно
+   * сбросить на диск и сам каталог.
+   */
+  void fileCreated() {
+    filesCreated.increment();
+    directoryUnsynced = true;
+  }
+
+  /**
+   * Сбрасывает на диск все, что было записано через кеш до вызова, и новые записи каталога.
+   * Записи, сделанные во время сброса, могут попасть в него, а могут остаться до следующего.
+   */
+  void force() throws IOException {
+    if (directoryUnsynced) {
+      directoryUnsynced = false;
+      syncDirectory(workDir);
+    }
+    for (String fileName : unsynced) {
+      unsynced.remove(fileName);
+      try (Lease lease = acquire(fileName)) {
+        lease.channel().force(false);
+      } catch (NoSuchFileException e) {
+        // the file has been deleted along with everything written to it
+      }
+    }
+  }
+
+  /**
+   * Сбрасывает на диск записи каталога, чтобы созданные и переименованные файлы пережили
+   * падение ОС.
+   */
+  static void syncDirectory(Path directory) throws IOException {
+    try (FileChannel channel = FileChannel.open(directory, READ)) {
+      channel.force(true);
+    } catch (AccessDeniedException e) {
+      // some platforms (e.g. Windows) can't open a directory, their file systems sync it anyway
+    }
+  }
+
+  /**
+   * Передает count байт файла начиная с position в target через {@link FileChannel#transferTo},
+   * не копируя их через память процесса там, где это умеет ядро. target должен быть в
+   * блокирующем режиме: неблокирующий канал может не принять ни байта, и ждать его было бы нечем.
+   */
+  void transferTo(String fileName, long position, long count, WritableByteChannel target)
+      throws IOException {
+    requireBlocking(target);
+    try (Lease lease = acquire(fileName)) {
+      long end = position + count;
+      while (position < end) {
+        long transferred = lease.channel().transferTo(position, end - position, target);
+        if (transferred <= 0) {
+          if (position >= lease.channel().size()) {
+            throw new EOFException("Value file " + fileName + " is shorter than expected");
+          }
+          throw new IOException("Target channel accepted no bytes of " + fileName);
+        }
+        position += transferred;
+        bytesRead.add(transferred);
+      }
+    }
+  }
+
+  /**
+   * Бросает IllegalArgumentException, если channel -- селектируемый канал в неблокирующем режиме.
+   */
+  static void requireBlocking(Channel channel) {
+    if (channel instanceof SelectableChannel selectable && !selectable.isBlocking()) {
+      throw new IllegalArgumentException("Channel must be in blocking mode");
+    }
+  }
+
+  void truncate(String fileName, long size) throws IOException {
+    try (Lease lease = acquire(fileName)) {
+      lease.channel().truncate(size);
+    }
+  }
+
+  /**
+   * Закрывает канал файла, например перед его удалением.
+   */
+  void evict(String fileName) throws IOException {
+    Lease lease = channels.remove(fileName);
+    if (lease != null) {
+      lease.retire();
+    }
+  }
+
+  ChannelCacheStats stats() {
+    return new ChannelCacheStats(hits.sum(), misses.sum(), evictions.sum(), channels.size());
+  }
+
+  IoStats ioStats() {
+    return new IoStats(bytesRead.sum(), bytesWritten.sum(), filesCreated.sum());
+  }
+
+  /**
+   * Вытесняет давно не использованные каналы сверх лимита, кроме только что открытого opened:
+   * время обращения к соседним каналам может совпасть с точностью часов.
+   */
+  private void evictIfNeeded(Lease opened) throws IOException {
+    if (channels.size() <= maxOpenFiles) {
+      return;
+    }
+    synchronized (evictionLock) {
+      while (channels.size() > maxOpenFiles) {
+        Map.Entry<String, Lease> eldest = null;
+        for (Map.Entry<String, Lease> entry : channels.entrySet()) {
+          if (entry.getValue() != opened && (eldest == null
+              || entry.getValue().lastUsedNanos - eldest.getValue().lastUsedNanos < 0)) {
+            eldest = entry;
+          }
+        }
+        if (eldest == null) {
+          return;
+        }
+        if (channels.remove(eldest.getKey(), eldest.getValue())) {
+          evictions.increment();
+          eldest.getValue().retire();
+        }
+      }
+    }
+  }
+
+  /**
+   * Closes this stream and releases any system resources associated with it. If the stream is
+   * already closed then invoking this method has no effect.
+   *
+   * @throws IOException if an I/O error occurs
+   */
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    IOException failure = null;
+    for (String fileName : channels.keySet()) {
+      Lease lease = channels.remove(fileName);
+      if (lease == null) {
+        continue;
+      }
+      try {
+        lease.channel.close();
+      } catch (IOException e) {
+        failure = e;
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+}
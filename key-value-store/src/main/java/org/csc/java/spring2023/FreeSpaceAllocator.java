@@ -0,0 +1,133 @@
+package org.csc.java.spring2023;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Свободное место в файлах со значениями.
+ * <p>
+ * Для каждого файла свободные участки хранятся упорядоченными по смещению, так что при
+ * освобождении соседние участки склеиваются. Кроме того, все участки упорядочены по размеру, и
+ * выделение идет по принципу best-fit: берется наименьший участок, вмещающий весь запрос, а если
+ * такого нет -- наибольший, чтобы значение разбилось на как можно меньшее число блоков.
+ */
+final class FreeSpaceAllocator {
+
+  private static final Comparator<FileBlockLocation> SIZE_ORDER = Comparator
+      .comparingInt(FileBlockLocation::size)
+      .thenComparing(FileBlockLocation::fileName)
+      .thenComparingInt(FileBlockLocation::offset);
+
+  // file name -> (offset -> size)
+  private final Map<String, TreeMap<Integer, Integer>> extentsByFile = new HashMap<>();
+  private final TreeSet<FileBlockLocation> extentsBySize = new TreeSet<>(SIZE_ORDER);
+
+  /**
+   * Возвращает участок в пользование. Соседние свободные участки того же файла склеиваются.
+   */
+  void free(FileBlockLocation block) {
+    if (block.size() == 0) {
+      return;
+    }
+    TreeMap<Integer, Integer> extents = extentsByFile.computeIfAbsent(block.fileName(),
+        fileName -> new TreeMap<>());
+    int offset = block.offset();
+    int size = block.size();
+    var previous = extents.floorEntry(offset);
+    if (previous != null && previous.getKey() + previous.getValue() == offset) {
+      remove(block.fileName(), previous.getKey(), previous.getValue());
+      offset = previous.getKey();
+      size += previous.getValue();
+    }
+    var next = extents.ceilingEntry(offset + size);
+    if (next != null && next.getKey() == offset + size) {
+      remove(block.fileName(), next.getKey(), next.getValue());
+      size += next.getValue();
+    }
+    add(block.fileName(), offset, size);
+  }
+
+  /**
+   * Выделяет участок размера size, если найдется подходящий, иначе наибольший из свободных.
+   *
+   * @return выделенный участок или null, если свободного места нет
+   */
+  FileBlockLocation allocate(int size) {
+    FileBlockLocation block = allocateFitting(size);
+    if (block != null || extentsBySize.isEmpty()) {
+      return block;
+    }
+    FileBlockLocation largest = extentsBySize.last();
+    remove(largest.fileName(), largest.offset(), largest.size());
+    return largest;
+  }
+
+  /**
+   * Выделяет участок размера size, только если он поместится в один свободный участок.
+   *
+   * @return выделенный участок или null, если подходящего участка нет
+   */
+  FileBlockLocation allocateFitting(int size) {
+    FileBlockLocation extent = extentsBySize.ceiling(new FileBlockLocation("", 0, size));
+    if (extent == null) {
+      return null;
+    }
+    remove(extent.fileName(), extent.offset(), extent.size());
+    if (extent.size() > size) {
+      add(extent.fileName(), extent.offset() + size, extent.size() - size);
+    }
+    return new FileBlockLocation(extent.fileName(), extent.offset(), size);
+  }
+
+  /**
+   * Забирает последний свободный участок файла, если он доходит до конца файла.
+   *
+   * @return забранный участок или null, если конец файла занят
+   */
+  FileBlockLocation takeTail(String fileName, long fileLength) {
+    TreeMap<Integer, Integer> extents = extentsByFile.get(fileName);
+    if (extents == null) {
+      return null;
+    }
+    var last = extents.lastEntry();
+    if ((long) last.getKey() + last.getValue() != fileLength) {
+      return null;
+    }
+    remove(fileName, last.getKey(), last.getValue());
+    return new FileBlockLocation(fileName, last.getKey(), last.getValue());
+  }
+
+  /**
+   * Файлы, в которых есть свободное место.
+   */
+  List<String> files() {
+    return new ArrayList<>(extentsByFile.keySet());
+  }
+
+  List<FileBlockLocation> extents() {
+    return new ArrayList<>(extentsBySize);
+  }
+
+  int extentCount() {
+    return extentsBySize.size();
+  }
+
+  private void add(String fileName, int offset, int size) {
+    extentsByFile.computeIfAbsent(fileName, name -> new TreeMap<>()).put(offset, size);
+    extentsBySize.add(new FileBlockLocation(fileName, offset, size));
+  }
+
+  private void remove(String fileName, int offset, int size) {
+    TreeMap<Integer, Integer> extents = extentsByFile.get(fileName);
+    extents.remove(offset);
+    if (extents.isEmpty()) {
+      extentsByFile.remove(fileName);
+    }
+    extentsBySize.remove(new FileBlockLocation(fileName, offset, size));
+  }
+}
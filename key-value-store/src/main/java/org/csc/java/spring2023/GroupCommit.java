@@ -0,0 +1,137 @@
+package org.csc.java.spring2023;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Сбрасывает записанное на диск по правилам {@link KeyValueStoreOptions.Durability}.
+ * <p>
+ * В режиме {@link KeyValueStoreOptions.Durability#GROUP_COMMIT} каждая запись получает номер.
+ * Первая запись, которой не с кем разделить fsync, становится ведущей. Она ждет, пока с начала
+ * группы пройдет maxDelay или накопится maxBytes, и делает один fsync за всех, кто успел записать
+ * свои данные. Остальные записи ждут, пока fsync покроет их номер. Записи, пришедшие во время
+ * fsync, составляют следующую группу.
+ */
+final class GroupCommit {
+
+  /**
+   * Сброс на диск, который делят между собой записи группы.
+   */
+  interface SyncAction {
+
+    void sync() throws IOException;
+  }
+
+  private final KeyValueStoreOptions.Durability durability;
+  private final SyncAction action;
+  private final long maxDelayNanos;
+  private final long maxBytes;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition changed = lock.newCondition();
+  // guarded by lock; every write up to synced is on disk, every write up to failedUpTo has failed
+  private long requested;
+  private long synced;
+  private long failedUpTo;
+  private Exception failure;
+  private long groupStart;
+  private long groupStartNanos;
+  private long groupBytes;
+  private boolean leading;
+
+  GroupCommit(KeyValueStoreOptions.Durability durability, SyncAction action, long maxDelayMillis,
+      long maxBytes) {
+    this.durability = durability;
+    this.action = action;
+    this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Возвращается, когда все записанное до вызова, включая bytes байт самой записи, окажется на
+   * диске, или сразу, если сбрасывать ничего не нужно.
+   */
+  void commit(long bytes) throws IOException {
+    switch (durability) {
+      case NONE -> {
+      }
+      case SYNC_EVERY_WRITE -> action.sync();
+      case GROUP_COMMIT -> awaitGroupSync(bytes);
+    }
+  }
+
+  private void awaitGroupSync(long bytes) throws IOException {
+    lock.lock();
+    try {
+      long ticket = ++requested;
+      if (ticket == groupStart + 1) {
+        groupStartNanos = System.nanoTime();
+      }
+      groupBytes += bytes;
+      if (groupBytes >= maxBytes) {
+        changed.signalAll();
+      }
+      while (true) {
+        if (ticket <= failedUpTo) {
+          throw new IOException("Shared fsync failed", failure);
+        }
+        if (ticket <= synced) {
+          return;
+        }
+        if (leading) {
+          changed.awaitUninterruptibly();
+        } else {
+          lead();
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Собирает группу и сбрасывает ее. Вызывается под lock, но сам fsync делает без него.
+   */
+  private void lead() throws IOException {
+    leading = true;
+    boolean interrupted = false;
+    long remaining = groupStartNanos + maxDelayNanos - System.nanoTime();
+    while (groupBytes < maxBytes && remaining > 0) {
+      try {
+        remaining = changed.awaitNanos(remaining);
+      } catch (InterruptedException e) {
+        // the writers already waiting still need the fsync, so it is only started earlier
+        interrupted = true;
+        break;
+      }
+    }
+    long target = requested;
+    groupStart = target;
+    groupBytes = 0;
+    lock.unlock();
+    Exception syncFailure = null;
+    try {
+      action.sync();
+    } catch (IOException | RuntimeException e) {
+      syncFailure = e;
+    } finally {
+      lock.lock();
+    }
+    leading = false;
+    changed.signalAll();
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    if (syncFailure == null) {
+      synced = target;
+      return;
+    }
+    failedUpTo = target;
+    failure = syncFailure;
+    if (syncFailure instanceof IOException e) {
+      throw e;
+    }
+    throw (RuntimeException) syncFailure;
+  }
+}
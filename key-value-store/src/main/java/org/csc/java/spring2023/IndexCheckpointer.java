@@ -0,0 +1,144 @@
+package org.csc.java.spring2023;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Инкрементальные чекпоинты индекса. Заполненный журнал индекса запечатывается в delta-файл,
+ * который хранит только изменившиеся с прошлого чекпоинта записи. Фоновый поток сливает
+ * накопившиеся delta-файлы с базовым файлом индекса, не блокируя вызывающий поток.
+ */
+final class IndexCheckpointer implements Closeable {
+
+  private static final String deltaPrefix = ".delta.";
+
+  private final File indexFile;
+  private final ExecutorService executor;
+  private long nextDeltaNumber;
+  private volatile IOException failure;
+
+  IndexCheckpointer(File indexFile) {
+    this.indexFile = indexFile;
+    List<File> deltas = deltas();
+    nextDeltaNumber = deltas.isEmpty() ? 0 : deltaNumber(deltas.get(deltas.size() - 1)) + 1;
+    executor = Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "index-checkpoint");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Применяет еще не слитые delta-файлы к загруженному базовому индексу.
+   */
+  void replayDeltas(Map<ByteWrapper, List<FileBlockLocation>> index) throws IOException {
+    for (File delta : deltas()) {
+      ConfigSaver.replayIndexLog(delta, index);
+    }
+  }
+
+  /**
+   * Запечатывает текущий журнал в новый delta-файл и планирует фоновое слияние.
+   */
+  void checkpoint(IndexLog log) throws IOException {
+    checkFailure();
+    String deltaName = indexFile.getName() + deltaPrefix + nextDeltaNumber++;
+    log.rotate(new File(indexFile.getParentFile(), deltaName));
+    executor.execute(this::mergeDeltas);
+  }
+
+  void checkFailure() throws IOException {
+    if (failure != null) {
+      throw new IOException("Background index checkpoint failed", failure);
+    }
+  }
+
+  private void mergeDeltas() {
+    if (failure != null) {
+      return;
+    }
+    List<File> deltas = deltas();
+    if (deltas.isEmpty()) {
+      return;
+    }
+    try {
+      // only the changed keys are held in memory, the base index is streamed through
+      Map<ByteWrapper, List<FileBlockLocation>> changes = new HashMap<>();
+      for (File delta : deltas) {
+        ConfigSaver.replayIndexLog(delta, changesTo(changes));
+      }
+      File tmpFile = new File(indexFile.getParentFile(), indexFile.getName() + ".tmp");
+      ConfigSaver.mergeIndex(indexFile, changes, tmpFile);
+      Files.move(tmpFile.toPath(), indexFile.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+      FileChannelCache.syncDirectory(indexFile.getParentFile().toPath());
+      // deleting oldest first leaves a suffix of deltas on a crash, replaying it is idempotent
+      for (File delta : deltas) {
+        Files.delete(delta.toPath());
+      }
+    } catch (IOException e) {
+      failure = e;
+    }
+  }
+
+  /**
+   * Собирает изменения из delta-файлов: удаленный ключ отображается в null.
+   */
+  private static IndexLog.Visitor changesTo(Map<ByteWrapper, List<FileBlockLocation>> changes) {
+    return new IndexLog.Visitor() {
+      @Override
+      public void upsert(byte[] key, List<FileBlockLocation> blocks) {
+        changes.put(new ByteWrapper(key), blocks);
+      }
+
+      @Override
+      public void remove(byte[] key) {
+        changes.put(new ByteWrapper(key), null);
+      }
+    };
+  }
+
+  private List<File> deltas() {
+    String prefix = indexFile.getName() + deltaPrefix;
+    File[] files = indexFile.getParentFile().listFiles(
+        (dir, name) -> name.startsWith(prefix));
+    List<File> deltas = new ArrayList<>(files == null ? List.of() : List.of(files));
+    deltas.sort(Comparator.comparingLong(IndexCheckpointer::deltaNumber));
+    return deltas;
+  }
+
+  private static long deltaNumber(File delta) {
+    String name = delta.getName();
+    return Long.parseLong(name.substring(name.lastIndexOf('.') + 1));
+  }
+
+  /**
+   * Дожидается уже запланированных слияний.
+   */
+  @Override
+  public void close() throws IOException {
+    executor.shutdown();
+    try {
+      if (!executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS)) {
+        throw new IOException("Index checkpoint did not finish");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for index checkpoint");
+    }
+    checkFailure();
+  }
+}
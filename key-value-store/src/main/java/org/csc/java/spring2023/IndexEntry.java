@@ -0,0 +1,10 @@
+package org.csc.java.spring2023;
+
+import java.util.List;
+
+/**
+ * Связь ключа с блоками, в которых хранится его значение.
+ */
+record IndexEntry(byte[] key, List<FileBlockLocation> blocks) {
+
+}
@@ -0,0 +1,72 @@
+package org.csc.java.spring2023;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Размер индекса и фрагментация значений, которые не пересчитываются обходом индекса, а
+ * поправляются при каждом его изменении. Изменения приходят под блокировками полос писателей.
+ * <p>
+ * Начальные значения считаются одним обходом индекса при первом запросе, пока заблокированы все
+ * полосы, а до него изменения не учитываются: хранилище, у которого метрики не спрашивают, за
+ * них не платит.
+ */
+final class IndexGauges {
+
+  private final LongAdder entries = new LongAdder();
+  // entries with at least one block, an empty value takes none
+  private final LongAdder values = new LongAdder();
+  private final LongAdder blocks = new LongAdder();
+  private volatile boolean counting;
+
+  boolean isCounting() {
+    return counting;
+  }
+
+  /**
+   * Считает начальные значения. Вызывается, пока индекс никто не меняет.
+   */
+  void start(Iterator<IndexEntry> indexEntries) {
+    while (indexEntries.hasNext()) {
+      count(indexEntries.next().blocks(), 1);
+    }
+    counting = true;
+  }
+
+  /**
+   * Учитывает, что ключ указывал на oldBlocks, а теперь указывает на newBlocks; null значит, что
+   * ключа нет.
+   */
+  void replaced(List<FileBlockLocation> oldBlocks, List<FileBlockLocation> newBlocks) {
+    if (!counting) {
+      return;
+    }
+    if (oldBlocks != null) {
+      count(oldBlocks, -1);
+    }
+    if (newBlocks != null) {
+      count(newBlocks, 1);
+    }
+  }
+
+  private void count(List<FileBlockLocation> valueBlocks, int sign) {
+    entries.add(sign);
+    if (!valueBlocks.isEmpty()) {
+      values.add(sign);
+      blocks.add((long) sign * valueBlocks.size());
+    }
+  }
+
+  long entries() {
+    return entries.sum();
+  }
+
+  /**
+   * Доля блоков, без которых значения поместились бы каждое в один блок.
+   */
+  double fragmentation() {
+    long totalBlocks = blocks.sum();
+    return totalBlocks <= 0 ? 0 : (double) (totalBlocks - values.sum()) / totalBlocks;
+  }
+}
@@ -0,0 +1,183 @@
+package org.csc.java.spring2023;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only журнал изменений индекса. Каждый {@code add}/{@code remove} и каждый набор изменений
+ * дописывает одну запись с контрольной суммой, при открытии журнал проигрывается поверх последнего
+ * снимка индекса до первой испорченной записи, см. {@link ConfigSaver#replayLog}.
+ */
+final class IndexLog implements Closeable {
+
+  static final byte UPSERT = 1;
+  static final byte REMOVE = 2;
+  static final byte BATCH = 3;
+
+  private final File logFile;
+  private volatile FileChannel channel;
+  private volatile boolean directoryUnsynced;
+  private int records;
+
+  record ReplayResult(int records, long validLength, boolean checksummed) {
+
+  }
+
+  /**
+   * Получает изменения при проигрывании журнала.
+   */
+  interface Visitor {
+
+    void upsert(byte[] key, List<FileBlockLocation> blocks);
+
+    void remove(byte[] key);
+
+    static Visitor applyingTo(Map<ByteWrapper, List<FileBlockLocation>> index) {
+      return new Visitor() {
+        @Override
+        public void upsert(byte[] key, List<FileBlockLocation> blocks) {
+          index.put(new ByteWrapper(key), blocks);
+        }
+
+        @Override
+        public void remove(byte[] key) {
+          index.remove(new ByteWrapper(key));
+        }
+      };
+    }
+  }
+
+  /**
+   * Открывает журнал и применяет уже записанные в нем изменения к индексу.
+   */
+  IndexLog(File logFile, Map<ByteWrapper, List<FileBlockLocation>> index) throws IOException {
+    this(logFile, Visitor.applyingTo(index));
+  }
+
+  /**
+   * Открывает журнал и передает уже записанные в нем изменения visitor.
+   */
+  IndexLog(File logFile, Visitor visitor) throws IOException {
+    this.logFile = logFile;
+    if (logFile.createNewFile()) {
+      records = 0;
+      directoryUnsynced = true;
+    } else {
+      ReplayResult replayed = ConfigSaver.replayIndexLog(logFile, visitor);
+      records = replayed.records();
+      if (replayed.checksummed() || replayed.validLength() == 0) {
+        truncateTo(replayed.validLength());
+      } else {
+        // new records carry checksums, so the records written before them get them too
+        ConfigSaver.upgradeLog(logFile, replayed.validLength());
+      }
+    }
+    channel = ConfigSaver.openLog(logFile);
+  }
+
+  void appendUpsert(byte[] key, List<FileBlockLocation> blocks) throws IOException {
+    append(ConfigSaver.encodeIndexRecord(UPSERT, key, blocks));
+  }
+
+  void appendRemove(byte[] key) throws IOException {
+    append(ConfigSaver.encodeIndexRecord(REMOVE, key, null));
+  }
+
+  /**
+   * Дописывает изменения набора одной записью. Для решения о сжатии она считается за столько
+   * записей, сколько в ней изменений.
+   */
+  void appendBatch(List<IndexEntry> upserts, List<byte[]> removes) throws IOException {
+    append(ConfigSaver.encodeIndexBatch(upserts, removes));
+    records += upserts.size() + removes.size() - 1;
+  }
+
+  /**
+   * Количество записей в журнале с момента последнего снимка.
+   */
+  int records() {
+    return records;
+  }
+
+  /**
+   * Переносит накопленные записи в файл target и начинает журнал заново. Старый журнал перед этим
+   * сбрасывается на диск, так что {@link #force()} о нем заботиться уже не нужно.
+   */
+  void rotate(File target) throws IOException {
+    channel.force(false);
+    channel.close();
+    Files.move(logFile.toPath(), target.toPath(), ATOMIC_MOVE);
+    channel = ConfigSaver.openLog(logFile);
+    directoryUnsynced = true;
+    records = 0;
+  }
+
+  /**
+   * Сбрасывает на диск записи, дописанные до вызова. Не требует внешней синхронизации, так что
+   * вызывающий может не держать блокировку индекса, пока ждет диска.
+   */
+  void force() throws IOException {
+    if (directoryUnsynced) {
+      directoryUnsynced = false;
+      FileChannelCache.syncDirectory(logFile.getParentFile().toPath());
+    }
+    FileChannel current = channel;
+    if (current == null) {
+      return;
+    }
+    try {
+      current.force(false);
+    } catch (ClosedChannelException e) {
+      // rotated or closed in the meantime, both force the channel before closing it
+    }
+  }
+
+  private void append(byte[] record) throws IOException {
+    ByteBuffer buffer = ConfigSaver.frameLogRecord(record);
+    long start = channel.position();
+    // one write per record, so a crash can only leave a torn tail which is dropped on replay
+    try {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    } catch (IOException e) {
+      // the caller treats a failed append as not applied, so the record must not stay behind
+      try {
+        channel.truncate(start);
+      } catch (IOException | RuntimeException suppressed) {
+        e.addSuppressed(suppressed);
+      }
+      throw e;
+    }
+    records++;
+  }
+
+  private void truncateTo(long length) throws IOException {
+    if (logFile.length() == length) {
+      return;
+    }
+    try (FileChannel truncated = FileChannel.open(logFile.toPath(), WRITE)) {
+      truncated.truncate(length);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (channel == null) {
+      return;
+    }
+    channel.force(false);
+    channel.close();
+    channel = null;
+  }
+}
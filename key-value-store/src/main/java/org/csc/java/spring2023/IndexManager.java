@@ -2,19 +2,70 @@ package org.csc.java.spring2023;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
 
 interface IndexManager extends Closeable {
 
   /**
-   * Создает связь key -> listOf(FileBlockLocation) в индексе
+   * Создает связь key -> listOf(FileBlockLocation) в индексе. Если бросает исключение, индекс не
+   * изменился
    */
   void add(byte[] key, List<FileBlockLocation> writtenBlocks) throws IOException;
 
   void remove(byte[] key) throws IOException;
 
+  /**
+   * Добавляет связи upserts и удаляет ключи removes. Если у индекса есть журнал, все изменения
+   * попадают в него одной записью и после падения восстанавливаются либо все, либо никакие.
+   * Реализации с журналом применяют набор целиком или, бросив исключение, не применяют вовсе.
+   */
+  default void applyBatch(List<IndexEntry> upserts, List<byte[]> removes) throws IOException {
+    for (IndexEntry entry : upserts) {
+      add(entry.key(), entry.blocks());
+    }
+    for (byte[] key : removes) {
+      remove(key);
+    }
+  }
+
   /**
    * Возвращает список блоков, в которых хранится значение Null, если такого ключа не было.
    */
   List<FileBlockLocation> getFileBlocksLocations(byte[] key) throws IOException;
+
+  /**
+   * Сбрасывает на диск все изменения, сделанные до вызова, чтобы они пережили падение ОС.
+   * Изменения, которые делаются во время сброса, не ждут его окончания.
+   */
+  void sync() throws IOException;
+
+  /**
+   * Перебирает все записи индекса. Перебор слабо согласован: индекс можно менять во время
+   * перебора, и сделанные при этом изменения могут как попасть в него, так и нет.
+   */
+  Iterator<IndexEntry> entries() throws IOException;
+
+  /**
+   * Перебирает записи с ключами из [from, to) по возрастанию в беззнаковом лексикографическом
+   * порядке; null вместо границы снимает ограничение. Перебор слабо согласован, как и
+   * {@link #entries()}. Упорядоченные индексы перебирают диапазон лениво, а по умолчанию все
+   * подходящие записи собираются и сортируются.
+   */
+  default Iterator<IndexEntry> range(byte[] from, byte[] to) throws IOException {
+    List<IndexEntry> matching = new ArrayList<>();
+    Iterator<IndexEntry> all = entries();
+    while (all.hasNext()) {
+      IndexEntry entry = all.next();
+      if ((from == null || Arrays.compareUnsigned(entry.key(), from) >= 0)
+          && (to == null || Arrays.compareUnsigned(entry.key(), to) < 0)) {
+        matching.add(entry);
+      }
+    }
+    matching.sort(Comparator.comparing(IndexEntry::key, Arrays::compareUnsigned));
+    return matching.iterator();
+  }
 }
@@ -4,38 +4,96 @@ package org.csc.java.spring2023;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
+/**
+ * Индекс в памяти. Чтения идут без блокировок, изменения упорядочены, чтобы журнал совпадал с
+ * порядком изменений в таблице. Упорядоченный индекс хранит ключи в skip list и перебирает
+ * диапазоны ключей без сортировки.
+ */
 public class IndexManagerImpl implements IndexManager {
 
   private static final String fileName = "index";
-  private Map<ByteWrapper, List<FileBlockLocation>> index;
+  private static final String logFileName = "index.log";
+  private volatile Map<ByteWrapper, List<FileBlockLocation>> index;
   private final File indexFile;
+  private final IndexLog log;
+  private final IndexCheckpointer checkpointer;
+  // a checkpoint that failed after its change was applied, reported by the next change
+  private IOException checkpointFailure;
 
   public IndexManagerImpl(Path workDir) throws IOException {
+    this(workDir, false);
+  }
+
+  public IndexManagerImpl(Path workDir, boolean ordered) throws IOException {
     indexFile = new File(workDir.toString(), fileName);
     if (indexFile.createNewFile()) {
-      index = new HashMap<>();
+      index = ordered ? new ConcurrentSkipListMap<>() : new ConcurrentHashMap<>();
+      ConfigSaver.saveIndex(index, indexFile);
     } else {
-      index = ConfigSaver.loadIndex(indexFile);
+      var loaded = ConfigSaver.loadIndex(indexFile);
+      index = ordered ? new ConcurrentSkipListMap<>(loaded) : loaded;
+    }
+    checkpointer = new IndexCheckpointer(indexFile);
+    try {
+      checkpointer.replayDeltas(index);
+      log = new IndexLog(new File(workDir.toString(), logFileName), index);
+    } catch (IOException | RuntimeException e) {
+      // stops the checkpoint thread, nothing has been scheduled on it yet
+      try {
+        checkpointer.close();
+      } catch (IOException | RuntimeException suppressed) {
+        e.addSuppressed(suppressed);
+      }
+      throw e;
     }
-
   }
 
 
   /**
-   * Создает связь key -> listOf(FileBlockLocation) в индексе.
+   * Создает связь key -> listOf(FileBlockLocation) в индексе. Исключение значит, что индекс не
+   * изменился: ошибка чекпоинта после изменения откладывается до следующего изменения.
    */
   @Override
-  public void add(byte[] key, List<FileBlockLocation> writtenBlocks) {
+  public synchronized void add(byte[] key, List<FileBlockLocation> writtenBlocks)
+      throws IOException {
+    checkWritable();
+    log.appendUpsert(key, writtenBlocks);
     index.put(new ByteWrapper(key), writtenBlocks);
+    compactIfNeeded();
   }
 
   @Override
-  public void remove(byte[] key) {
-    index.remove(new ByteWrapper(key));
+  public synchronized void remove(byte[] key) throws IOException {
+    checkWritable();
+    if (index.containsKey(new ByteWrapper(key))) {
+      log.appendRemove(key);
+      index.remove(new ByteWrapper(key));
+      compactIfNeeded();
+    }
+  }
+
+  /**
+   * Применяет все изменения набора одной записью журнала.
+   */
+  @Override
+  public synchronized void applyBatch(List<IndexEntry> upserts, List<byte[]> removes)
+      throws IOException {
+    var current = checkWritable();
+    log.appendBatch(upserts, removes);
+    for (IndexEntry entry : upserts) {
+      current.put(new ByteWrapper(entry.key()), entry.blocks());
+    }
+    for (byte[] key : removes) {
+      current.remove(new ByteWrapper(key));
+    }
+    compactIfNeeded();
   }
 
   /**
@@ -43,25 +101,116 @@ public class IndexManagerImpl implements IndexManager {
    */
   @Override
   public List<FileBlockLocation> getFileBlocksLocations(byte[] key) {
-    if (index == null) {
-      throw new IllegalStateException("Storage is closed");
+    return checkOpen().get(new ByteWrapper(key));
+  }
+
+  /**
+   * Сбрасывает журнал без блокировки индекса: записанные до вызова изменения уже в нем.
+   */
+  @Override
+  public void sync() throws IOException {
+    checkOpen();
+    log.force();
+  }
+
+  @Override
+  public Iterator<IndexEntry> entries() {
+    Iterator<Map.Entry<ByteWrapper, List<FileBlockLocation>>> iterator = checkOpen().entrySet()
+        .iterator();
+    return new Iterator<>() {
+      @Override
+      public boolean hasNext() {
+        return iterator.hasNext();
+      }
+
+      @Override
+      public IndexEntry next() {
+        var entry = iterator.next();
+        return new IndexEntry(entry.getKey().getBytes(), entry.getValue());
+      }
+    };
+  }
+
+  /**
+   * В упорядоченном индексе перебирает поддиапазон skip list, иначе сортирует подходящие записи.
+   */
+  @Override
+  public Iterator<IndexEntry> range(byte[] from, byte[] to) throws IOException {
+    if (!(checkOpen() instanceof NavigableMap<ByteWrapper, List<FileBlockLocation>> sorted)) {
+      return IndexManager.super.range(from, to);
     }
-    return index.get(new ByteWrapper(key));
+    NavigableMap<ByteWrapper, List<FileBlockLocation>> subMap = sorted;
+    if (from != null) {
+      subMap = subMap.tailMap(new ByteWrapper(from), true);
+    }
+    if (to != null) {
+      subMap = subMap.headMap(new ByteWrapper(to), false);
+    }
+    Iterator<Map.Entry<ByteWrapper, List<FileBlockLocation>>> iterator = subMap.entrySet()
+        .iterator();
+    return new Iterator<>() {
+      @Override
+      public boolean hasNext() {
+        return iterator.hasNext();
+      }
+
+      @Override
+      public IndexEntry next() {
+        var entry = iterator.next();
+        return new IndexEntry(entry.getKey().getBytes(), entry.getValue());
+      }
+    };
   }
 
   /**
    * Closes this stream and releases any system resources associated with it. If the stream is
    * already closed then invoking this method has no effect.
+   * <p>
+   * All changes are already in the log, so closing only waits for a running checkpoint and never
+   * rewrites the index itself.
    *
    * @throws IOException if an I/O error occurs
    */
   @Override
-  public void close() throws IOException {
+  public synchronized void close() throws IOException {
     if (index == null) {
       return;
     }
-    ConfigSaver.saveIndex(index, indexFile);
+    log.close();
+    checkpointer.close();
     index = null;
   }
 
+  private Map<ByteWrapper, List<FileBlockLocation>> checkOpen() {
+    var current = index;
+    if (current == null) {
+      throw new IllegalStateException("Storage is closed");
+    }
+    return current;
+  }
+
+  /**
+   * Seals the log into a delta once it holds more records than the index has entries. Folding
+   * deltas into the base file costs O(index size) and runs in the background after as many
+   * appends, so it is amortized O(1) and never blocks the caller. It runs after the change has
+   * been applied, so a failure is kept and thrown by the next change before it touches anything.
+   */
+  private void compactIfNeeded() {
+    if (log.records() <= index.size()) {
+      return;
+    }
+    try {
+      checkpointer.checkpoint(log);
+    } catch (IOException e) {
+      checkpointFailure = e;
+    }
+  }
+
+  private Map<ByteWrapper, List<FileBlockLocation>> checkWritable() throws IOException {
+    var current = checkOpen();
+    if (checkpointFailure != null) {
+      throw new IOException("Index checkpoint failed", checkpointFailure);
+    }
+    return current;
+  }
 }
@@ -3,6 +3,14 @@ package org.csc.java.spring2023;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
 
 public interface KeyValueStore extends Closeable {
 
@@ -21,17 +29,132 @@ public interface KeyValueStore extends Closeable {
    */
   byte[] loadValue(byte[] key) throws IOException;
 
+  /**
+   * Читает значение целиком в dst начиная с его позиции и сдвигает позицию. Возвращает размер
+   * значения или -1, если такого ключа нет. Если значение не помещается, бросает
+   * {@link java.nio.BufferOverflowException} и не трогает dst
+   */
+  int readValue(byte[] key, ByteBuffer dst) throws IOException;
+
+  /**
+   * Возвращает размер значения в байтах или -1, если такого ключа нет
+   */
+  int valueSize(byte[] key) throws IOException;
+
+  /**
+   * Передает значение в target средствами ядра ({@link java.nio.channels.FileChannel#transferTo}),
+   * не копируя его через кучу. Возвращает число переданных байт. Контрольные суммы блоков при этом
+   * не проверяются, для этого есть {@link #scrub}. Неблокирующий target не поддерживается: для него
+   * бросается IllegalArgumentException
+   */
+  long transferValueTo(byte[] key, WritableByteChannel target) throws IOException;
+
+  /**
+   * Считывает значения нескольких ключей, упорядочивая чтения с диска по их расположению.
+   * Возвращает значения в порядке ключей, null для отсутствующих ключей
+   */
+  List<byte[]> loadValues(Collection<byte[]> keys) throws IOException;
+
   /**
    * Записывает новое значение по ключу. Если ключ уже существует в базе, тогда перезаписывает
    * старое значение
    */
   void upsert(byte[] key, byte[] value) throws IOException;
 
+  /**
+   * Записывает значение, которое живет ttl: после этого чтения его не видят, а фоновый сборщик
+   * удаляет его и освобождает место. Обычная запись по ключу снимает срок
+   */
+  void upsert(byte[] key, byte[] value, Duration ttl) throws IOException;
+
+  /**
+   * Записывает по ключу значение, прочитанное из source до конца потока. Длина значения заранее не
+   * известна, а целиком в памяти оно не держится. Значение становится видно только после того, как
+   * поток дочитан; если чтение не удалось, старое значение остается на месте
+   */
+  void upsertStream(byte[] key, InputStream source) throws IOException;
+
+  /**
+   * То же, что {@link #upsertStream(byte[], InputStream)}, но читает значение из канала.
+   * Неблокирующий source не поддерживается: для него бросается IllegalArgumentException
+   */
+  void upsertChannel(byte[] key, ReadableByteChannel source) throws IOException;
+
+  /**
+   * Лениво перебирает ключи из [fromKey, toKey) по возрастанию в беззнаковом лексикографическом
+   * порядке; null вместо границы снимает ограничение. Перебор слабо согласован: изменения,
+   * сделанные во время перебора, могут как попасть в него, так и нет. Без упорядоченного индекса
+   * ({@link KeyValueStoreOptions.IndexType#SORTED_IN_MEMORY} или
+   * {@link KeyValueStoreOptions.IndexType#LSM_TREE}) подходящие ключи сначала собираются и
+   * сортируются
+   */
+  Iterator<ScanEntry> scan(byte[] fromKey, byte[] toKey) throws IOException;
+
+  /**
+   * Перебирает ключи, начинающиеся с prefix, по возрастанию
+   */
+  default Iterator<ScanEntry> scanPrefix(byte[] prefix) throws IOException {
+    return scan(prefix, prefixEnd(prefix));
+  }
+
+  /**
+   * Наименьший ключ, больший всех ключей с префиксом prefix, или null, если такого нет.
+   */
+  private static byte[] prefixEnd(byte[] prefix) {
+    for (int i = prefix.length - 1; i >= 0; i--) {
+      if (prefix[i] != (byte) 0xFF) {
+        byte[] end = Arrays.copyOf(prefix, i + 1);
+        end[i]++;
+        return end;
+      }
+    }
+    return null;
+  }
+
   /**
    * Удаляет значение из базы. Если значение существовало, то возвращает true, иначе false.
    */
   boolean remove(byte[] key) throws IOException;
 
+  /**
+   * Применяет все изменения набора: значения пишутся большими последовательными кусками, а индекс
+   * меняется разом. Пока набор применяется, другие записи по его ключам ждут
+   */
+  void write(WriteBatch batch) throws IOException;
+
+  /**
+   * Переписывает подряд значения, разбитые больше чем на fragmentThreshold блоков, и освобождает на
+   * диске место, не занятое значениями. Остальные операции во время дефрагментации не
+   * блокируются надолго.
+   */
+  DefragmentationReport defragment(int fragmentThreshold) throws IOException;
+
+  /**
+   * Проверяет контрольные суммы всех живых значений в parallelism потоков, читая каждый файл по
+   * возрастанию смещений. Чтения и записи на время проверки не останавливаются
+   */
+  ScrubReport scrub(int parallelism) throws IOException;
+
+  /**
+   * Возвращает снимок хранилища на текущий момент, доступный только для чтения. Снимок видит
+   * каждую запись целиком или не видит вовсе, а блоки его значений не переиспользуются, пока он не
+   * закрыт, даже если значения перезапишут или удалят. Поэтому снимок нужно закрывать
+   */
+  KeyValueStore snapshot() throws IOException;
+
+  /**
+   * Возвращает распределение времени записей (upsert, remove, write), включая ожидание сброса на
+   * диск, которого требует {@link KeyValueStoreOptions.Durability}
+   */
+  LatencyStats writeLatency();
+
+  /**
+   * Возвращает распределения времени операций, счетчики ввода-вывода, статистику кешей и состояние
+   * индекса и свободного места. Первый вызов один раз обходит индекс, дальше метрики
+   * поддерживаются на ходу
+   */
+  StoreMetrics metrics() throws IOException;
+
   /**
    * TestOnly
    * <p>
@@ -4,6 +4,8 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.util.List;
+import java.util.Objects;
 
 public final class KeyValueStoreFactory {
 
@@ -11,6 +13,12 @@ public final class KeyValueStoreFactory {
   }
 
   public static KeyValueStore create(Path workingDir, int valueFileSize) throws IOException {
+    return create(workingDir, valueFileSize, KeyValueStoreOptions.defaults());
+  }
+
+  public static KeyValueStore create(Path workingDir, int valueFileSize,
+      KeyValueStoreOptions options) throws IOException {
+    Objects.requireNonNull(options, "options can't be null");
     if (valueFileSize <= 0) {
       throw new IllegalArgumentException(
           "maxValueFileSize must be positive, but got " + valueFileSize);
@@ -21,6 +29,28 @@ public final class KeyValueStoreFactory {
     if (!Files.isDirectory(workingDir)) {
       throw new IllegalArgumentException("workingDir must be a directory");
     }
-    return new KeyValueStoreImpl(workingDir, valueFileSize);
+    return new KeyValueStoreImpl(workingDir, valueFileSize, options);
+  }
+
+  public static AsyncKeyValueStore createAsync(Path workingDir, int valueFileSize,
+      KeyValueStoreOptions options) throws IOException {
+    KeyValueStore store = create(workingDir, valueFileSize, options);
+    return new AsyncKeyValueStoreImpl(store, options.asyncIoThreads(),
+        options.asyncQueueCapacity());
+  }
+
+  /**
+   * Создает хранилище, которое раскладывает ключи по хешу между хранилищами в workingDirs. Потом
+   * директории нужно передавать в том же порядке.
+   */
+  public static KeyValueStore createSharded(List<Path> workingDirs, int valueFileSize,
+      KeyValueStoreOptions options) throws IOException {
+    Objects.requireNonNull(workingDirs, "workingDirs can't be null");
+    Objects.requireNonNull(options, "options can't be null");
+    if (valueFileSize <= 0) {
+      throw new IllegalArgumentException(
+          "maxValueFileSize must be positive, but got " + valueFileSize);
+    }
+    return new ShardedKeyValueStore(List.copyOf(workingDirs), valueFileSize, options);
   }
 }
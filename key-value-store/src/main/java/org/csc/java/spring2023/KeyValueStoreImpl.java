@@ -1,22 +1,200 @@
 package org.csc.java.spring2023;
 
+import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.InputStream;
 import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32C;
+import javax.management.ObjectName;
 
+/**
+ * Потокобезопасное хранилище. Чтения не берут блокировок, писатели одного ключа упорядочены
+ * блокировкой полосы его хеша. Блоки перезаписанного или удаленного значения переиспользуются
+ * только после того, как закроются открытые на них потоки, поэтому открытые через
+ * {@link #openValueStream} потоки нужно закрывать.
+ */
 class KeyValueStoreImpl implements KeyValueStore {
 
+  private static final long COMPACTION_INTERVAL_MILLIS = 1000;
+  private static final int WRITE_LOCK_STRIPES = 64;
+  private static final int MAX_EXPIRED_PER_BATCH = 1024;
+  private static final String INDEX_TYPE_FILE_NAME = "index.type";
+
   private final IndexManager indexManager;
   private final ValueStoreManager valueStoreManager;
+  private final BlockReclaimer reclaimer;
+  // null when the value cache is disabled
+  private final ValueCache valueCache;
+  // null when values are stored without frame headers, see ValueFormat
+  private final ValueFormat valueFormat;
+  private final ExpiryTable expiries;
+  // values are synced before they are indexed, so a synced index never points to lost data
+  private final GroupCommit valueCommit;
+  private final GroupCommit indexCommit;
+  private final LatencyHistogram writeLatency = new LatencyHistogram();
+  private final LatencyHistogram containsLatency = new LatencyHistogram();
+  private final LatencyHistogram loadLatency = new LatencyHistogram();
+  private final LatencyHistogram upsertLatency = new LatencyHistogram();
+  private final LatencyHistogram removeLatency = new LatencyHistogram();
+  private final IndexGauges indexGauges = new IndexGauges();
+  private final StripedLocks writeLocks = new StripedLocks(WRITE_LOCK_STRIPES);
+  // open snapshot views, writers record the old state of a key in each of them
+  private final Set<SnapshotView> snapshotViews = ConcurrentHashMap.newKeySet();
+  // writers hold the read lock from their first write to the last retire, close takes the write one
+  private final ReentrantReadWriteLock closeGate = new ReentrantReadWriteLock();
+  private final ScheduledExecutorService compactor;
+  private volatile IOException compactionFailure;
+  // started under this with the first expiring key
+  private volatile ScheduledExecutorService expiryReaper;
+  private volatile IOException expiryFailure;
+  // bumped by the reaper between removing expired keys and clearing their deadlines
+  private final AtomicLong reaps = new AtomicLong();
+  // null unless the metrics are registered in JMX
+  private final ObjectName jmxName;
+  private final AtomicBoolean closed = new AtomicBoolean();
 
-  KeyValueStoreImpl(Path workDir, int fileSize) throws IOException {
-    indexManager = new IndexManagerImpl(workDir);
-    valueStoreManager = new ValueStoreManagerImpl(workDir, fileSize);
+  KeyValueStoreImpl(Path workDir, int fileSize, KeyValueStoreOptions options)
+      throws IOException {
+    checkIndexType(workDir, options.indexType());
+    indexManager = switch (options.indexType()) {
+      case IN_MEMORY -> new IndexManagerImpl(workDir);
+      case SORTED_IN_MEMORY -> new IndexManagerImpl(workDir, true);
+      case MAPPED_HASH_TABLE -> new MappedIndexManager(workDir);
+      case LSM_TREE -> new LsmIndexManager(workDir, options.memtableMaxEntries());
+    };
+    try {
+      valueFormat = ValueFormat.open(workDir, options.valueCodec(), indexManager);
+      expiries = new ExpiryTable(workDir, System.currentTimeMillis());
+    } catch (IOException | RuntimeException e) {
+      indexManager.close();
+      throw e;
+    }
+    try {
+      // the index is recovered first, the free space is rebuilt from it after a crash
+      valueStoreManager = switch (options.storageMode()) {
+        case FREE_LIST -> new ValueStoreManagerImpl(workDir, fileSize, options.maxOpenFiles(),
+            indexManager);
+        case LOG_STRUCTURED -> new LogStructuredValueStoreManager(workDir, fileSize,
+            options.maxOpenFiles(), options.compactionGarbageRatio(), indexManager);
+      };
+    } catch (IOException | RuntimeException e) {
+      try {
+        expiries.close();
+        indexManager.close();
+      } catch (IOException | RuntimeException suppressed) {
+        e.addSuppressed(suppressed);
+      }
+      throw e;
+    }
+    reclaimer = new BlockReclaimer(valueStoreManager);
+    valueCommit = new GroupCommit(options.durability(), valueStoreManager::sync,
+        options.groupCommitMaxDelayMillis(), options.groupCommitMaxBytes());
+    // writers come to the index commit already grouped by the value commit, so it does not wait
+    indexCommit = new GroupCommit(options.durability(), () -> {
+      indexManager.sync();
+      expiries.sync();
+    }, 0, options.groupCommitMaxBytes());
+    valueCache = options.valueCacheBytes() > 0 ? new ValueCache(options.valueCacheBytes()) : null;
+    if (options.storageMode() == KeyValueStoreOptions.StorageMode.LOG_STRUCTURED) {
+      compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "segment-compactor");
+        thread.setDaemon(true);
+        return thread;
+      });
+      compactor.scheduleWithFixedDelay(this::compactSegmentsInBackground,
+          COMPACTION_INTERVAL_MILLIS, COMPACTION_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    } else {
+      compactor = null;
+    }
+    if (!expiries.isEmpty()) {
+      startExpiryReaper();
+    }
+    ObjectName registered = null;
+    if (options.jmxName() != null) {
+      try {
+        registered = KeyValueStoreMetricsBean.register(options.jmxName(), this);
+      } catch (RuntimeException e) {
+        try {
+          close();
+        } catch (IOException suppressed) {
+          e.addSuppressed(suppressed);
+        }
+        throw e;
+      }
+    }
+    jmxName = registered;
+  }
+
+  /**
+   * Индексы разных типов лежат в разных файлах, и хранилище, открытое с чужим типом, молча
+   * оказалось бы пустым. Поэтому тип запоминается в {@value #INDEX_TYPE_FILE_NAME}, а у хранилищ,
+   * созданных раньше, определяется по файлам индекса. Обычный и упорядоченный индексы в памяти
+   * хранятся одинаково и взаимозаменяемы.
+   */
+  private static void checkIndexType(Path workDir, KeyValueStoreOptions.IndexType indexType)
+      throws IOException {
+    File typeFile = new File(workDir.toFile(), INDEX_TYPE_FILE_NAME);
+    KeyValueStoreOptions.IndexType stored;
+    if (typeFile.exists()) {
+      stored = ConfigSaver.loadIndexType(typeFile);
+    } else if (Files.exists(workDir.resolve("index.table"))) {
+      stored = KeyValueStoreOptions.IndexType.MAPPED_HASH_TABLE;
+    } else if (Files.exists(workDir.resolve("index.manifest"))) {
+      stored = KeyValueStoreOptions.IndexType.LSM_TREE;
+    } else if (Files.exists(workDir.resolve("index"))) {
+      stored = KeyValueStoreOptions.IndexType.IN_MEMORY;
+    } else {
+      stored = null;
+    }
+    if (stored != null && storedAs(stored) != storedAs(indexType)) {
+      throw new IllegalArgumentException(
+          "Store has a " + stored + " index and can't be opened with " + indexType);
+    }
+    if (!typeFile.exists()) {
+      ConfigSaver.saveIndexType(indexType, typeFile);
+    }
+  }
+
+  private static KeyValueStoreOptions.IndexType storedAs(KeyValueStoreOptions.IndexType type) {
+    return type == KeyValueStoreOptions.IndexType.SORTED_IN_MEMORY
+        ? KeyValueStoreOptions.IndexType.IN_MEMORY : type;
   }
 
   /**
@@ -25,19 +203,47 @@ class KeyValueStoreImpl implements KeyValueStore {
   @Override
   public boolean contains(byte[] key) throws IOException {
     Objects.requireNonNull(key, "Key can't be null");
-    return indexManager.getFileBlocksLocations(key) != null;
+    checkOpen();
+    long start = System.nanoTime();
+    try {
+      return liveBlocks(key) != null;
+    } finally {
+      containsLatency.record(System.nanoTime() - start);
+    }
   }
 
   /**
-   * По ключу возвращает входной поток из которого можно (лениво) читать значение.
+   * По ключу возвращает входной поток из которого можно (лениво) читать значение. Пока поток не
+   * закрыт, его блоки не переиспользуются, даже если значение перезапишут или удалят.
    */
   @Override
   public InputStream openValueStream(byte[] key) throws IOException {
     Objects.requireNonNull(key, "Key can't be null");
-    var blocks = indexManager.getFileBlocksLocations(key);
-    if (blocks == null) {
-      throw new IOException("Key: " + new String(key) + " not found");
+    checkOpen();
+    BlockReclaimer.Pin pin = reclaimer.pin();
+    try {
+      var blocks = liveBlocks(key);
+      if (blocks == null) {
+        throw new IOException("Key: " + new String(key) + " not found");
+      }
+      return new PinnedInputStream(openValue(blocks), pin);
+    } catch (IOException | RuntimeException e) {
+      pin.close();
+      throw e;
     }
+  }
+
+  /**
+   * Блоки значения или null, если ключа нет или его срок истек, а сборщик до него еще не дошел.
+   */
+  private List<FileBlockLocation> liveBlocks(byte[] key) throws IOException {
+    if (expiries.isExpired(key, System.currentTimeMillis())) {
+      return null;
+    }
+    return indexManager.getFileBlocksLocations(key);
+  }
+
+  private InputStream openBlocks(List<FileBlockLocation> blocks) throws IOException {
     List<InputStream> streams = new ArrayList<>(blocks.size());
     for (FileBlockLocation block : blocks) {
       streams.add(valueStoreManager.openBlockStream(block));
@@ -45,14 +251,470 @@ class KeyValueStoreImpl implements KeyValueStore {
     return new SequenceInputStream(Collections.enumeration(streams));
   }
 
+  /**
+   * Открывает поток значения, распаковывая его на лету, если оно сжато.
+   */
+  private InputStream openValue(List<FileBlockLocation> blocks) throws IOException {
+    InputStream stored = openBlocks(blocks);
+    if (valueFormat == null) {
+      return stored;
+    }
+    try {
+      return valueFormat.decode(stored);
+    } catch (IOException | RuntimeException e) {
+      stored.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Поток значения, который при закрытии снимает закрепление его блоков.
+   */
+  private static final class PinnedInputStream extends FilterInputStream {
+
+    private final BlockReclaimer.Pin pin;
+
+    PinnedInputStream(InputStream in, BlockReclaimer.Pin pin) {
+      super(in);
+      this.pin = pin;
+    }
+
+    @Override
+    public int read(byte[] bytes, int off, int len) throws IOException {
+      return in.read(bytes, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        pin.close();
+      }
+    }
+  }
+
   /**
    * Полностью считывает значение в массив байтов и возвращает его.
    */
   @Override
   public byte[] loadValue(byte[] key) throws IOException {
     Objects.requireNonNull(key, "Key can't be null");
-    try (var stream = openValueStream(key)) {
-      return stream.readAllBytes();
+    checkOpen();
+    long start = System.nanoTime();
+    try (BlockReclaimer.Pin ignored = reclaimer.pin()) {
+      return loadValue(key, liveBlocks(key), true);
+    } finally {
+      loadLatency.record(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Читает значение по уже найденным блокам, которые закреплены вызывающим. Кеш используется,
+   * только если блоки взяты из текущего индекса.
+   */
+  private byte[] loadValue(byte[] key, List<FileBlockLocation> blocks, boolean useCache)
+      throws IOException {
+    if (blocks == null) {
+      throw new IOException("Key: " + new String(key) + " not found");
+    }
+    byte[] cached = useCache ? cachedValue(key, blocks) : null;
+    if (cached != null) {
+      return cached.clone();
+    }
+    byte[] value = readDecoded(blocks);
+    if (useCache) {
+      cacheValue(key, blocks, value.clone());
+    }
+    return value;
+  }
+
+  /**
+   * Читает значение прямо в dst позиционными чтениями, не создавая промежуточных буферов.
+   */
+  @Override
+  public int readValue(byte[] key, ByteBuffer dst) throws IOException {
+    Objects.requireNonNull(key, "Key can't be null");
+    Objects.requireNonNull(dst, "Buffer can't be null");
+    checkOpen();
+    long start = System.nanoTime();
+    try (BlockReclaimer.Pin ignored = reclaimer.pin()) {
+      return readValue(key, liveBlocks(key), dst, true);
+    } finally {
+      loadLatency.record(System.nanoTime() - start);
+    }
+  }
+
+  private int readValue(byte[] key, List<FileBlockLocation> blocks, ByteBuffer dst,
+      boolean useCache) throws IOException {
+    if (blocks == null) {
+      return -1;
+    }
+    byte[] cached = useCache ? cachedValue(key, blocks) : null;
+    if (cached == null && valueFormat != null) {
+      byte[] header = readHeader(blocks);
+      if (!ValueFormat.isCompressed(header)) {
+        int size = size(blocks) - ValueFormat.HEADER_SIZE;
+        if (size > dst.remaining()) {
+          throw new BufferOverflowException();
+        }
+        readPayload(blocks, header, dst);
+        return size;
+      }
+      // a compressed value has to be decoded before its size is known
+      cached = valueFormat.decode(readStored(blocks));
+      if (useCache) {
+        cacheValue(key, blocks, cached);
+      }
+    }
+    int size = cached != null ? cached.length : size(blocks);
+    if (size > dst.remaining()) {
+      throw new BufferOverflowException();
+    }
+    if (cached != null) {
+      dst.put(cached);
+    } else {
+      readBlocks(blocks, dst);
+    }
+    return size;
+  }
+
+  @Override
+  public int valueSize(byte[] key) throws IOException {
+    Objects.requireNonNull(key, "Key can't be null");
+    checkOpen();
+    if (valueFormat == null) {
+      return valueSize(key, liveBlocks(key), true);
+    }
+    try (BlockReclaimer.Pin ignored = reclaimer.pin()) {
+      return valueSize(key, liveBlocks(key), true);
+    }
+  }
+
+  /**
+   * Без сжатия размер значения -- это размер его блоков. Размер сжатого значения записан только в
+   * его заголовке на диске, так что он читается, если значения нет в кеше.
+   */
+  private int valueSize(byte[] key, List<FileBlockLocation> blocks, boolean useCache)
+      throws IOException {
+    if (blocks == null) {
+      return -1;
+    }
+    if (valueFormat == null) {
+      return size(blocks);
+    }
+    byte[] cached = useCache ? cachedValue(key, blocks) : null;
+    if (cached != null) {
+      return cached.length;
+    }
+    return ValueFormat.size(readHeader(blocks), size(blocks));
+  }
+
+  private static int size(List<FileBlockLocation> blocks) {
+    int size = 0;
+    for (FileBlockLocation block : blocks) {
+      size = Math.addExact(size, block.size());
+    }
+    return size;
+  }
+
+  private byte[] readStored(List<FileBlockLocation> blocks) throws IOException {
+    byte[] stored = new byte[size(blocks)];
+    readBlocks(blocks, ByteBuffer.wrap(stored));
+    return stored;
+  }
+
+  /**
+   * Читает значение целиком и распаковывает его. Несжатое значение читается сразу в массив своей
+   * длины, без копирования из прочитанного вместе с заголовком.
+   */
+  private byte[] readDecoded(List<FileBlockLocation> blocks) throws IOException {
+    if (valueFormat == null) {
+      return readStored(blocks);
+    }
+    byte[] header = readHeader(blocks);
+    if (ValueFormat.isCompressed(header)) {
+      return valueFormat.decode(readStored(blocks));
+    }
+    byte[] value = new byte[size(blocks) - ValueFormat.HEADER_SIZE];
+    readPayload(blocks, header, ByteBuffer.wrap(value));
+    return value;
+  }
+
+  /**
+   * Читает в dst значение без заголовка header, уже прочитанного из тех же блоков. Контрольная
+   * сумма блока, в который попал заголовок, сверяется по header и байтам, прочитанным в dst.
+   */
+  private void readPayload(List<FileBlockLocation> blocks, byte[] header, ByteBuffer dst)
+      throws IOException {
+    int headerRead = 0;
+    int limit = dst.limit();
+    try {
+      for (FileBlockLocation block : blocks) {
+        int skipped = Math.min(header.length - headerRead, block.size());
+        int from = dst.position();
+        dst.limit(from + block.size() - skipped);
+        if (skipped == 0) {
+          valueStoreManager.read(block, dst);
+          continue;
+        }
+        valueStoreManager.read(new FileBlockLocation(block.fileName(), block.offset() + skipped,
+            block.size() - skipped), dst);
+        if (block.hasChecksum()) {
+          CRC32C checksum = new CRC32C();
+          checksum.update(header, headerRead, skipped);
+          checksum.update(dst.duplicate().limit(dst.position()).position(from));
+          block.verify(checksum.getValue());
+        }
+        headerRead += skipped;
+      }
+    } finally {
+      dst.limit(limit);
+    }
+  }
+
+  private byte[] readHeader(List<FileBlockLocation> blocks) throws IOException {
+    byte[] header = new byte[ValueFormat.HEADER_SIZE];
+    readBlocks(slice(blocks, 0, header.length), ByteBuffer.wrap(header));
+    return header;
+  }
+
+  /**
+   * Возвращает блоки, в которых лежат length байт значения начиная с from.
+   */
+  private static List<FileBlockLocation> slice(List<FileBlockLocation> blocks, int from,
+      int length) {
+    List<FileBlockLocation> slice = new ArrayList<>();
+    for (FileBlockLocation block : blocks) {
+      if (length == 0) {
+        break;
+      }
+      if (from >= block.size()) {
+        from -= block.size();
+        continue;
+      }
+      int size = Math.min(block.size() - from, length);
+      slice.add(new FileBlockLocation(block.fileName(), block.offset() + from, size));
+      from = 0;
+      length -= size;
+    }
+    return slice;
+  }
+
+  private byte[] encode(byte[] value) {
+    return valueFormat == null ? value : valueFormat.encode(value);
+  }
+
+  private byte[] decode(byte[] stored) throws IOException {
+    return valueFormat == null ? stored : valueFormat.decode(stored);
+  }
+
+  private void readBlocks(List<FileBlockLocation> blocks, ByteBuffer dst) throws IOException {
+    int limit = dst.limit();
+    try {
+      for (FileBlockLocation block : blocks) {
+        dst.limit(dst.position() + block.size());
+        valueStoreManager.read(block, dst);
+      }
+    } finally {
+      dst.limit(limit);
+    }
+  }
+
+  /**
+   * Передает значение в target поблочно через {@link java.nio.channels.FileChannel#transferTo}.
+   * Сжатое значение приходится распаковывать, поэтому оно копируется через кучу.
+   */
+  @Override
+  public long transferValueTo(byte[] key, WritableByteChannel target) throws IOException {
+    Objects.requireNonNull(key, "Key can't be null");
+    Objects.requireNonNull(target, "Target can't be null");
+    checkOpen();
+    try (BlockReclaimer.Pin ignored = reclaimer.pin()) {
+      return transferValueTo(key, liveBlocks(key), target);
+    }
+  }
+
+  private long transferValueTo(byte[] key, List<FileBlockLocation> blocks,
+      WritableByteChannel target) throws IOException {
+    FileChannelCache.requireBlocking(target);
+    if (blocks == null) {
+      throw new IOException("Key: " + new String(key) + " not found");
+    }
+    if (valueFormat != null) {
+      if (ValueFormat.isCompressed(readHeader(blocks))) {
+        try (InputStream in = openValue(blocks)) {
+          return write(in, target);
+        }
+      }
+      blocks = slice(blocks, ValueFormat.HEADER_SIZE, size(blocks) - ValueFormat.HEADER_SIZE);
+    }
+    long transferred = 0;
+    for (FileBlockLocation block : blocks) {
+      valueStoreManager.transferTo(block, target);
+      transferred += block.size();
+    }
+    return transferred;
+  }
+
+  /**
+   * Переписывает поток в target кусками, без обертки {@link Channels#newOutputStream}, которая
+   * прячет частичные записи канала.
+   */
+  private static long write(InputStream in, WritableByteChannel target) throws IOException {
+    byte[] chunk = new byte[ValueStoreManager.STREAM_CHUNK_SIZE];
+    long written = 0;
+    int read;
+    while ((read = in.read(chunk)) >= 0) {
+      ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, read);
+      while (buffer.hasRemaining()) {
+        if (target.write(buffer) == 0) {
+          throw new IOException("Target channel accepted no bytes");
+        }
+      }
+      written += read;
+    }
+    return written;
+  }
+
+  /**
+   * Сначала находит блоки всех ключей, затем читает их в порядке расположения на диске, объединяя
+   * соседние участки.
+   */
+  @Override
+  public List<byte[]> loadValues(Collection<byte[]> keys) throws IOException {
+    Objects.requireNonNull(keys, "Keys can't be null");
+    checkOpen();
+    long start = System.nanoTime();
+    try (BlockReclaimer.Pin ignored = reclaimer.pin()) {
+      List<byte[]> keyList = new ArrayList<>(keys);
+      List<List<FileBlockLocation>> blocks = new ArrayList<>(keyList.size());
+      for (byte[] key : keyList) {
+        Objects.requireNonNull(key, "Key can't be null");
+        blocks.add(liveBlocks(key));
+      }
+      return loadValues(keyList, blocks, true);
+    } finally {
+      loadLatency.record(System.nanoTime() - start);
+    }
+  }
+
+  private List<byte[]> loadValues(List<byte[]> keys, List<List<FileBlockLocation>> blocks,
+      boolean useCache) throws IOException {
+    List<byte[]> values = new ArrayList<>(keys.size());
+    List<Integer> toRead = new ArrayList<>();
+    for (int i = 0; i < keys.size(); i++) {
+      var keyBlocks = blocks.get(i);
+      byte[] cached = keyBlocks == null || !useCache ? null : cachedValue(keys.get(i), keyBlocks);
+      values.add(cached == null ? null : cached.clone());
+      if (keyBlocks != null && cached == null) {
+        toRead.add(i);
+      }
+    }
+    List<byte[]> read = valueStoreManager.readValues(toRead.stream().map(blocks::get).toList());
+    for (int i = 0; i < toRead.size(); i++) {
+      int index = toRead.get(i);
+      byte[] value = decode(read.get(i));
+      values.set(index, value);
+      if (useCache) {
+        cacheValue(keys.get(index), blocks.get(index), value.clone());
+      }
+    }
+    return values;
+  }
+
+  @Override
+  public Iterator<ScanEntry> scan(byte[] fromKey, byte[] toKey) throws IOException {
+    checkOpen();
+    // every entry the range returns was in the index at this epoch or later
+    ScanEntry.ValueReader reader = new ScannedValueReader(reclaimer.epoch());
+    long reapsBefore = reaps.get();
+    Iterator<IndexEntry> entries = indexManager.range(fromKey, toKey);
+    return new Iterator<>() {
+      private IndexEntry next = findNext();
+
+      // expired keys the reaper has not removed yet are skipped
+      private IndexEntry findNext() {
+        long now = System.currentTimeMillis();
+        while (entries.hasNext()) {
+          IndexEntry entry = entries.next();
+          if (!expiries.isExpired(entry.key(), now) && !reapedSince(entry.key())) {
+            return entry;
+          }
+        }
+        return null;
+      }
+
+      /**
+       * Сборщик мог убрать истекший ключ из индекса уже после того, как перебор его прочитал, и
+       * снять срок до проверки. Тогда ключ ищется в индексе заново.
+       */
+      private boolean reapedSince(byte[] key) {
+        if (reaps.get() == reapsBefore) {
+          return false;
+        }
+        try {
+          return indexManager.getFileBlocksLocations(key) == null;
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+
+      @Override
+      public boolean hasNext() {
+        return next != null;
+      }
+
+      @Override
+      public ScanEntry next() {
+        if (next == null) {
+          throw new NoSuchElementException();
+        }
+        ScanEntry entry = new ScanEntry(reader, next.key(), next.blocks());
+        next = findNext();
+        return entry;
+      }
+    };
+  }
+
+  /**
+   * Читает значения, найденные перечислением, по их блокам, пока блоки, бывшие в индексе в начале
+   * перечисления, не начали освобождаться. После этого ключи ищутся в индексе заново.
+   */
+  private final class ScannedValueReader implements ScanEntry.ValueReader {
+
+    private final long epoch;
+
+    ScannedValueReader(long epoch) {
+      this.epoch = epoch;
+    }
+
+    @Override
+    public InputStream openValueStream(byte[] key, List<FileBlockLocation> blocks)
+        throws IOException {
+      checkOpen();
+      BlockReclaimer.Pin pin = reclaimer.pinAt(epoch);
+      if (pin == null) {
+        return KeyValueStoreImpl.this.openValueStream(key);
+      }
+      try {
+        return new PinnedInputStream(openValue(blocks), pin);
+      } catch (IOException | RuntimeException e) {
+        pin.close();
+        throw e;
+      }
+    }
+
+    @Override
+    public byte[] loadValue(byte[] key, List<FileBlockLocation> blocks) throws IOException {
+      checkOpen();
+      BlockReclaimer.Pin pin = reclaimer.pinAt(epoch);
+      if (pin == null) {
+        return KeyValueStoreImpl.this.loadValue(key);
+      }
+      try (pin) {
+        return KeyValueStoreImpl.this.loadValue(key, blocks, false);
+      }
     }
   }
 
@@ -62,24 +724,512 @@ class KeyValueStoreImpl implements KeyValueStore {
    */
   @Override
   public void upsert(byte[] key, byte[] value) throws IOException {
+    upsert(key, value, ExpiryTable.NEVER);
+  }
+
+  /**
+   * Записывает значение и назначает ключу срок, после которого чтения его не видят, а фоновый
+   * сборщик удаляет.
+   */
+  @Override
+  public void upsert(byte[] key, byte[] value, Duration ttl) throws IOException {
+    Objects.requireNonNull(ttl, "ttl can't be null");
+    if (ttl.isNegative() || ttl.isZero()) {
+      throw new IllegalArgumentException("ttl must be positive, but got " + ttl);
+    }
+    upsert(key, value, ExpiryTable.deadline(ttl, System.currentTimeMillis()));
+    if (expiryReaper == null) {
+      startExpiryReaper();
+    }
+  }
+
+  private void upsert(byte[] key, byte[] value, long deadlineMillis) throws IOException {
     Objects.requireNonNull(key, "Key can't be null");
-    remove(key);
-    indexManager.add(key, valueStoreManager.add(value));
+    Objects.requireNonNull(value, "Value can't be null");
+    long start = System.nanoTime();
+    byte[] stored = encode(value);
+    Lock gate = enterWriter();
+    try {
+      // nobody can see the new blocks before they are indexed, so they are written without locks
+      var newBlocks = valueStoreManager.add(stored);
+      commitIndex(publishWritten(key, newBlocks, deadlineMillis));
+    } finally {
+      gate.unlock();
+    }
+    long elapsed = System.nanoTime() - start;
+    writeLatency.record(elapsed);
+    upsertLatency.record(elapsed);
+  }
+
+  @Override
+  public void upsertStream(byte[] key, InputStream source) throws IOException {
+    Objects.requireNonNull(source, "Source can't be null");
+    upsertChannel(key, Channels.newChannel(source));
+  }
+
+  /**
+   * Пишет значение кусками без блокировок: пока ключ не указывает на новые блоки, их никто не
+   * видит. Блокировка ключа берется только чтобы опубликовать их в индексе.
+   */
+  @Override
+  public void upsertChannel(byte[] key, ReadableByteChannel source) throws IOException {
+    Objects.requireNonNull(key, "Key can't be null");
+    Objects.requireNonNull(source, "Source can't be null");
+    FileChannelCache.requireBlocking(source);
+    long start = System.nanoTime();
+    Lock gate = enterWriter();
+    try {
+      var newBlocks = valueStoreManager.add(
+          valueFormat == null ? source : valueFormat.encode(source));
+      commitIndex(publishWritten(key, newBlocks, ExpiryTable.NEVER));
+    } finally {
+      gate.unlock();
+    }
+    long elapsed = System.nanoTime() - start;
+    writeLatency.record(elapsed);
+    upsertLatency.record(elapsed);
+  }
+
+  /**
+   * Дожидается, пока только что записанные блоки окажутся на диске, и публикует их под
+   * блокировкой ключа. Возвращает старые блоки или null.
+   */
+  private List<FileBlockLocation> publishWritten(byte[] key, List<FileBlockLocation> newBlocks,
+      long deadlineMillis) throws IOException {
+    try {
+      valueCommit.commit(size(newBlocks));
+    } catch (IOException | RuntimeException e) {
+      discard(newBlocks, e);
+      throw e;
+    }
+    ReentrantLock lock = writeLocks.lockFor(key);
+    lock.lock();
+    try {
+      return publish(key, newBlocks, deadlineMillis);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Указывает ключу на новые блоки, заменяя и его срок, и возвращает старые блоки или null. Если
+   * индекс изменить не удалось, новые блоки освобождаются: на них никто не ссылается.
+   */
+  private List<FileBlockLocation> publish(byte[] key, List<FileBlockLocation> newBlocks,
+      long deadlineMillis) throws IOException {
+    List<FileBlockLocation> oldBlocks;
+    try {
+      oldBlocks = indexManager.getFileBlocksLocations(key);
+      rememberForSnapshots(key, oldBlocks);
+      indexManager.add(key, newBlocks);
+    } catch (IOException | RuntimeException e) {
+      discard(newBlocks, e);
+      throw e;
+    }
+    indexGauges.replaced(oldBlocks, newBlocks);
+    expiries.set(key, deadlineMillis);
+    invalidateCachedValue(key);
+    return oldBlocks;
+  }
+
+  /**
+   * Дожидается, пока изменения индекса окажутся на диске, и только потом отдает замененные блоки
+   * на переиспользование: иначе после падения индекс мог бы указывать на чужие данные.
+   */
+  private void commitIndex(List<FileBlockLocation> replacedBlocks) throws IOException {
+    indexCommit.commit(0);
+    if (replacedBlocks != null && !replacedBlocks.isEmpty()) {
+      reclaimer.retire(replacedBlocks);
+    }
+  }
+
+  /**
+   * Освобождает блоки, которые так и не попали в индекс. Ошибка освобождения добавляется к cause.
+   */
+  private void discard(List<FileBlockLocation> blocks, Exception cause) {
+    try {
+      valueStoreManager.remove(blocks);
+    } catch (IOException | RuntimeException e) {
+      cause.addSuppressed(e);
+    }
+  }
+
+  /**
+   * Запоминает для каждого открытого снимка, каким ключ был до первого изменения после снимка.
+   * Вызывается под блокировкой полосы ключа до того, как меняются его блоки или срок.
+   */
+  private void rememberForSnapshots(byte[] key, List<FileBlockLocation> oldBlocks) {
+    if (snapshotViews.isEmpty()) {
+      return;
+    }
+    KeyState old = new KeyState(oldBlocks, expiries.deadlineOf(key));
+    for (SnapshotView view : snapshotViews) {
+      view.changed.putIfAbsent(key.clone(), old);
+    }
+  }
+
+  /**
+   * Пускает писателя, если хранилище еще открыто. close ждет, пока не выйдут все пущенные
+   * писатели, так что ни один из них не пишет в уже закрытые файлы и индекс.
+   */
+  private Lock enterWriter() {
+    Lock gate = closeGate.readLock();
+    gate.lock();
+    if (closed.get()) {
+      gate.unlock();
+      throw new IllegalStateException("Storage is closed");
+    }
+    return gate;
+  }
+
+  private byte[] cachedValue(byte[] key, List<FileBlockLocation> blocks) {
+    return valueCache == null ? null : valueCache.get(key, blocks);
+  }
+
+  private void cacheValue(byte[] key, List<FileBlockLocation> blocks, byte[] value) {
+    if (valueCache != null) {
+      valueCache.put(key, blocks, value);
+    }
+  }
+
+  private void invalidateCachedValue(byte[] key) {
+    if (valueCache != null) {
+      valueCache.invalidate(key);
+    }
   }
 
   /**
-   * Удаляет значение из базы. Если значение существовало, то возвращает true, иначе false.
+   * Удаляет значение из базы. Если значение существовало, то возвращает true, иначе false. Ключ,
+   * чей срок истек, уже не существует, но удаляется все равно.
    */
   @Override
   public boolean remove(byte[] key) throws IOException {
     Objects.requireNonNull(key, "Key can't be null");
-    var blocks = indexManager.getFileBlocksLocations(key);
-    if (blocks == null) {
-      return false;
+    long start = System.nanoTime();
+    List<FileBlockLocation> blocks;
+    boolean existed;
+    Lock gate = enterWriter();
+    try {
+      ReentrantLock lock = writeLocks.lockFor(key);
+      lock.lock();
+      try {
+        blocks = indexManager.getFileBlocksLocations(key);
+        existed = blocks != null && !expiries.isExpired(key, System.currentTimeMillis());
+        if (blocks != null) {
+          rememberForSnapshots(key, blocks);
+          indexManager.remove(key);
+          indexGauges.replaced(blocks, null);
+          expiries.set(key, ExpiryTable.NEVER);
+          invalidateCachedValue(key);
+        }
+      } finally {
+        lock.unlock();
+      }
+      if (blocks == null) {
+        removeLatency.record(System.nanoTime() - start);
+        return false;
+      }
+      commitIndex(blocks);
+    } finally {
+      gate.unlock();
+    }
+    long elapsed = System.nanoTime() - start;
+    writeLatency.record(elapsed);
+    removeLatency.record(elapsed);
+    return existed;
+  }
+
+  /**
+   * Применяет все изменения набора: место под все значения выделяется разом, а индекс меняется
+   * одной записью журнала.
+   */
+  @Override
+  public void write(WriteBatch batch) throws IOException {
+    Objects.requireNonNull(batch, "Batch can't be null");
+    checkOpen();
+    if (batch.isEmpty()) {
+      return;
+    }
+    long start = System.nanoTime();
+    List<byte[]> keys = batch.keys();
+    List<byte[]> values = batch.values();
+    List<byte[]> upsertKeys = new ArrayList<>();
+    List<byte[]> upsertValues = new ArrayList<>();
+    for (int i = 0; i < keys.size(); i++) {
+      if (values.get(i) != null) {
+        upsertKeys.add(keys.get(i));
+        upsertValues.add(encode(values.get(i)));
+      }
+    }
+    Lock gate = enterWriter();
+    try {
+      // nobody can see the new blocks before they are indexed, so they are written without locks
+      List<List<FileBlockLocation>> written = valueStoreManager.addAll(upsertValues);
+      commitIndex(publishBatch(keys, values, upsertKeys, written));
+    } finally {
+      gate.unlock();
+    }
+    writeLatency.record(System.nanoTime() - start);
+  }
+
+  /**
+   * Дожидается, пока значения набора окажутся на диске, и меняет индекс одной записью под
+   * блокировками всех ключей набора. Возвращает замененные блоки. Если индекс изменить не удалось,
+   * записанные значения освобождаются.
+   */
+  private List<FileBlockLocation> publishBatch(List<byte[]> keys, List<byte[]> values,
+      List<byte[]> upsertKeys, List<List<FileBlockLocation>> written) throws IOException {
+    List<IndexEntry> upserts = new ArrayList<>(upsertKeys.size());
+    long writtenBytes = 0;
+    for (int i = 0; i < upsertKeys.size(); i++) {
+      upserts.add(new IndexEntry(upsertKeys.get(i), written.get(i)));
+      writtenBytes += size(written.get(i));
+    }
+    List<FileBlockLocation> replaced = new ArrayList<>();
+    List<List<FileBlockLocation>> oldBlocksList = new ArrayList<>(keys.size());
+    List<ReentrantLock> locks = writeLocks.locksFor(keys);
+    boolean applied = false;
+    try {
+      valueCommit.commit(writtenBytes);
+      locks.forEach(ReentrantLock::lock);
+      try {
+        List<byte[]> removes = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++) {
+          var oldBlocks = indexManager.getFileBlocksLocations(keys.get(i));
+          oldBlocksList.add(oldBlocks);
+          rememberForSnapshots(keys.get(i), oldBlocks);
+          if (oldBlocks == null) {
+            continue;
+          }
+          replaced.addAll(oldBlocks);
+          if (values.get(i) == null) {
+            removes.add(keys.get(i));
+          }
+        }
+        indexManager.applyBatch(upserts, removes);
+        applied = true;
+        for (int i = 0, upsert = 0; i < keys.size(); i++) {
+          var newBlocks = values.get(i) != null ? written.get(upsert++) : null;
+          indexGauges.replaced(oldBlocksList.get(i), newBlocks);
+        }
+        for (byte[] key : keys) {
+          expiries.set(key, ExpiryTable.NEVER);
+          invalidateCachedValue(key);
+        }
+      } finally {
+        locks.forEach(ReentrantLock::unlock);
+      }
+    } catch (IOException | RuntimeException e) {
+      if (!applied) {
+        discard(written.stream().flatMap(List::stream).toList(), e);
+      }
+      throw e;
+    }
+    return replaced;
+  }
+
+  /**
+   * Переписывает подряд значения, разбитые больше чем на fragmentThreshold блоков, и освобождает на
+   * диске место, не занятое значениями.
+   */
+  @Override
+  public DefragmentationReport defragment(int fragmentThreshold) throws IOException {
+    if (fragmentThreshold < 1) {
+      throw new IllegalArgumentException(
+          "fragmentThreshold must be positive, but got " + fragmentThreshold);
+    }
+    Lock gate = enterWriter();
+    try {
+      double fragmentationBefore = fragmentation();
+      List<IndexEntry> fragmented = new ArrayList<>();
+      Iterator<IndexEntry> entries = indexManager.entries();
+      while (entries.hasNext()) {
+        IndexEntry entry = entries.next();
+        if (entry.blocks().size() > fragmentThreshold) {
+          fragmented.add(entry);
+        }
+      }
+      int relocated = compactSegments() + relocate(fragmented);
+      long reclaimed = valueStoreManager.reclaimFreeSpace();
+      return new DefragmentationReport(relocated, reclaimed, fragmentationBefore,
+          fragmentation());
+    } finally {
+      gate.unlock();
+    }
+  }
+
+  private double fragmentation() throws IOException {
+    long values = 0;
+    long blocks = 0;
+    Iterator<IndexEntry> entries = indexManager.entries();
+    while (entries.hasNext()) {
+      int valueBlocks = entries.next().blocks().size();
+      if (valueBlocks > 0) {
+        values++;
+        blocks += valueBlocks;
+      }
+    }
+    return blocks == 0 ? 0 : (double) (blocks - values) / blocks;
+  }
+
+  /**
+   * Раскладывает живые значения по файлам их первых блоков и проверяет файлы параллельно, каждый по
+   * возрастанию смещений. Значения читаются без блокировок, только закрепив блоки, так что
+   * проверка не мешает остальным операциям.
+   */
+  @Override
+  public ScrubReport scrub(int parallelism) throws IOException {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("parallelism must be positive, but got " + parallelism);
+    }
+    checkOpen();
+    return scrub(indexManager.entries(), parallelism, null);
+  }
+
+  /**
+   * Проверяет значения entries. Значения снимка читаются по его блокам напрямую, а значения
+   * хранилища только если ключ все еще указывает на те же блоки.
+   */
+  private ScrubReport scrub(Iterator<IndexEntry> entries, int parallelism, Snapshot snapshot)
+      throws IOException {
+    Map<String, List<IndexEntry>> entriesByFile = new TreeMap<>();
+    AtomicLong checked = new AtomicLong();
+    long unchecked = 0;
+    while (entries.hasNext()) {
+      IndexEntry entry = entries.next();
+      if (entry.blocks().isEmpty()) {
+        checked.incrementAndGet();
+      } else if (!entry.blocks().stream().allMatch(FileBlockLocation::hasChecksum)) {
+        unchecked++;
+      } else {
+        entriesByFile.computeIfAbsent(entry.blocks().get(0).fileName(),
+            fileName -> new ArrayList<>()).add(entry);
+      }
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+      Thread thread = new Thread(runnable, "scrub");
+      thread.setDaemon(true);
+      return thread;
+    });
+    try {
+      List<Future<List<byte[]>>> results = new ArrayList<>();
+      for (List<IndexEntry> fileEntries : entriesByFile.values()) {
+        fileEntries.sort(Comparator.comparingInt(entry -> entry.blocks().get(0).offset()));
+        results.add(executor.submit(() -> scrub(fileEntries, checked, snapshot)));
+      }
+      List<byte[]> corrupted = new ArrayList<>();
+      for (Future<List<byte[]>> result : results) {
+        corrupted.addAll(result.get());
+      }
+      return new ScrubReport(checked.get(), unchecked, corrupted);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Scrub was interrupted");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException cause) {
+        throw cause;
+      }
+      if (e.getCause() instanceof RuntimeException cause) {
+        throw cause;
+      }
+      throw new IOException("Scrub failed", e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Читает значения, сверяя контрольные суммы, и возвращает ключи испорченных.
+   */
+  private List<byte[]> scrub(List<IndexEntry> entries, AtomicLong checked, Snapshot snapshot)
+      throws IOException {
+    List<byte[]> corrupted = new ArrayList<>();
+    for (IndexEntry entry : entries) {
+      if (snapshot != null) {
+        // the snapshot pins its blocks until it is closed
+        snapshot.checkReadable();
+        scrub(entry, checked, corrupted);
+        continue;
+      }
+      try (BlockReclaimer.Pin ignored = reclaimer.pin()) {
+        checkOpen();
+        // blocks of a value rewritten since the index was walked may already be reused
+        if (entry.blocks().equals(indexManager.getFileBlocksLocations(entry.key()))) {
+          scrub(entry, checked, corrupted);
+        }
+      }
+    }
+    return corrupted;
+  }
+
+  private void scrub(IndexEntry entry, AtomicLong checked, List<byte[]> corrupted) {
+    checked.incrementAndGet();
+    try {
+      readStored(entry.blocks());
+    } catch (IOException e) {
+      corrupted.add(entry.key());
+    }
+  }
+
+  /**
+   * Ничего не копирует: снимок читает живой индекс, а писатели запоминают в нем, каким был ключ до
+   * первого изменения после снимка, см. {@link SnapshotView}. Все полосы писателей берутся только
+   * чтобы зарегистрировать снимок, так что каждая запись попадает в него целиком или не попадает
+   * вовсе. Закрепление эпохи не дает освободить блоки, которые уберут из индекса после снимка.
+   */
+  @Override
+  public KeyValueStore snapshot() throws IOException {
+    checkOpen();
+    writeLocks.lockAll();
+    try {
+      checkOpen();
+      SnapshotView view = new SnapshotView(reclaimer.epoch(), System.currentTimeMillis());
+      BlockReclaimer.Pin pin = reclaimer.pinAt(view.epoch);
+      snapshotViews.add(view);
+      return new Snapshot(view, pin);
+    } finally {
+      writeLocks.unlockAll();
+    }
+  }
+
+  /**
+   * Время записей вместе с ожиданием fsync, которого требует выбранный режим durability.
+   */
+  @Override
+  public LatencyStats writeLatency() {
+    return writeLatency.stats();
+  }
+
+  /**
+   * Счетчики ввода-вывода берутся из кеша открытых файлов, через который идет весь ввод-вывод
+   * значений, а размер индекса и фрагментация поддерживаются при каждом его изменении, так что
+   * обход индекса нужен только при первом вызове.
+   */
+  @Override
+  public StoreMetrics metrics() throws IOException {
+    checkOpen();
+    if (!indexGauges.isCounting()) {
+      startIndexGauges();
+    }
+    FileChannelCache.IoStats io = valueStoreManager.ioStats();
+    return new StoreMetrics(containsLatency.stats(), loadLatency.stats(), upsertLatency.stats(),
+        removeLatency.stats(), io.bytesRead(), io.bytesWritten(), io.filesCreated(),
+        indexGauges.entries(), valueStoreManager.freeExtents(), indexGauges.fragmentation(),
+        valueStoreManager.channelCacheStats(),
+        valueCache == null ? new ValueCacheStats(0, 0, 0, 0) : valueCache.stats());
+  }
+
+  private void startIndexGauges() throws IOException {
+    writeLocks.lockAll();
+    try {
+      checkOpen();
+      if (!indexGauges.isCounting()) {
+        indexGauges.start(indexManager.entries());
+      }
+    } finally {
+      writeLocks.unlockAll();
     }
-    valueStoreManager.remove(blocks);
-    indexManager.remove(key);
-    return true;
   }
 
   /**
@@ -98,7 +1248,655 @@ class KeyValueStoreImpl implements KeyValueStore {
    */
   @Override
   public void close() throws IOException {
-    indexManager.close();
-    valueStoreManager.close();
+    if (!closed.compareAndSet(false, true)) {
+      return;
+    }
+    // an interrupt would close the file channels under the final writes of the teardown, so it is
+    // put aside until the storage is closed
+    boolean interrupted = Thread.interrupted();
+    try {
+      closeStorage();
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void closeStorage() throws IOException {
+    if (jmxName != null) {
+      KeyValueStoreMetricsBean.unregister(jmxName);
+    }
+    if (compactor != null) {
+      compactor.shutdown();
+      awaitStopped(compactor);
+    }
+    ScheduledExecutorService reaper;
+    synchronized (this) {
+      // no reaper can be started after this point, startExpiryReaper checks closed
+      reaper = expiryReaper;
+    }
+    if (reaper != null) {
+      reaper.shutdown();
+      awaitStopped(reaper);
+    }
+    // writers that passed the gate before closed was set finish their work first
+    closeGate.writeLock().lock();
+    writeLocks.lockAll();
+    try {
+      indexManager.close();
+      expiries.close();
+      reclaimer.releaseAll();
+      valueStoreManager.close();
+    } finally {
+      writeLocks.unlockAll();
+      closeGate.writeLock().unlock();
+    }
+    if (compactionFailure != null) {
+      throw new IOException("Background segment compaction failed", compactionFailure);
+    }
+    if (expiryFailure != null) {
+      throw new IOException("Background key expiry failed", expiryFailure);
+    }
+  }
+
+  /**
+   * Ждет, пока executor не завершит начатую задачу. Прерывание не отменяет ожидания: иначе close
+   * закрыл бы файлы и индекс под работающей задачей. Прерывания во время ожидания поглощаются,
+   * флаг восстанавливает close.
+   */
+  private static void awaitStopped(ExecutorService executor) {
+    while (true) {
+      try {
+        if (executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS)) {
+          return;
+        }
+      } catch (InterruptedException e) {
+        // keep waiting, the interrupt is reported by close
+      }
+    }
+  }
+
+  /**
+   * Переписывает живые значения из файлов, которые {@link ValueStoreManager#filesToCompact()}
+   * считает заполненными мусором. Значения публикуются по одному, так что остальные операции не
+   * ждут окончания всего сжатия.
+   *
+   * @return количество перенесенных значений
+   */
+  int compactSegments() throws IOException {
+    Lock gate = enterWriter();
+    try {
+      Set<String> files = valueStoreManager.filesToCompact();
+      if (files.isEmpty()) {
+        return 0;
+      }
+      List<IndexEntry> toRelocate = new ArrayList<>();
+      Iterator<IndexEntry> entries = indexManager.entries();
+      while (entries.hasNext()) {
+        IndexEntry entry = entries.next();
+        if (entry.blocks().stream().anyMatch(block -> files.contains(block.fileName()))) {
+          toRelocate.add(entry);
+        }
+      }
+      return relocate(toRelocate);
+    } finally {
+      gate.unlock();
+    }
+  }
+
+  /**
+   * Переписывает на новое место значения, которые все еще хранятся в тех блоках, с которыми их
+   * выбрали. Копии пишутся без блокировок и сбрасываются на диск вместе, а потом публикуются по
+   * одной под блокировкой ключа. Копия значения, которое успели перезаписать, освобождается.
+   * Вызывается писателем, уже прошедшим {@link #enterWriter()}.
+   *
+   * @return количество перенесенных значений
+   */
+  private int relocate(List<IndexEntry> entries) throws IOException {
+    List<IndexEntry> originals = new ArrayList<>();
+    List<List<FileBlockLocation>> copies = new ArrayList<>();
+    long copiedBytes = 0;
+    for (IndexEntry entry : entries) {
+      try (BlockReclaimer.Pin ignored = reclaimer.pin()) {
+        if (!entry.blocks().equals(indexManager.getFileBlocksLocations(entry.key()))) {
+          // the value has been rewritten or removed since it was picked
+          continue;
+        }
+        // the value is moved in its stored form, compressed or not
+        byte[] stored = readStored(entry.blocks());
+        originals.add(entry);
+        copies.add(valueStoreManager.addContiguous(stored));
+        copiedBytes += stored.length;
+      }
+    }
+    if (originals.isEmpty()) {
+      return 0;
+    }
+    try {
+      valueCommit.commit(copiedBytes);
+    } catch (IOException | RuntimeException e) {
+      discard(copies.stream().flatMap(List::stream).toList(), e);
+      throw e;
+    }
+
+    int relocated = 0;
+    List<FileBlockLocation> unused = new ArrayList<>();
+    List<FileBlockLocation> replaced = new ArrayList<>();
+    for (int i = 0; i < originals.size(); i++) {
+      IndexEntry original = originals.get(i);
+      ReentrantLock lock = writeLocks.lockFor(original.key());
+      lock.lock();
+      try {
+        if (original.blocks().equals(indexManager.getFileBlocksLocations(original.key()))) {
+          indexManager.add(original.key(), copies.get(i));
+          indexGauges.replaced(original.blocks(), copies.get(i));
+          replaced.addAll(original.blocks());
+          relocated++;
+        } else {
+          unused.addAll(copies.get(i));
+        }
+      } catch (IOException | RuntimeException e) {
+        // a failed add leaves the index unchanged, so this copy and the rest are not indexed
+        discard(copies.subList(i, copies.size()).stream().flatMap(List::stream).toList(), e);
+        try {
+          reclaimer.retire(unused);
+          commitIndex(replaced);
+        } catch (IOException | RuntimeException suppressed) {
+          e.addSuppressed(suppressed);
+        }
+        throw e;
+      } finally {
+        lock.unlock();
+      }
+    }
+    if (!unused.isEmpty()) {
+      reclaimer.retire(unused);
+    }
+    commitIndex(replaced);
+    return relocated;
+  }
+
+  /**
+   * Состояние ключа: его блоки, null если ключа нет, и срок.
+   */
+  private record KeyState(List<FileBlockLocation> blocks, long deadlineMillis) {
+
+    boolean isVisibleAt(long nowMillis) {
+      return blocks != null && deadlineMillis > nowMillis;
+    }
+  }
+
+  /**
+   * Хранилище, каким оно было в момент снимка. Ключ, который с тех пор не меняли, читается из
+   * живого индекса, а для измененных писатели до изменения кладут в changed их прежнее состояние.
+   * Поэтому сначала читается живой индекс и только потом changed: если чтение увидело изменение,
+   * прежнее состояние уже записано. Вид живет, пока открыт хоть один снимок на нем.
+   */
+  private final class SnapshotView {
+
+    final long epoch;
+    final long nowMillis;
+    final ConcurrentNavigableMap<byte[], KeyState> changed =
+        new ConcurrentSkipListMap<>(Arrays::compareUnsigned);
+    // guarded by this
+    private int references = 1;
+
+    SnapshotView(long epoch, long nowMillis) {
+      this.epoch = epoch;
+      this.nowMillis = nowMillis;
+    }
+
+    synchronized boolean retain() {
+      if (references == 0) {
+        return false;
+      }
+      references++;
+      return true;
+    }
+
+    synchronized void release() {
+      if (--references == 0) {
+        snapshotViews.remove(this);
+      }
+    }
+
+    List<FileBlockLocation> blocksOf(byte[] key) throws IOException {
+      KeyState state = new KeyState(indexManager.getFileBlocksLocations(key),
+          expiries.deadlineOf(key));
+      KeyState old = changed.get(key);
+      if (old != null) {
+        state = old;
+      }
+      return state.isVisibleAt(nowMillis) ? state.blocks() : null;
+    }
+
+    /**
+     * Сливает ленивый перебор живого индекса с измененными ключами. Ключ, который был в снимке, но
+     * не попал в перебор, успели изменить до того, как перебор его миновал, так что к следующему
+     * чтению changed он уже там.
+     */
+    Iterator<IndexEntry> range(byte[] fromKey, byte[] toKey) throws IOException {
+      if (fromKey != null && toKey != null && Arrays.compareUnsigned(fromKey, toKey) >= 0) {
+        return Collections.emptyIterator();
+      }
+      Iterator<IndexEntry> live = indexManager.range(fromKey, toKey);
+      return new Iterator<>() {
+        private byte[] lastKey;
+        private IndexEntry liveEntry;
+        private long liveDeadline;
+        private IndexEntry next = findNext();
+
+        private IndexEntry findNext() {
+          while (true) {
+            if (liveEntry == null && live.hasNext()) {
+              liveEntry = live.next();
+              liveDeadline = expiries.deadlineOf(liveEntry.key());
+            }
+            Map.Entry<byte[], KeyState> old = nextChanged();
+            if (old != null && (liveEntry == null
+                || Arrays.compareUnsigned(old.getKey(), liveEntry.key()) <= 0)) {
+              if (liveEntry != null && Arrays.equals(old.getKey(), liveEntry.key())) {
+                liveEntry = null;
+              }
+              lastKey = old.getKey();
+              if (old.getValue().isVisibleAt(nowMillis)) {
+                return new IndexEntry(old.getKey(), old.getValue().blocks());
+              }
+              continue;
+            }
+            if (liveEntry == null) {
+              return null;
+            }
+            IndexEntry entry = liveEntry;
+            liveEntry = null;
+            lastKey = entry.key();
+            if (new KeyState(entry.blocks(), liveDeadline).isVisibleAt(nowMillis)) {
+              return entry;
+            }
+          }
+        }
+
+        private Map.Entry<byte[], KeyState> nextChanged() {
+          Map.Entry<byte[], KeyState> old;
+          if (lastKey != null) {
+            old = changed.higherEntry(lastKey);
+          } else {
+            old = fromKey == null ? changed.firstEntry() : changed.ceilingEntry(fromKey);
+          }
+          if (old == null || toKey != null && Arrays.compareUnsigned(old.getKey(), toKey) >= 0) {
+            return null;
+          }
+          return old;
+        }
+
+        @Override
+        public boolean hasNext() {
+          return next != null;
+        }
+
+        @Override
+        public IndexEntry next() {
+          if (next == null) {
+            throw new NoSuchElementException();
+          }
+          IndexEntry entry = next;
+          next = findNext();
+          return entry;
+        }
+      };
+    }
+  }
+
+  /**
+   * Снимок хранилища, см. {@link #snapshot()}. Читает блоки из {@link SnapshotView} мимо кеша
+   * значений: кеш хранит значения только для блоков текущего индекса. Потоки, открытые через
+   * снимок, можно читать, пока он не закрыт.
+   */
+  private final class Snapshot implements KeyValueStore {
+
+    private final SnapshotView view;
+    private final BlockReclaimer.Pin pin;
+    private volatile boolean released;
+
+    Snapshot(SnapshotView view, BlockReclaimer.Pin pin) {
+      this.view = view;
+      this.pin = pin;
+    }
+
+    private List<FileBlockLocation> blocksOf(byte[] key) throws IOException {
+      Objects.requireNonNull(key, "Key can't be null");
+      checkReadable();
+      return view.blocksOf(key);
+    }
+
+    private void checkReadable() {
+      checkOpen();
+      if (released) {
+        throw new IllegalStateException("Snapshot is closed");
+      }
+    }
+
+    private UnsupportedOperationException readOnly() {
+      return new UnsupportedOperationException("Snapshot is read-only");
+    }
+
+    @Override
+    public boolean contains(byte[] key) throws IOException {
+      return blocksOf(key) != null;
+    }
+
+    @Override
+    public InputStream openValueStream(byte[] key) throws IOException {
+      var blocks = blocksOf(key);
+      if (blocks == null) {
+        throw new IOException("Key: " + new String(key) + " not found");
+      }
+      return openValue(blocks);
+    }
+
+    @Override
+    public byte[] loadValue(byte[] key) throws IOException {
+      return KeyValueStoreImpl.this.loadValue(key, blocksOf(key), false);
+    }
+
+    @Override
+    public int readValue(byte[] key, ByteBuffer dst) throws IOException {
+      Objects.requireNonNull(dst, "Buffer can't be null");
+      return KeyValueStoreImpl.this.readValue(key, blocksOf(key), dst, false);
+    }
+
+    @Override
+    public int valueSize(byte[] key) throws IOException {
+      return KeyValueStoreImpl.this.valueSize(key, blocksOf(key), false);
+    }
+
+    @Override
+    public long transferValueTo(byte[] key, WritableByteChannel target) throws IOException {
+      Objects.requireNonNull(target, "Target can't be null");
+      return KeyValueStoreImpl.this.transferValueTo(key, blocksOf(key), target);
+    }
+
+    @Override
+    public List<byte[]> loadValues(Collection<byte[]> keys) throws IOException {
+      Objects.requireNonNull(keys, "Keys can't be null");
+      List<byte[]> keyList = new ArrayList<>(keys);
+      List<List<FileBlockLocation>> blocks = new ArrayList<>(keyList.size());
+      for (byte[] key : keyList) {
+        blocks.add(blocksOf(key));
+      }
+      return KeyValueStoreImpl.this.loadValues(keyList, blocks, false);
+    }
+
+    @Override
+    public Iterator<ScanEntry> scan(byte[] fromKey, byte[] toKey) throws IOException {
+      checkReadable();
+      Iterator<IndexEntry> entries = view.range(fromKey, toKey);
+      // the snapshot pins its blocks until it is closed, so they are read directly
+      ScanEntry.ValueReader reader = new ScanEntry.ValueReader() {
+        @Override
+        public InputStream openValueStream(byte[] key, List<FileBlockLocation> blocks)
+            throws IOException {
+          checkReadable();
+          return openValue(blocks);
+        }
+
+        @Override
+        public byte[] loadValue(byte[] key, List<FileBlockLocation> blocks) throws IOException {
+          checkReadable();
+          return KeyValueStoreImpl.this.loadValue(key, blocks, false);
+        }
+      };
+      return new Iterator<>() {
+        @Override
+        public boolean hasNext() {
+          return entries.hasNext();
+        }
+
+        @Override
+        public ScanEntry next() {
+          IndexEntry entry = entries.next();
+          return new ScanEntry(reader, entry.key(), entry.blocks());
+        }
+      };
+    }
+
+    @Override
+    public void upsert(byte[] key, byte[] value) {
+      throw readOnly();
+    }
+
+    @Override
+    public void upsert(byte[] key, byte[] value, Duration ttl) {
+      throw readOnly();
+    }
+
+    @Override
+    public void upsertStream(byte[] key, InputStream source) {
+      throw readOnly();
+    }
+
+    @Override
+    public void upsertChannel(byte[] key, ReadableByteChannel source) {
+      throw readOnly();
+    }
+
+    @Override
+    public boolean remove(byte[] key) {
+      throw readOnly();
+    }
+
+    @Override
+    public void write(WriteBatch batch) {
+      throw readOnly();
+    }
+
+    @Override
+    public DefragmentationReport defragment(int fragmentThreshold) {
+      throw readOnly();
+    }
+
+    /**
+     * Проверяет значения, которые видит снимок, даже если в хранилище их уже заменили.
+     */
+    @Override
+    public ScrubReport scrub(int parallelism) throws IOException {
+      if (parallelism < 1) {
+        throw new IllegalArgumentException("parallelism must be positive, but got " + parallelism);
+      }
+      checkReadable();
+      return KeyValueStoreImpl.this.scrub(view.range(null, null), parallelism, this);
+    }
+
+    /**
+     * Снимок снимка видит то же самое, но закрывается отдельно.
+     */
+    @Override
+    public KeyValueStore snapshot() {
+      checkReadable();
+      if (!view.retain()) {
+        throw new IllegalStateException("Snapshot is closed");
+      }
+      // this snapshot holds its pin, so blocks seen at the view epoch are not freed yet
+      return new Snapshot(view, reclaimer.pinAt(view.epoch));
+    }
+
+    @Override
+    public LatencyStats writeLatency() {
+      return KeyValueStoreImpl.this.writeLatency();
+    }
+
+    @Override
+    public StoreMetrics metrics() throws IOException {
+      return KeyValueStoreImpl.this.metrics();
+    }
+
+    /**
+     * Индекс снимка только для чтения: меняющие его методы бросают UnsupportedOperationException.
+     */
+    @Override
+    public IndexManager getIndexManager() {
+      return new IndexManager() {
+        @Override
+        public void add(byte[] key, List<FileBlockLocation> writtenBlocks) {
+          throw readOnly();
+        }
+
+        @Override
+        public void remove(byte[] key) {
+          throw readOnly();
+        }
+
+        @Override
+        public void applyBatch(List<IndexEntry> upserts, List<byte[]> removes) {
+          throw readOnly();
+        }
+
+        @Override
+        public List<FileBlockLocation> getFileBlocksLocations(byte[] key) throws IOException {
+          return blocksOf(key);
+        }
+
+        @Override
+        public void sync() {
+        }
+
+        @Override
+        public Iterator<IndexEntry> entries() throws IOException {
+          return range(null, null);
+        }
+
+        @Override
+        public Iterator<IndexEntry> range(byte[] from, byte[] to) throws IOException {
+          checkReadable();
+          return view.range(from, to);
+        }
+
+        @Override
+        public void close() {
+        }
+      };
+    }
+
+    /**
+     * Снимает закрепление, и блоки, которые видел только этот снимок, снова можно переиспользовать.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+      if (released) {
+        return;
+      }
+      released = true;
+      view.release();
+      pin.close();
+    }
+  }
+
+  private void checkOpen() {
+    if (closed.get()) {
+      throw new IllegalStateException("Storage is closed");
+    }
+  }
+
+  private synchronized void startExpiryReaper() {
+    if (expiryReaper != null || closed.get()) {
+      return;
+    }
+    expiryReaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "expiry-reaper");
+      thread.setDaemon(true);
+      return thread;
+    });
+    expiryReaper.scheduleWithFixedDelay(this::reapExpiredInBackground, ExpiryTable.TICK_MILLIS,
+        ExpiryTable.TICK_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Удаляет ключи, чей срок наступил к этому моменту. Колесо таймеров отдает только такие ключи,
+   * так что работа пропорциональна числу истекших ключей, а не всех.
+   *
+   * @return количество удаленных ключей
+   */
+  int reapExpired() throws IOException {
+    Lock gate = enterWriter();
+    try {
+      List<byte[]> due = expiries.due(System.currentTimeMillis());
+      int removed = 0;
+      for (int from = 0; from < due.size(); from += MAX_EXPIRED_PER_BATCH) {
+        removed += expire(due.subList(from, Math.min(due.size(), from + MAX_EXPIRED_PER_BATCH)));
+      }
+      expiries.compactIfNeeded();
+      return removed;
+    } finally {
+      gate.unlock();
+    }
+  }
+
+  /**
+   * Удаляет истекшие ключи одной записью журнала индекса, а их блоки отдает на переиспользование
+   * одним вызовом. Ключи, которые успели перезаписать, остаются. Сроки снимаются только после
+   * изменения индекса: если оно не удалось, ключи истекут при следующем обходе, а срок, переживший
+   * падение без ключа в индексе, безвреден и снимется тем же обходом.
+   */
+  private int expire(List<byte[]> keys) throws IOException {
+    List<FileBlockLocation> freed = new ArrayList<>();
+    List<byte[]> expired = new ArrayList<>();
+    List<byte[]> removes = new ArrayList<>();
+    List<List<FileBlockLocation>> removedBlocks = new ArrayList<>();
+    List<ReentrantLock> locks = writeLocks.locksFor(keys);
+    locks.forEach(ReentrantLock::lock);
+    try {
+      long now = System.currentTimeMillis();
+      for (byte[] key : keys) {
+        if (!expiries.isExpired(key, now)) {
+          continue;
+        }
+        expired.add(key);
+        var blocks = indexManager.getFileBlocksLocations(key);
+        if (blocks != null) {
+          rememberForSnapshots(key, blocks);
+          freed.addAll(blocks);
+          removes.add(key);
+          removedBlocks.add(blocks);
+        }
+      }
+      if (!removes.isEmpty()) {
+        indexManager.applyBatch(List.of(), removes);
+      }
+      for (List<FileBlockLocation> blocks : removedBlocks) {
+        indexGauges.replaced(blocks, null);
+      }
+      if (!removes.isEmpty()) {
+        reaps.incrementAndGet();
+      }
+      for (byte[] key : expired) {
+        expiries.set(key, ExpiryTable.NEVER);
+        invalidateCachedValue(key);
+      }
+    } finally {
+      locks.forEach(ReentrantLock::unlock);
+    }
+    commitIndex(freed);
+    return removes.size();
+  }
+
+  private void reapExpiredInBackground() {
+    try {
+      reapExpired();
+    } catch (IOException e) {
+      expiryFailure = e;
+    } catch (IllegalStateException e) {
+      // the store has been closed concurrently
+    }
+  }
+
+  private void compactSegmentsInBackground() {
+    try {
+      compactSegments();
+    } catch (IOException e) {
+      compactionFailure = e;
+    } catch (IllegalStateException e) {
+      // the store has been closed concurrently
+    }
   }
 }
@@ -0,0 +1,122 @@
+package org.csc.java.spring2023;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+/**
+ * Регистрирует метрики хранилища в платформенном MBeanServer. Каждое чтение атрибута заново
+ * запрашивает {@link KeyValueStore#metrics()}.
+ */
+final class KeyValueStoreMetricsBean implements KeyValueStoreMetricsMXBean {
+
+  private static final String DOMAIN = "org.csc.java.spring2023";
+
+  private final KeyValueStore store;
+
+  private KeyValueStoreMetricsBean(KeyValueStore store) {
+    this.store = store;
+  }
+
+  /**
+   * Регистрирует метрики store под именем {@code org.csc.java.spring2023:type=KeyValueStore,
+   * name=<name>}. Возвращает имя, по которому их нужно снять в {@link #unregister}.
+   */
+  static ObjectName register(String name, KeyValueStore store) {
+    try {
+      ObjectName objectName = new ObjectName(
+          DOMAIN + ":type=KeyValueStore,name=" + ObjectName.quote(name));
+      ManagementFactory.getPlatformMBeanServer()
+          .registerMBean(new KeyValueStoreMetricsBean(store), objectName);
+      return objectName;
+    } catch (InstanceAlreadyExistsException e) {
+      throw new IllegalArgumentException("JMX name " + name + " is already in use", e);
+    } catch (MalformedObjectNameException e) {
+      throw new IllegalArgumentException("Invalid JMX name " + name, e);
+    } catch (JMException e) {
+      throw new IllegalStateException("Can't register store metrics in JMX", e);
+    }
+  }
+
+  static void unregister(ObjectName objectName) {
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    } catch (JMException e) {
+      // already unregistered by someone else, nothing left to clean up
+    }
+  }
+
+  private StoreMetrics metrics() {
+    try {
+      return store.metrics();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static Map<String, Long> table(LatencyStats stats) {
+    Map<String, Long> table = new LinkedHashMap<>();
+    table.put("count", stats.count());
+    table.put("p50", stats.p50Nanos());
+    table.put("p99", stats.p99Nanos());
+    table.put("p999", stats.p999Nanos());
+    table.put("max", stats.maxNanos());
+    return table;
+  }
+
+  @Override
+  public Map<String, Long> getContainsLatency() {
+    return table(metrics().containsLatency());
+  }
+
+  @Override
+  public Map<String, Long> getLoadLatency() {
+    return table(metrics().loadLatency());
+  }
+
+  @Override
+  public Map<String, Long> getUpsertLatency() {
+    return table(metrics().upsertLatency());
+  }
+
+  @Override
+  public Map<String, Long> getRemoveLatency() {
+    return table(metrics().removeLatency());
+  }
+
+  @Override
+  public long getBytesRead() {
+    return metrics().bytesRead();
+  }
+
+  @Override
+  public long getBytesWritten() {
+    return metrics().bytesWritten();
+  }
+
+  @Override
+  public long getFilesCreated() {
+    return metrics().filesCreated();
+  }
+
+  @Override
+  public long getIndexEntries() {
+    return metrics().indexEntries();
+  }
+
+  @Override
+  public long getFreeExtents() {
+    return metrics().freeExtents();
+  }
+
+  @Override
+  public double getFragmentation() {
+    return metrics().fragmentation();
+  }
+}
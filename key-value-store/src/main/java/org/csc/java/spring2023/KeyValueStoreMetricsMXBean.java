@@ -0,0 +1,30 @@
+package org.csc.java.spring2023;
+
+import java.util.Map;
+
+/**
+ * Метрики хранилища для JMX, см. {@link KeyValueStoreOptions#jmxName}. Распределения времени
+ * отдаются таблицами с ключами count, p50, p99, p999 и max, время в наносекундах
+ */
+public interface KeyValueStoreMetricsMXBean {
+
+  Map<String, Long> getContainsLatency();
+
+  Map<String, Long> getLoadLatency();
+
+  Map<String, Long> getUpsertLatency();
+
+  Map<String, Long> getRemoveLatency();
+
+  long getBytesRead();
+
+  long getBytesWritten();
+
+  long getFilesCreated();
+
+  long getIndexEntries();
+
+  long getFreeExtents();
+
+  double getFragmentation();
+}
@@ -0,0 +1,312 @@
+package org.csc.java.spring2023;
+
+import java.util.Objects;
+
+/**
+ * Дополнительные настройки хранилища для {@link KeyValueStoreFactory}. Настройки, которые не были
+ * заданы явно, имеют значения по умолчанию.
+ */
+public final class KeyValueStoreOptions {
+
+  /**
+   * Реализация индекса. Тип запоминается при создании хранилища, и открыть его с индексом,
+   * который хранится на диске иначе, нельзя.
+   */
+  public enum IndexType {
+    /**
+     * Весь индекс в HashMap в памяти, изменения пишутся в журнал.
+     */
+    IN_MEMORY,
+    /**
+     * Весь индекс в skip list в памяти, упорядоченный по ключам, изменения пишутся в журнал.
+     */
+    SORTED_IN_MEMORY,
+    /**
+     * Хеш-таблица с открытой адресацией в отображенном в память файле.
+     */
+    MAPPED_HASH_TABLE,
+    /**
+     * LSM-дерево: таблица в памяти и отсортированные файлы с фильтрами Блума на диске.
+     */
+    LSM_TREE,
+  }
+
+  /**
+   * Способ размещения значений в файлах.
+   */
+  public enum StorageMode {
+    /**
+     * Значения пишутся в освободившиеся блоки, новые файлы создаются, только если их не хватило.
+     */
+    FREE_LIST,
+    /**
+     * Значения последовательно дописываются в сегменты, мусор вычищается фоновым сжатием.
+     */
+    LOG_STRUCTURED,
+  }
+
+  /**
+   * Когда записанное сбрасывается на диск.
+   */
+  public enum Durability {
+    /**
+     * Данные сбрасывает операционная система, когда сочтет нужным: после падения ОС записи,
+     * сделанные незадолго до него, могут пропасть.
+     */
+    NONE,
+    /**
+     * Каждая запись возвращается только после fsync ее значения и изменения индекса.
+     */
+    SYNC_EVERY_WRITE,
+    /**
+     * Одновременные записи ждут общего fsync, который делается не реже, чем раз в
+     * {@link #groupCommitMaxDelayMillis} миллисекунд или {@link #groupCommitMaxBytes} байт.
+     */
+    GROUP_COMMIT,
+  }
+
+  private IndexType indexType = IndexType.IN_MEMORY;
+  private int maxOpenFiles = 64;
+  private StorageMode storageMode = StorageMode.FREE_LIST;
+  private double compactionGarbageRatio = 0.5;
+  private long valueCacheBytes = 0;
+  private int memtableMaxEntries = 1 << 16;
+  private ValueCodec valueCodec;
+  private Durability durability = Durability.NONE;
+  private long groupCommitMaxDelayMillis = 5;
+  private long groupCommitMaxBytes = 1 << 20;
+  private int asyncIoThreads = 4;
+  private int asyncQueueCapacity = 1024;
+  private String jmxName;
+
+  private KeyValueStoreOptions() {
+  }
+
+  public static KeyValueStoreOptions defaults() {
+    return new KeyValueStoreOptions();
+  }
+
+  public KeyValueStoreOptions indexType(IndexType indexType) {
+    this.indexType = Objects.requireNonNull(indexType, "indexType can't be null");
+    return this;
+  }
+
+  public IndexType indexType() {
+    return indexType;
+  }
+
+  /**
+   * Сколько файлов со значениями хранилище держит открытыми одновременно.
+   */
+  public KeyValueStoreOptions maxOpenFiles(int maxOpenFiles) {
+    if (maxOpenFiles <= 0) {
+      throw new IllegalArgumentException("maxOpenFiles must be positive, but got " + maxOpenFiles);
+    }
+    this.maxOpenFiles = maxOpenFiles;
+    return this;
+  }
+
+  public int maxOpenFiles() {
+    return maxOpenFiles;
+  }
+
+  public KeyValueStoreOptions storageMode(StorageMode storageMode) {
+    this.storageMode = Objects.requireNonNull(storageMode, "storageMode can't be null");
+    return this;
+  }
+
+  public StorageMode storageMode() {
+    return storageMode;
+  }
+
+  /**
+   * Доля мусора, начиная с которой сегмент в режиме {@link StorageMode#LOG_STRUCTURED} сжимается.
+   */
+  public KeyValueStoreOptions compactionGarbageRatio(double compactionGarbageRatio) {
+    if (!(compactionGarbageRatio > 0 && compactionGarbageRatio <= 1)) {
+      throw new IllegalArgumentException(
+          "compactionGarbageRatio must be in (0, 1], but got " + compactionGarbageRatio);
+    }
+    this.compactionGarbageRatio = compactionGarbageRatio;
+    return this;
+  }
+
+  public double compactionGarbageRatio() {
+    return compactionGarbageRatio;
+  }
+
+  /**
+   * Сколько байт значений держать в памяти в кеше горячих значений. 0 выключает кеш.
+   */
+  public KeyValueStoreOptions valueCacheBytes(long valueCacheBytes) {
+    if (valueCacheBytes < 0) {
+      throw new IllegalArgumentException(
+          "valueCacheBytes must not be negative, but got " + valueCacheBytes);
+    }
+    this.valueCacheBytes = valueCacheBytes;
+    return this;
+  }
+
+  public long valueCacheBytes() {
+    return valueCacheBytes;
+  }
+
+  /**
+   * Сколько записей индекс {@link IndexType#LSM_TREE} держит в памяти, прежде чем сбросить их в
+   * отсортированный файл.
+   */
+  public KeyValueStoreOptions memtableMaxEntries(int memtableMaxEntries) {
+    if (memtableMaxEntries <= 0) {
+      throw new IllegalArgumentException(
+          "memtableMaxEntries must be positive, but got " + memtableMaxEntries);
+    }
+    this.memtableMaxEntries = memtableMaxEntries;
+    return this;
+  }
+
+  public int memtableMaxEntries() {
+    return memtableMaxEntries;
+  }
+
+  /**
+   * Кодек, которым сжимаются значения. Значения, которые сжимаются плохо, хранятся как есть. По
+   * умолчанию значения не сжимаются; включить сжатие можно только для нового хранилища. Id
+   * {@link ValueFormat#STORED} и id встроенного deflate заняты: чтение всегда разжимает значения с
+   * id deflate встроенным кодеком, а настроенный кодек с тем же id подменил бы его.
+   */
+  public KeyValueStoreOptions valueCodec(ValueCodec valueCodec) {
+    Objects.requireNonNull(valueCodec, "valueCodec can't be null");
+    if (valueCodec.id() == ValueFormat.STORED) {
+      throw new IllegalArgumentException("Codec id " + ValueFormat.STORED + " is reserved");
+    }
+    if (valueCodec.id() == DeflateCodec.ID && !(valueCodec instanceof DeflateCodec)) {
+      throw new IllegalArgumentException(
+          "Codec id " + DeflateCodec.ID + " is reserved for deflate");
+    }
+    this.valueCodec = valueCodec;
+    return this;
+  }
+
+  /**
+   * Возвращает кодек значений или null, если сжатие выключено.
+   */
+  public ValueCodec valueCodec() {
+    return valueCodec;
+  }
+
+  public KeyValueStoreOptions durability(Durability durability) {
+    this.durability = Objects.requireNonNull(durability, "durability can't be null");
+    return this;
+  }
+
+  public Durability durability() {
+    return durability;
+  }
+
+  /**
+   * Сколько в режиме {@link Durability#GROUP_COMMIT} первая запись ждет, пока к общему fsync
+   * присоединятся другие.
+   */
+  public KeyValueStoreOptions groupCommitMaxDelayMillis(long groupCommitMaxDelayMillis) {
+    if (groupCommitMaxDelayMillis < 0) {
+      throw new IllegalArgumentException(
+          "groupCommitMaxDelayMillis must not be negative, but got " + groupCommitMaxDelayMillis);
+    }
+    this.groupCommitMaxDelayMillis = groupCommitMaxDelayMillis;
+    return this;
+  }
+
+  public long groupCommitMaxDelayMillis() {
+    return groupCommitMaxDelayMillis;
+  }
+
+  /**
+   * Сколько байт значений в режиме {@link Durability#GROUP_COMMIT} должно накопиться, чтобы fsync
+   * начался, не дожидаясь {@link #groupCommitMaxDelayMillis}.
+   */
+  public KeyValueStoreOptions groupCommitMaxBytes(long groupCommitMaxBytes) {
+    if (groupCommitMaxBytes <= 0) {
+      throw new IllegalArgumentException(
+          "groupCommitMaxBytes must be positive, but got " + groupCommitMaxBytes);
+    }
+    this.groupCommitMaxBytes = groupCommitMaxBytes;
+    return this;
+  }
+
+  public long groupCommitMaxBytes() {
+    return groupCommitMaxBytes;
+  }
+
+  /**
+   * Сколько потоков ввода-вывода у хранилища из {@link KeyValueStoreFactory#createAsync}.
+   */
+  public KeyValueStoreOptions asyncIoThreads(int asyncIoThreads) {
+    if (asyncIoThreads <= 0) {
+      throw new IllegalArgumentException(
+          "asyncIoThreads must be positive, but got " + asyncIoThreads);
+    }
+    this.asyncIoThreads = asyncIoThreads;
+    return this;
+  }
+
+  public int asyncIoThreads() {
+    return asyncIoThreads;
+  }
+
+  /**
+   * Сколько операций может ждать в очереди одного потока ввода-вывода асинхронного хранилища.
+   */
+  public KeyValueStoreOptions asyncQueueCapacity(int asyncQueueCapacity) {
+    if (asyncQueueCapacity <= 0) {
+      throw new IllegalArgumentException(
+          "asyncQueueCapacity must be positive, but got " + asyncQueueCapacity);
+    }
+    this.asyncQueueCapacity = asyncQueueCapacity;
+    return this;
+  }
+
+  public int asyncQueueCapacity() {
+    return asyncQueueCapacity;
+  }
+
+  /**
+   * Регистрирует метрики хранилища в JMX как {@link KeyValueStoreMetricsMXBean} с этим именем;
+   * при закрытии хранилища они снимаются. По умолчанию метрики в JMX не регистрируются.
+   */
+  public KeyValueStoreOptions jmxName(String jmxName) {
+    Objects.requireNonNull(jmxName, "jmxName can't be null");
+    if (jmxName.isBlank()) {
+      throw new IllegalArgumentException("jmxName must not be blank");
+    }
+    this.jmxName = jmxName;
+    return this;
+  }
+
+  /**
+   * Возвращает имя метрик в JMX или null, если они не регистрируются.
+   */
+  public String jmxName() {
+    return jmxName;
+  }
+
+  /**
+   * Копия настроек без имени в JMX: под ним метрики регистрирует тот, кто открывает хранилище
+   * из нескольких частей, а не каждая его часть.
+   */
+  KeyValueStoreOptions withoutJmxName() {
+    KeyValueStoreOptions copy = new KeyValueStoreOptions();
+    copy.indexType = indexType;
+    copy.maxOpenFiles = maxOpenFiles;
+    copy.storageMode = storageMode;
+    copy.compactionGarbageRatio = compactionGarbageRatio;
+    copy.valueCacheBytes = valueCacheBytes;
+    copy.memtableMaxEntries = memtableMaxEntries;
+    copy.valueCodec = valueCodec;
+    copy.durability = durability;
+    copy.groupCommitMaxDelayMillis = groupCommitMaxDelayMillis;
+    copy.groupCommitMaxBytes = groupCommitMaxBytes;
+    copy.asyncIoThreads = asyncIoThreads;
+    copy.asyncQueueCapacity = asyncQueueCapacity;
+    return copy;
+  }
+}
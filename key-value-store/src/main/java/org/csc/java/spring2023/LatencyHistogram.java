@@ -0,0 +1,76 @@
+package org.csc.java.spring2023;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Гистограмма времени операций без блокировок. Корзины логарифмические: каждая степень двойки
+ * делится на {@value #SUB_BUCKETS} равных корзин, так что запись стоит пару атомарных операций, а
+ * относительная погрешность перцентилей не превышает 1/{@value #SUB_BUCKETS}.
+ */
+final class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong max = new AtomicLong();
+
+  void record(long nanos) {
+    long value = Math.max(nanos, 0);
+    counts.incrementAndGet(bucket(value));
+    max.accumulateAndGet(value, Math::max);
+  }
+
+  /**
+   * Снимок гистограммы. Операции, записанные во время снятия, могут попасть в него не полностью.
+   */
+  LatencyStats stats() {
+    long[] snapshot = new long[BUCKETS];
+    long count = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+      count += snapshot[i];
+    }
+    long maxNanos = max.get();
+    return new LatencyStats(count, percentile(snapshot, count, 0.5, maxNanos),
+        percentile(snapshot, count, 0.99, maxNanos), percentile(snapshot, count, 0.999, maxNanos),
+        maxNanos);
+  }
+
+  private static long percentile(long[] snapshot, long count, double quantile, long maxNanos) {
+    if (count == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(quantile * count);
+    long seen = 0;
+    for (int i = 0; i < snapshot.length; i++) {
+      seen += snapshot[i];
+      if (seen >= rank) {
+        return Math.min(upperBound(i), maxNanos);
+      }
+    }
+    return maxNanos;
+  }
+
+  // values below 2 * SUB_BUCKETS get a bucket each, larger ones share it with their neighbours
+  private static int bucket(long value) {
+    if (value < 2 * SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  private static long upperBound(int bucket) {
+    if (bucket < 2 * SUB_BUCKETS) {
+      return bucket;
+    }
+    int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    long width = 1L << (exponent - SUB_BUCKET_BITS);
+    long lowerBound = (1L << exponent) + (bucket % SUB_BUCKETS) * width;
+    return lowerBound + width - 1;
+  }
+}
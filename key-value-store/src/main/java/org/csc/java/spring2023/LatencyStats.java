@@ -0,0 +1,16 @@
+package org.csc.java.spring2023;
+
+/**
+ * Распределение времени операций. Перцентили приближенные: они округляются вверх до границы
+ * корзины гистограммы, которая отстоит от истинного значения не больше чем на 1/8.
+ *
+ * @param count      сколько операций измерено
+ * @param p50Nanos   медиана, наносекунды
+ * @param p99Nanos   99-й перцентиль, наносекунды
+ * @param p999Nanos  99.9-й перцентиль, наносекунды
+ * @param maxNanos   самая долгая операция, наносекунды
+ */
+public record LatencyStats(long count, long p50Nanos, long p99Nanos, long p999Nanos,
+                           long maxNanos) {
+
+}
@@ -0,0 +1,281 @@
+package org.csc.java.spring2023;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Log-structured хранение значений: значения только дописываются в конец активного сегмента, а
+ * место от перезаписанных и удаленных значений становится мусором. Сегмент, в котором не осталось
+ * живых данных, удаляется; живые данные из сегментов с большой долей мусора переписывает
+ * {@link KeyValueStoreImpl#compactSegments()}.
+ */
+class LogStructuredValueStoreManager implements ValueStoreManager {
+
+  private final Path workDir;
+  private final int fileSize;
+  private final double compactionGarbageRatio;
+  private final File segmentsFile;
+  private final FileChannelCache channels;
+  // in creation order, the last one is the active segment
+  private Map<String, Segment> segments;
+  private Segment active;
+  private long reclaimedBytes;
+
+  /**
+   * Файл сегмента: сколько байт в него записано и сколько из них еще занято живыми значениями.
+   */
+  static final class Segment {
+
+    final String fileName;
+    int written;
+    int live;
+
+    Segment(String fileName, int written, int live) {
+      this.fileName = fileName;
+      this.written = written;
+      this.live = live;
+    }
+  }
+
+  /**
+   * Учет сегментов сохраняется только при закрытии и удаляется при открытии, так что после падения
+   * его нет, и он восстанавливается по длинам файлов и блокам, на которые указывает
+   * восстановленный из журнала index.
+   */
+  LogStructuredValueStoreManager(Path workDir, int fileSize, int maxOpenFiles,
+      double compactionGarbageRatio, IndexManager index) throws IOException {
+    this.workDir = workDir;
+    this.fileSize = fileSize;
+    this.compactionGarbageRatio = compactionGarbageRatio;
+    this.channels = new FileChannelCache(workDir, maxOpenFiles);
+    this.segmentsFile = new File(workDir.toFile(), "segments");
+    this.segments = new LinkedHashMap<>();
+    if (segmentsFile.exists()) {
+      for (Segment segment : ConfigSaver.loadSegments(segmentsFile)) {
+        segments.put(segment.fileName, segment);
+        active = segment;
+      }
+      // the counts go stale with the first write, a crash after it must not bring them back
+      Files.delete(segmentsFile.toPath());
+      FileChannelCache.syncDirectory(workDir);
+    } else {
+      rebuildSegments(index.entries());
+    }
+  }
+
+  /**
+   * Порядок создания сегментов после падения неизвестен, поэтому все они считаются заполненными, а
+   * запись начинается с нового сегмента. Сегменты без живых данных сразу удаляются.
+   */
+  private void rebuildSegments(Iterator<IndexEntry> entries) throws IOException {
+    for (var file : ValueFiles.usedBlocks(workDir, entries).entrySet()) {
+      int live = 0;
+      for (FileBlockLocation block : file.getValue()) {
+        live += block.size();
+      }
+      int written = (int) Files.size(workDir.resolve(file.getKey()));
+      Segment segment = new Segment(file.getKey(), written, live);
+      segments.put(segment.fileName, segment);
+      if (live == 0) {
+        deleteSegment(segment);
+      }
+    }
+  }
+
+  /**
+   * Дописывает значение в конец активного сегмента, при необходимости начиная новые сегменты.
+   * Место резервируется под блокировкой, а сами данные пишутся уже без нее.
+   */
+  @Override
+  public List<FileBlockLocation> add(byte[] value) throws IOException {
+    List<FileBlockLocation> usedBlocks = reserve(value.length);
+    write(value, usedBlocks);
+    return FileBlockLocation.withChecksums(usedBlocks, value);
+  }
+
+  @Override
+  public List<FileBlockLocation> allocate(long length) throws IOException {
+    return reserve(length);
+  }
+
+  @Override
+  public void write(byte[] value, List<FileBlockLocation> blocks) throws IOException {
+    int offset = 0;
+    for (FileBlockLocation block : blocks) {
+      channels.writeFully(block.fileName(), ByteBuffer.wrap(value, offset, block.size()),
+          block.offset());
+      offset += block.size();
+    }
+  }
+
+  private synchronized List<FileBlockLocation> reserve(long length) throws IOException {
+    checkOpen();
+    List<FileBlockLocation> usedBlocks = new ArrayList<>();
+    long reserved = 0;
+    while (reserved < length) {
+      if (active == null || active.written == fileSize) {
+        active = addSegment();
+      }
+      int size = (int) Math.min(length - reserved, fileSize - active.written);
+      usedBlocks.add(new FileBlockLocation(active.fileName, active.written, size));
+      active.written += size;
+      active.live += size;
+      reserved += size;
+    }
+    return usedBlocks;
+  }
+
+  /**
+   * Дописывание и так пишет значение подряд, разрывая его только на границах сегментов.
+   */
+  @Override
+  public List<FileBlockLocation> addContiguous(byte[] value) throws IOException {
+    return add(value);
+  }
+
+  /**
+   * Возвращает входной поток из которого можно читать значение из конкретного блока.
+   */
+  @Override
+  public InputStream openBlockStream(FileBlockLocation block) {
+    return new BlockInputStream(channels, block);
+  }
+
+  @Override
+  public void read(FileBlockLocation block, ByteBuffer dst) throws IOException {
+    int from = dst.position();
+    channels.readFully(block.fileName(), dst, block.offset());
+    if (dst.position() - from == block.size()) {
+      block.verify(dst, from);
+    }
+  }
+
+  @Override
+  public void sync() throws IOException {
+    channels.force();
+  }
+
+  @Override
+  public void transferTo(FileBlockLocation block, WritableByteChannel target)
+      throws IOException {
+    channels.transferTo(block.fileName(), block.offset(), block.size(), target);
+  }
+
+  /**
+   * Помечает блоки как мусор. Заполненный сегмент без живых данных сразу удаляется.
+   */
+  @Override
+  public synchronized void remove(List<FileBlockLocation> valueBlocksLocations)
+      throws IOException {
+    checkOpen();
+    for (FileBlockLocation block : valueBlocksLocations) {
+      Segment segment = segments.get(block.fileName());
+      segment.live -= block.size();
+      if (segment.live == 0 && segment != active) {
+        deleteSegment(segment);
+      }
+    }
+  }
+
+  /**
+   * Заполненные сегменты, в которых доля мусора не меньше порога сжатия.
+   */
+  @Override
+  public synchronized Set<String> filesToCompact() {
+    checkOpen();
+    return segments.values().stream()
+        .filter(segment -> segment != active)
+        .filter(segment ->
+            segment.written - segment.live >= compactionGarbageRatio * segment.written)
+        .map(segment -> segment.fileName)
+        .collect(Collectors.toSet());
+  }
+
+  /**
+   * Сегменты без живых данных удаляются сразу, здесь только возвращается, сколько места они
+   * занимали.
+   */
+  @Override
+  public synchronized long reclaimFreeSpace() {
+    checkOpen();
+    long reclaimed = reclaimedBytes;
+    reclaimedBytes = 0;
+    return reclaimed;
+  }
+
+  @Override
+  public ChannelCacheStats channelCacheStats() {
+    return channels.stats();
+  }
+
+  @Override
+  public FileChannelCache.IoStats ioStats() {
+    return channels.ioStats();
+  }
+
+  /**
+   * Значения только дописываются в конец активного сегмента, свободного списка нет.
+   */
+  @Override
+  public int freeExtents() {
+    return 0;
+  }
+
+  /**
+   * Closes this stream and releases any system resources associated with it. If the stream is
+   * already closed then invoking this method has no effect.
+   *
+   * @throws IOException if an I/O error occurs
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (segments == null) {
+      return;
+    }
+    channels.close();
+    File tmpFile = new File(segmentsFile.getParentFile(), segmentsFile.getName() + ".tmp");
+    ConfigSaver.saveSegments(segments.values(), tmpFile);
+    Files.move(tmpFile.toPath(), segmentsFile.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+    FileChannelCache.syncDirectory(workDir);
+    segments = null;
+  }
+
+  private void checkOpen() {
+    if (segments == null) {
+      throw new IllegalStateException("Storage is closed");
+    }
+  }
+
+  private Segment addSegment() throws IOException {
+    if (active != null && active.live == 0) {
+      deleteSegment(active);
+    }
+    Segment segment = new Segment(ValueFiles.newFileName(), 0, 0);
+    Files.createFile(workDir.resolve(segment.fileName));
+    channels.fileCreated();
+    segments.put(segment.fileName, segment);
+    return segment;
+  }
+
+  private void deleteSegment(Segment segment) throws IOException {
+    segments.remove(segment.fileName);
+    channels.evict(segment.fileName);
+    Files.delete(workDir.resolve(segment.fileName));
+    reclaimedBytes += segment.written;
+  }
+}
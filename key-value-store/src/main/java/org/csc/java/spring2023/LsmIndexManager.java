@@ -0,0 +1,640 @@
+package org.csc.java.spring2023;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Индекс в виде LSM-дерева для наборов ключей, которые не помещаются в память.
+ * <p>
+ * Изменения пишутся в журнал index.lsm.log и в отсортированную таблицу в памяти. Заполненная
+ * таблица замораживается вместе с журналом, и фоновый поток сбрасывает ее в неизменяемый
+ * {@link SortedRun} нулевого уровня. Когда файлов нулевого уровня накапливается
+ * {@value #LEVEL0_COMPACTION_TRIGGER}, они сливаются с первым уровнем, а уровень, выросший больше
+ * своего предела, сливается со следующим, в {@value #LEVEL_SIZE_RATIO} раз большим. Удаления
+ * записываются надгробиями, которые пропадают при слиянии в последний уровень.
+ * <p>
+ * Состав уровней хранится в index.manifest, который заменяется атомарно, так что после падения
+ * индекс видит либо старые, либо новые файлы, а лишние файлы удаляются при открытии.
+ */
+final class LsmIndexManager implements IndexManager {
+
+  private static final String logFileName = "index.lsm.log";
+  private static final String frozenLogPrefix = "index.lsm.log.";
+  private static final String runPrefix = "index.run.";
+  private static final String manifestFileName = "index.manifest";
+  private static final int LEVEL0_COMPACTION_TRIGGER = 4;
+  private static final int LEVEL_SIZE_RATIO = 10;
+  private static final Comparator<byte[]> KEY_ORDER = Arrays::compareUnsigned;
+  // memtables mark removed keys with this very instance, an empty value has its own empty list
+  private static final List<FileBlockLocation> TOMBSTONE =
+      Collections.unmodifiableList(new ArrayList<>());
+
+  private final File workDir;
+  private final int memtableMaxEntries;
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private final AtomicLong nextId = new AtomicLong();
+  private final AtomicLong runReads = new AtomicLong();
+  private final IndexLog log;
+  private final ExecutorService executor;
+  // the structure below is changed under the write lock and read under the read lock
+  private volatile ConcurrentSkipListMap<byte[], List<FileBlockLocation>> memtable;
+  // newest first
+  private final Deque<Frozen> frozen = new ArrayDeque<>();
+  // newest first, runs of level 0 may overlap
+  private final List<SortedRun> level0 = new ArrayList<>();
+  // levels.get(i) is the only run of level i + 1, or null
+  private final List<SortedRun> levels = new ArrayList<>();
+  // runs replaced by compaction that unfinished iterators still read
+  private final List<SortedRun> retired = new ArrayList<>();
+  // touched by the background thread only
+  private long flushedUpTo = -1;
+  private volatile IOException failure;
+  private boolean closed;
+
+  /**
+   * Состав индекса, см. {@link ConfigSaver#saveLsmManifest}.
+   */
+  record Manifest(long nextId, long flushedUpTo, List<Long> level0, List<Long> levels) {
+
+  }
+
+  /**
+   * Замороженная таблица, которая ждет сброса на диск. Ее журнал лежит в index.lsm.log.id.
+   */
+  private record Frozen(long id, NavigableMap<byte[], List<FileBlockLocation>> entries) {
+
+  }
+
+  LsmIndexManager(Path workDir, int memtableMaxEntries) throws IOException {
+    this.workDir = workDir.toFile();
+    this.memtableMaxEntries = memtableMaxEntries;
+    this.memtable = new ConcurrentSkipListMap<>(KEY_ORDER);
+    File manifestFile = new File(this.workDir, manifestFileName);
+    if (manifestFile.exists()) {
+      Manifest manifest = ConfigSaver.loadLsmManifest(manifestFile);
+      nextId.set(manifest.nextId());
+      flushedUpTo = manifest.flushedUpTo();
+      for (long id : manifest.level0()) {
+        level0.add(SortedRun.open(id, runFile(id), runReads));
+      }
+      for (long id : manifest.levels()) {
+        levels.add(id < 0 ? null : SortedRun.open(id, runFile(id), runReads));
+      }
+    }
+    deleteUnusedRuns();
+    IndexLog.Visitor replay = new IndexLog.Visitor() {
+      @Override
+      public void upsert(byte[] key, List<FileBlockLocation> blocks) {
+        memtable.put(key, blocks);
+      }
+
+      @Override
+      public void remove(byte[] key) {
+        memtable.put(key, TOMBSTONE);
+      }
+    };
+    // logs frozen before a crash and not flushed yet are older than the current log
+    for (File frozenLog : frozenLogs()) {
+      long id = fileNumber(frozenLog);
+      if (id <= flushedUpTo) {
+        Files.delete(frozenLog.toPath());
+      } else {
+        ConfigSaver.replayIndexLog(frozenLog, replay);
+        nextId.set(Math.max(nextId.get(), id + 1));
+      }
+    }
+    log = new IndexLog(new File(this.workDir, logFileName), replay);
+    executor = Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "index-compaction");
+      thread.setDaemon(true);
+      return thread;
+    });
+    freezeIfNeeded();
+  }
+
+  /**
+   * Создает связь key -> listOf(FileBlockLocation) в индексе.
+   */
+  @Override
+  public synchronized void add(byte[] key, List<FileBlockLocation> writtenBlocks)
+      throws IOException {
+    checkWritable();
+    freezeIfNeeded();
+    log.appendUpsert(key, writtenBlocks);
+    memtable.put(key, writtenBlocks);
+  }
+
+  /**
+   * Записывает надгробие: есть ли ключ в файлах на диске, не проверяется.
+   */
+  @Override
+  public synchronized void remove(byte[] key) throws IOException {
+    checkWritable();
+    freezeIfNeeded();
+    log.appendRemove(key);
+    memtable.put(key, TOMBSTONE);
+  }
+
+  @Override
+  public synchronized void applyBatch(List<IndexEntry> upserts, List<byte[]> removes)
+      throws IOException {
+    checkWritable();
+    freezeIfNeeded();
+    log.appendBatch(upserts, removes);
+    for (IndexEntry entry : upserts) {
+      memtable.put(entry.key(), entry.blocks());
+    }
+    for (byte[] key : removes) {
+      memtable.put(key, TOMBSTONE);
+    }
+  }
+
+  /**
+   * Ищет ключ от новых данных к старым: таблица в памяти, замороженные таблицы, нулевой уровень,
+   * остальные уровни. Файлы, чей фильтр Блума не содержит ключа, не читаются.
+   */
+  @Override
+  public List<FileBlockLocation> getFileBlocksLocations(byte[] key) throws IOException {
+    lock.readLock().lock();
+    try {
+      checkOpen();
+      List<FileBlockLocation> blocks = memtable.get(key);
+      if (blocks != null) {
+        return blocks == TOMBSTONE ? null : blocks;
+      }
+      for (Frozen table : frozen) {
+        blocks = table.entries().get(key);
+        if (blocks != null) {
+          return blocks == TOMBSTONE ? null : blocks;
+        }
+      }
+      for (SortedRun run : runsNewestFirst()) {
+        IndexEntry entry = run.get(key);
+        if (entry != null) {
+          return entry.blocks();
+        }
+      }
+      return null;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Сбрасывает только журнал таблицы в памяти: замороженные журналы сбрасываются при заморозке, а
+   * файлы уровней -- при записи.
+   */
+  @Override
+  public void sync() throws IOException {
+    checkOpen();
+    log.force();
+  }
+
+  /**
+   * Перебирает живые ключи по возрастанию, сливая таблицы в памяти и файлы всех уровней.
+   */
+  @Override
+  public Iterator<IndexEntry> entries() throws IOException {
+    return range(null, null);
+  }
+
+  /**
+   * Сливает поддиапазоны таблиц в памяти и файлов всех уровней. Чтение файлов начинается с
+   * ближайшей к from точки их разреженного индекса и заканчивается на первом ключе не меньше to.
+   */
+  @Override
+  public Iterator<IndexEntry> range(byte[] from, byte[] to) throws IOException {
+    List<Iterator<IndexEntry>> sources = new ArrayList<>();
+    lock.readLock().lock();
+    try {
+      checkOpen();
+      sources.add(tableEntries(from == null ? memtable : memtable.tailMap(from, true)));
+      for (Frozen table : frozen) {
+        sources.add(tableEntries(from == null ? table.entries()
+            : table.entries().tailMap(from, true)));
+      }
+      for (SortedRun run : runsNewestFirst()) {
+        sources.add(run.iterator(from));
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    Iterator<IndexEntry> live = withoutTombstones(new MergingIterator(sources));
+    if (to == null) {
+      return live;
+    }
+    return new Iterator<>() {
+      private IndexEntry next = live.hasNext() ? live.next() : null;
+
+      @Override
+      public boolean hasNext() {
+        return next != null && Arrays.compareUnsigned(next.key(), to) < 0;
+      }
+
+      @Override
+      public IndexEntry next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        IndexEntry entry = next;
+        next = live.hasNext() ? live.next() : null;
+        return entry;
+      }
+    };
+  }
+
+  /**
+   * TestOnly Сколько раз поиск читал участки файлов на диске.
+   */
+  long runReads() {
+    return runReads.get();
+  }
+
+  /**
+   * Closes this stream and releases any system resources associated with it. If the stream is
+   * already closed then invoking this method has no effect.
+   * <p>
+   * Waits for the background flushes and compactions. The memtable is not flushed, its log is
+   * replayed on the next open.
+   *
+   * @throws IOException if an I/O error occurs
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    executor.shutdown();
+    try {
+      if (!executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS)) {
+        throw new IOException("Index compaction did not finish");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for index compaction");
+    }
+    lock.writeLock().lock();
+    try {
+      closed = true;
+      log.close();
+      for (SortedRun run : runsNewestFirst()) {
+        run.close();
+      }
+      for (SortedRun run : retired) {
+        run.close();
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+    checkFailure();
+  }
+
+  private void checkOpen() {
+    if (closed) {
+      throw new IllegalStateException("Storage is closed");
+    }
+  }
+
+  private void checkWritable() throws IOException {
+    checkOpen();
+    checkFailure();
+  }
+
+  private void checkFailure() throws IOException {
+    if (failure != null) {
+      throw new IOException("Background index compaction failed", failure);
+    }
+  }
+
+  /**
+   * Замораживает заполненную таблицу вместе с ее журналом и планирует ее сброс на диск.
+   * Вызывается под монитором писателей до изменения, так что ошибка заморозки его не применяет.
+   */
+  private void freezeIfNeeded() throws IOException {
+    if (memtable.size() < memtableMaxEntries) {
+      return;
+    }
+    long id = nextId.getAndIncrement();
+    log.rotate(frozenLogFile(id));
+    lock.writeLock().lock();
+    try {
+      frozen.addFirst(new Frozen(id, memtable));
+      memtable = new ConcurrentSkipListMap<>(KEY_ORDER);
+    } finally {
+      lock.writeLock().unlock();
+    }
+    executor.execute(this::flushInBackground);
+  }
+
+  private void flushInBackground() {
+    if (failure != null) {
+      return;
+    }
+    try {
+      flush();
+      compact();
+    } catch (IOException e) {
+      failure = e;
+    } catch (UncheckedIOException e) {
+      failure = e.getCause();
+    }
+  }
+
+  private void flush() throws IOException {
+    Frozen oldest;
+    lock.readLock().lock();
+    try {
+      oldest = frozen.peekLast();
+    } finally {
+      lock.readLock().unlock();
+    }
+    if (oldest == null) {
+      return;
+    }
+    SortedRun run = SortedRun.write(oldest.id(), runFile(oldest.id()),
+        tableEntries(oldest.entries()), oldest.entries().size(), runReads);
+    lock.writeLock().lock();
+    try {
+      frozen.removeLast();
+      level0.add(0, run);
+    } finally {
+      lock.writeLock().unlock();
+    }
+    flushedUpTo = oldest.id();
+    saveManifest();
+    for (File frozenLog : frozenLogs()) {
+      if (fileNumber(frozenLog) <= flushedUpTo) {
+        Files.delete(frozenLog.toPath());
+      }
+    }
+  }
+
+  private void compact() throws IOException {
+    if (level0.size() >= LEVEL0_COMPACTION_TRIGGER) {
+      List<SortedRun> inputs = new ArrayList<>(level0);
+      if (!levels.isEmpty() && levels.get(0) != null) {
+        inputs.add(levels.get(0));
+      }
+      merge(inputs, 0);
+    }
+    long maxEntries = memtableMaxEntries;
+    for (int level = 0; level < levels.size(); level++) {
+      maxEntries = maxEntries > Long.MAX_VALUE / LEVEL_SIZE_RATIO
+          ? Long.MAX_VALUE : maxEntries * LEVEL_SIZE_RATIO;
+      SortedRun run = levels.get(level);
+      if (run != null && run.entries() > maxEntries) {
+        List<SortedRun> inputs = new ArrayList<>(List.of(run));
+        if (level + 1 < levels.size() && levels.get(level + 1) != null) {
+          inputs.add(levels.get(level + 1));
+        }
+        merge(inputs, level + 1);
+      }
+    }
+  }
+
+  /**
+   * Сливает inputs (от новых к старым) в один файл уровня levels.get(target).
+   */
+  private void merge(List<SortedRun> inputs, int target) throws IOException {
+    boolean bottom = true;
+    for (int level = target + 1; level < levels.size(); level++) {
+      bottom &= levels.get(level) == null;
+    }
+    long expectedEntries = 0;
+    List<Iterator<IndexEntry>> sources = new ArrayList<>();
+    for (SortedRun input : inputs) {
+      expectedEntries += input.entries();
+      sources.add(input.iterator());
+    }
+    Iterator<IndexEntry> merged = new MergingIterator(sources);
+    if (bottom) {
+      // nothing older is left below, so tombstones have nothing to hide
+      merged = withoutTombstones(merged);
+    }
+    long id = nextId.getAndIncrement();
+    SortedRun output = SortedRun.write(id, runFile(id), merged, expectedEntries, runReads);
+    if (output.entries() == 0) {
+      output.delete();
+      output = null;
+    }
+    lock.writeLock().lock();
+    try {
+      level0.removeAll(inputs);
+      for (int level = 0; level < levels.size(); level++) {
+        if (inputs.contains(levels.get(level))) {
+          levels.set(level, null);
+        }
+      }
+      while (levels.size() <= target) {
+        levels.add(null);
+      }
+      levels.set(target, output);
+      while (!levels.isEmpty() && levels.get(levels.size() - 1) == null) {
+        levels.remove(levels.size() - 1);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+    saveManifest();
+    // lookups take runs under the read lock, so only iterators may still read the replaced runs
+    lock.writeLock().lock();
+    try {
+      retired.removeIf(run -> !run.inUse());
+      for (SortedRun input : inputs) {
+        input.delete();
+        if (input.inUse()) {
+          retired.add(input);
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private void saveManifest() throws IOException {
+    List<Long> level0Ids = new ArrayList<>();
+    List<Long> levelIds = new ArrayList<>();
+    lock.readLock().lock();
+    try {
+      level0.forEach(run -> level0Ids.add(run.id()));
+      levels.forEach(run -> levelIds.add(run == null ? -1 : run.id()));
+    } finally {
+      lock.readLock().unlock();
+    }
+    File manifestFile = new File(workDir, manifestFileName);
+    File tmpFile = new File(workDir, manifestFileName + ".tmp");
+    ConfigSaver.saveLsmManifest(new Manifest(nextId.get(), flushedUpTo, level0Ids, levelIds),
+        tmpFile);
+    Files.move(tmpFile.toPath(), manifestFile.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+    FileChannelCache.syncDirectory(workDir.toPath());
+  }
+
+  private List<SortedRun> runsNewestFirst() {
+    List<SortedRun> runs = new ArrayList<>(level0);
+    for (SortedRun run : levels) {
+      if (run != null) {
+        runs.add(run);
+      }
+    }
+    return runs;
+  }
+
+  /**
+   * Удаляет файлы, недописанные или замененные слиянием до падения.
+   */
+  private void deleteUnusedRuns() throws IOException {
+    Set<Long> used = new HashSet<>();
+    runsNewestFirst().forEach(run -> used.add(run.id()));
+    File[] files = workDir.listFiles((dir, name) -> name.startsWith(runPrefix));
+    for (File file : files == null ? new File[0] : files) {
+      if (!used.contains(fileNumber(file))) {
+        Files.delete(file.toPath());
+      }
+    }
+  }
+
+  private List<File> frozenLogs() {
+    File[] files = workDir.listFiles((dir, name) -> name.startsWith(frozenLogPrefix));
+    List<File> logs = new ArrayList<>(files == null ? List.of() : List.of(files));
+    logs.sort(Comparator.comparingLong(LsmIndexManager::fileNumber));
+    return logs;
+  }
+
+  private File frozenLogFile(long id) {
+    return new File(workDir, frozenLogPrefix + id);
+  }
+
+  private File runFile(long id) {
+    return new File(workDir, runPrefix + id);
+  }
+
+  private static long fileNumber(File file) {
+    String name = file.getName();
+    return Long.parseLong(name.substring(name.lastIndexOf('.') + 1));
+  }
+
+  private static Iterator<IndexEntry> tableEntries(
+      NavigableMap<byte[], List<FileBlockLocation>> table) {
+    Iterator<Map.Entry<byte[], List<FileBlockLocation>>> iterator = table.entrySet().iterator();
+    return new Iterator<>() {
+      @Override
+      public boolean hasNext() {
+        return iterator.hasNext();
+      }
+
+      @Override
+      public IndexEntry next() {
+        var entry = iterator.next();
+        var blocks = entry.getValue();
+        return new IndexEntry(entry.getKey(), blocks == TOMBSTONE ? null : blocks);
+      }
+    };
+  }
+
+  private static Iterator<IndexEntry> withoutTombstones(Iterator<IndexEntry> entries) {
+    return new Iterator<>() {
+      private IndexEntry next = advance();
+
+      @Override
+      public boolean hasNext() {
+        return next != null;
+      }
+
+      @Override
+      public IndexEntry next() {
+        if (next == null) {
+          throw new NoSuchElementException();
+        }
+        IndexEntry entry = next;
+        next = advance();
+        return entry;
+      }
+
+      private IndexEntry advance() {
+        while (entries.hasNext()) {
+          IndexEntry entry = entries.next();
+          if (entry.blocks() != null) {
+            return entry;
+          }
+        }
+        return null;
+      }
+    };
+  }
+
+  /**
+   * Сливает отсортированные по ключу источники, перечисленные от новых к старым. Для ключа,
+   * который есть в нескольких источниках, выдается запись из самого нового, включая надгробия.
+   */
+  private static final class MergingIterator implements Iterator<IndexEntry> {
+
+    private record Cursor(int age, IndexEntry entry, Iterator<IndexEntry> rest) {
+
+    }
+
+    private final PriorityQueue<Cursor> queue = new PriorityQueue<>(
+        Comparator.comparing((Cursor cursor) -> cursor.entry().key(), KEY_ORDER)
+            .thenComparingInt(Cursor::age));
+
+    MergingIterator(List<Iterator<IndexEntry>> sources) {
+      for (int age = 0; age < sources.size(); age++) {
+        advance(age, sources.get(age));
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return !queue.isEmpty();
+    }
+
+    @Override
+    public IndexEntry next() {
+      Cursor newest = queue.poll();
+      if (newest == null) {
+        throw new NoSuchElementException();
+      }
+      advance(newest.age(), newest.rest());
+      // older versions of the same key are shadowed
+      while (!queue.isEmpty()
+          && Arrays.compareUnsigned(queue.peek().entry().key(), newest.entry().key()) == 0) {
+        Cursor shadowed = queue.poll();
+        advance(shadowed.age(), shadowed.rest());
+      }
+      return newest.entry();
+    }
+
+    private void advance(int age, Iterator<IndexEntry> source) {
+      if (source.hasNext()) {
+        queue.add(new Cursor(age, source.next(), source));
+      }
+    }
+  }
+}
@@ -0,0 +1,808 @@
+package org.csc.java.spring2023;
+
+import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32C;
+
+/**
+ * Индекс в виде хеш-таблицы с открытой адресацией (линейное пробирование), отображенной в память.
+ * <p>
+ * Таблица слотов лежит в файле index.table, записи (ключ и список блоков) дописываются в файл
+ * index.data.N. Оба файла отображены в память, так что пробирование читает ключи без системных
+ * вызовов. Слот хранит хеш ключа, длину и смещение записи, так что при открытии ничего не
+ * десериализуется, а при росте таблицы ключи не перечитываются. Перезаписанные и удаленные записи
+ * остаются мусором в файле данных, пока его не перепишет очередная перестройка таблицы.
+ * <p>
+ * Слоты и счетчики меняются на месте, и после падения ОС страницы обоих файлов могут оказаться на
+ * диске в любом сочетании. Поэтому файл данных служит заодно журналом: в него дописывается каждое
+ * изменение, включая удаления, в записях с контрольными суммами, а перед первым изменением после
+ * открытия или перестройки в заголовок таблицы записывается и сбрасывается на диск признак
+ * {@link #DIRTY_MAGIC}. Чистое закрытие снимает его после сброса обоих файлов. Если таблица
+ * открывается с этим признаком, она строится заново по записям файла данных до первой испорченной,
+ * см. {@link #recover()}. Так изменения, сброшенные {@link #sync()}, переживают падение ОС.
+ * <p>
+ * Чтения идут параллельно под блокировкой на чтение, изменения и перестройки берут блокировку на
+ * запись.
+ */
+final class MappedIndexManager implements IndexManager {
+
+  private static final String tableFileName = "index.table";
+  private static final String dataFilePrefix = "index.data.";
+  // tables whose data files hold bare records without frames, they are rewritten on open
+  private static final int LEGACY_MAGIC = 0x4B564958;
+  private static final int MAGIC = 0x4B564959;
+  private static final int DIRTY_MAGIC = 0x4B56495A;
+  private static final int INITIAL_CAPACITY = 1024;
+  // the whole table must fit into a single mapping
+  private static final int MAX_CAPACITY = 1 << 26;
+  private static final double MAX_LOAD_FACTOR = 0.7;
+  private static final long MIN_GARBAGE_TO_COMPACT = 1 << 20;
+
+  private static final int HEADER_SIZE = 32;
+  private static final int CAPACITY_POSITION = 4;
+  private static final int SIZE_POSITION = 8;
+  private static final int TOMBSTONES_POSITION = 12;
+  private static final int GARBAGE_POSITION = 16;
+  private static final int GENERATION_POSITION = 24;
+
+  private static final int SLOT_SIZE = 16;
+  private static final int SLOT_LENGTH = 4;
+  private static final int SLOT_OFFSET = 8;
+  private static final long EMPTY = 0;
+  private static final long REMOVED = -1;
+  // record offsets start after this prefix, so 0 can mark an empty slot
+  private static final int DATA_HEADER_SIZE = Long.BYTES;
+  private static final int DATA_REGION_SIZE = 1 << 24;
+  // int length, int CRC32C of the type and the payload, byte type
+  private static final int FRAME_HEADER_SIZE = 2 * Integer.BYTES + 1;
+  // byte type and int length of every change in a batch payload
+  private static final int BATCH_ITEM_HEADER_SIZE = 1 + Integer.BYTES;
+
+  private final Path workDir;
+  private final File tableFile;
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private MappedByteBuffer table;
+  private DataFile data;
+  private int capacity;
+  private int size;
+  private int tombstones;
+  private long garbage;
+  private long generation;
+  // whether the table on disk is marked as changed in place since it was last consistent
+  private boolean dirty;
+  // set when a rebuild has replaced the files, so the directory has to be synced too
+  private volatile boolean directoryUnsynced;
+
+  MappedIndexManager(Path workDir) throws IOException {
+    this.workDir = workDir;
+    this.tableFile = new File(workDir.toFile(), tableFileName);
+    if (tableFile.exists()) {
+      table = map(tableFile);
+      int magic = table.getInt(0);
+      if (magic != MAGIC && magic != DIRTY_MAGIC && magic != LEGACY_MAGIC) {
+        throw new IOException("Not an index table: " + tableFile);
+      }
+      capacity = table.getInt(CAPACITY_POSITION);
+      size = table.getInt(SIZE_POSITION);
+      tombstones = table.getInt(TOMBSTONES_POSITION);
+      garbage = table.getLong(GARBAGE_POSITION);
+      generation = table.getLong(GENERATION_POSITION);
+      data = DataFile.open(dataFile(generation));
+      if (magic == DIRTY_MAGIC) {
+        recover();
+      } else if (magic == LEGACY_MAGIC) {
+        // copying the records into a new data file frames them
+        rebuild(capacity, true);
+      }
+    } else {
+      capacity = INITIAL_CAPACITY;
+      generation = 0;
+      data = DataFile.create(dataFile(generation));
+      table = createTable(tableFile, capacity);
+      writeHeader(table, capacity, 0, 0, 0, generation);
+      directoryUnsynced = true;
+    }
+    deleteStaleFiles();
+  }
+
+  /**
+   * Создает связь key -> listOf(FileBlockLocation) в индексе.
+   */
+  @Override
+  public void add(byte[] key, List<FileBlockLocation> writtenBlocks) throws IOException {
+    lock.writeLock().lock();
+    try {
+      addLocked(key, writtenBlocks);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Добавляет несколько связей: таблица перестраивается и место под записи отображается заранее,
+   * так что индекс меняется либо целиком, либо никак.
+   */
+  @Override
+  public void applyBatch(List<IndexEntry> upserts, List<byte[]> removes) throws IOException {
+    lock.writeLock().lock();
+    try {
+      checkOpen();
+      List<byte[]> records = new ArrayList<>(upserts.size() + removes.size());
+      int payloadLength = 0;
+      for (IndexEntry entry : upserts) {
+        records.add(ConfigSaver.encodeIndexEntry(entry.key(), entry.blocks()));
+      }
+      for (byte[] key : removes) {
+        records.add(tombstone(key));
+      }
+      if (records.isEmpty()) {
+        return;
+      }
+      for (byte[] record : records) {
+        payloadLength = Math.addExact(payloadLength, BATCH_ITEM_HEADER_SIZE + record.length);
+      }
+      // the whole batch is a single frame, so recovery applies all of it or none
+      ByteBuffer payload = ByteBuffer.allocate(payloadLength);
+      int[] positions = new int[records.size()];
+      for (int i = 0; i < records.size(); i++) {
+        byte type = i < upserts.size() ? IndexLog.UPSERT : IndexLog.REMOVE;
+        payload.put(type).putInt(records.get(i).length);
+        positions[i] = payload.position();
+        payload.put(records.get(i));
+      }
+      prepare(upserts.size(), FRAME_HEADER_SIZE + payloadLength);
+      markDirty();
+      long offset = data.append(IndexLog.BATCH, payload.array());
+      garbage += FRAME_HEADER_SIZE + payloadLength;
+      for (int i = 0; i < upserts.size(); i++) {
+        garbage -= records.get(i).length;
+        link(upserts.get(i).key(), records.get(i).length, offset + positions[i]);
+      }
+      for (byte[] key : removes) {
+        unlink(key);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private void addLocked(byte[] key, List<FileBlockLocation> writtenBlocks) throws IOException {
+    checkOpen();
+    byte[] record = ConfigSaver.encodeIndexEntry(key, writtenBlocks);
+    prepare(1, FRAME_HEADER_SIZE + record.length);
+    put(key, record);
+  }
+
+  /**
+   * Сжимает и перестраивает таблицу и отображает место под recordBytes байт записей до изменения:
+   * после этого добавление added ключей меняет только отображенную память и прерваться не может.
+   */
+  private void prepare(int added, long recordBytes) throws IOException {
+    compactIfNeeded();
+    if (size + tombstones + added > capacity * MAX_LOAD_FACTOR) {
+      rebuild(added);
+    }
+    data.reserve(recordBytes);
+  }
+
+  private void put(byte[] key, byte[] record) throws IOException {
+    markDirty();
+    long offset = data.append(IndexLog.UPSERT, record);
+    garbage += FRAME_HEADER_SIZE;
+    link(key, record.length, offset);
+  }
+
+  /**
+   * Направляет слот ключа на запись длиной length, уже дописанную по смещению offset.
+   */
+  private void link(byte[] key, int length, long offset) throws IOException {
+    int hash = hash(key);
+    int slot = findSlot(key, hash);
+    if (slot >= 0) {
+      garbage += slotLength(slot);
+    } else {
+      slot = -slot - 1;
+      if (slotOffset(slot) == REMOVED) {
+        tombstones--;
+      }
+      size++;
+    }
+    writeSlot(table, slot, hash, length, offset);
+    writeHeader(table, capacity, size, tombstones, garbage, generation);
+  }
+
+  @Override
+  public void remove(byte[] key) throws IOException {
+    lock.writeLock().lock();
+    try {
+      removeLocked(key);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private void removeLocked(byte[] key) throws IOException {
+    checkOpen();
+    if (findSlot(key, hash(key)) < 0) {
+      return;
+    }
+    byte[] tombstone = tombstone(key);
+    compactIfNeeded();
+    data.reserve(FRAME_HEADER_SIZE + tombstone.length);
+    markDirty();
+    data.append(IndexLog.REMOVE, tombstone);
+    garbage += FRAME_HEADER_SIZE + tombstone.length;
+    unlink(key);
+  }
+
+  private static byte[] tombstone(byte[] key) throws IOException {
+    return ConfigSaver.encodeIndexEntry(key, List.of());
+  }
+
+  private void unlink(byte[] key) throws IOException {
+    int slot = findSlot(key, hash(key));
+    if (slot < 0) {
+      return;
+    }
+    garbage += slotLength(slot);
+    table.putLong(slotPosition(slot) + SLOT_OFFSET, REMOVED);
+    size--;
+    tombstones++;
+    writeHeader(table, capacity, size, tombstones, garbage, generation);
+  }
+
+  /**
+   * Сбрасывает сначала дописанные записи, затем ссылающуюся на них таблицу. Пока идет сброс,
+   * изменения ждут, так как таблица может быть перестроена. Признак {@link #DIRTY_MAGIC} остается:
+   * после падения таблица все равно строится заново, но уже из сброшенных записей.
+   */
+  @Override
+  public void sync() throws IOException {
+    lock.readLock().lock();
+    try {
+      checkOpen();
+      data.force();
+      table.force();
+    } finally {
+      lock.readLock().unlock();
+    }
+    if (directoryUnsynced) {
+      directoryUnsynced = false;
+      FileChannelCache.syncDirectory(workDir);
+    }
+  }
+
+  /**
+   * Возвращает список блоков, в которых хранится значение.
+   */
+  @Override
+  public List<FileBlockLocation> getFileBlocksLocations(byte[] key) throws IOException {
+    lock.readLock().lock();
+    try {
+      checkOpen();
+      int slot = findSlot(key, hash(key));
+      return slot < 0 ? null : readEntry(slot).blocks();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Перебирает слоты по порядку, беря блокировку на каждый шаг. Если таблицу перестроят во время
+   * перебора, часть записей может быть пропущена или встретиться дважды.
+   */
+  @Override
+  public Iterator<IndexEntry> entries() {
+    lock.readLock().lock();
+    try {
+      checkOpen();
+    } finally {
+      lock.readLock().unlock();
+    }
+    return new Iterator<>() {
+      private int slot = -1;
+      private IndexEntry next = advance();
+
+      @Override
+      public boolean hasNext() {
+        return next != null;
+      }
+
+      @Override
+      public IndexEntry next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        IndexEntry entry = next;
+        next = advance();
+        return entry;
+      }
+
+      private IndexEntry advance() {
+        lock.readLock().lock();
+        try {
+          checkOpen();
+          slot = nextLiveSlot(slot + 1);
+          return slot < capacity ? readEntry(slot) : null;
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        } finally {
+          lock.readLock().unlock();
+        }
+      }
+    };
+  }
+
+  private int nextLiveSlot(int from) {
+    int slot = from;
+    while (slot < capacity && (slotOffset(slot) == EMPTY || slotOffset(slot) == REMOVED)) {
+      slot++;
+    }
+    return slot;
+  }
+
+  /**
+   * Closes this stream and releases any system resources associated with it. If the stream is
+   * already closed then invoking this method has no effect.
+   * <p>
+   * Both mappings are forced before closing and only then the table is marked clean, so a clean
+   * close survives an OS crash in any durability mode and the next open skips the recovery.
+   *
+   * @throws IOException if an I/O error occurs
+   */
+  @Override
+  public void close() throws IOException {
+    lock.writeLock().lock();
+    try {
+      if (table == null) {
+        return;
+      }
+      data.force();
+      table.force();
+      if (dirty) {
+        table.putInt(0, MAGIC);
+        table.force(0, HEADER_SIZE);
+        dirty = false;
+      }
+      table = null;
+      data.close();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private void checkOpen() {
+    if (table == null) {
+      throw new IllegalStateException("Storage is closed");
+    }
+  }
+
+  /**
+   * Отмечает таблицу на диске как меняющуюся на месте. Признак сбрасывается на диск раньше, чем
+   * может попасть туда любая измененная после него страница.
+   */
+  private void markDirty() {
+    if (!dirty) {
+      table.putInt(0, DIRTY_MAGIC);
+      table.force(0, HEADER_SIZE);
+      dirty = true;
+    }
+  }
+
+  /**
+   * Строит таблицу заново после падения: проигрывает записи файла данных до первой испорченной и
+   * переносит живые в новое поколение файлов, как {@link #rebuild(int, boolean)}. Новые записи не
+   * дописываются за испорченной, так что ее хвост не может позже ожить.
+   */
+  private void recover() throws IOException {
+    Map<ByteWrapper, List<FileBlockLocation>> live = new HashMap<>();
+    data.replay(IndexLog.Visitor.applyingTo(live));
+    int newCapacity = INITIAL_CAPACITY;
+    while (live.size() > newCapacity * MAX_LOAD_FACTOR / 2) {
+      if (newCapacity == MAX_CAPACITY) {
+        throw new IOException("Index table is full");
+      }
+      newCapacity *= 2;
+    }
+    data.close();
+    generation++;
+    data = DataFile.create(dataFile(generation));
+    File tmpFile = new File(workDir.toFile(), tableFileName + ".tmp");
+    table = createTable(tmpFile, newCapacity);
+    capacity = newCapacity;
+    size = 0;
+    tombstones = 0;
+    garbage = 0;
+    // the new table is not in place yet, it needs no flag until the move
+    dirty = true;
+    for (Map.Entry<ByteWrapper, List<FileBlockLocation>> entry : live.entrySet()) {
+      byte[] key = entry.getKey().getBytes();
+      put(key, ConfigSaver.encodeIndexEntry(key, entry.getValue()));
+    }
+    writeHeader(table, capacity, size, tombstones, garbage, generation);
+    data.force();
+    table.force();
+    Files.move(tmpFile.toPath(), tableFile.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+    FileChannelCache.syncDirectory(workDir);
+    dirty = false;
+  }
+
+  /**
+   * Возвращает номер слота с ключом или -(номер слота для вставки + 1), если ключа нет.
+   */
+  private int findSlot(byte[] key, int hash) throws IOException {
+    int mask = capacity - 1;
+    int freeSlot = -1;
+    // the load factor guarantees an empty slot, so probing always terminates
+    for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+      long offset = slotOffset(slot);
+      if (offset == EMPTY) {
+        return -(freeSlot >= 0 ? freeSlot : slot) - 1;
+      }
+      if (offset == REMOVED) {
+        if (freeSlot < 0) {
+          freeSlot = slot;
+        }
+      } else if (slotHash(slot) == hash && Arrays.equals(readEntry(slot).key(), key)) {
+        return slot;
+      }
+    }
+  }
+
+  private IndexEntry readEntry(int slot) throws IOException {
+    return ConfigSaver.decodeIndexEntry(data.read(slotOffset(slot), slotLength(slot)));
+  }
+
+  /**
+   * Перестраивает таблицу: удваивает ее, если она действительно заполнена, иначе только
+   * избавляется от надгробий.
+   */
+  private void rebuild(int added) throws IOException {
+    int newCapacity = capacity;
+    while (size + added > newCapacity * MAX_LOAD_FACTOR / 2) {
+      if (newCapacity == MAX_CAPACITY) {
+        throw new IOException("Index table is full");
+      }
+      newCapacity *= 2;
+    }
+    rebuild(newCapacity, false);
+  }
+
+  private void compactIfNeeded() throws IOException {
+    long live = data.end() - DATA_HEADER_SIZE - garbage;
+    if (garbage > Math.max(live, MIN_GARBAGE_TO_COMPACT)) {
+      rebuild(capacity, true);
+    }
+  }
+
+  /**
+   * Переносит все живые слоты в новую таблицу, а при compactData еще и их записи в новый файл
+   * данных. Новая таблица подменяет старую атомарным переименованием и ссылается на свое поколение
+   * файла данных, поэтому падение посреди перестройки оставляет рабочий старый индекс.
+   */
+  private void rebuild(int newCapacity, boolean compactData) throws IOException {
+    long newGeneration = compactData ? generation + 1 : generation;
+    DataFile newData = compactData ? DataFile.create(dataFile(newGeneration)) : data;
+    File tmpFile = new File(workDir.toFile(), tableFileName + ".tmp");
+    MappedByteBuffer newTable = createTable(tmpFile, newCapacity);
+    int mask = newCapacity - 1;
+    for (int slot = 0; slot < capacity; slot++) {
+      long offset = slotOffset(slot);
+      if (offset == EMPTY || offset == REMOVED) {
+        continue;
+      }
+      int hash = slotHash(slot);
+      int length = slotLength(slot);
+      if (compactData) {
+        offset = newData.append(IndexLog.UPSERT, data.read(offset, length));
+      }
+      int newSlot = hash & mask;
+      while (newTable.getLong(slotPosition(newSlot) + SLOT_OFFSET) != EMPTY) {
+        newSlot = (newSlot + 1) & mask;
+      }
+      writeSlot(newTable, newSlot, hash, length, offset);
+    }
+    long newGarbage = compactData ? (long) size * FRAME_HEADER_SIZE : garbage;
+    writeHeader(newTable, newCapacity, size, 0, newGarbage, newGeneration);
+    // the new table is marked clean, so every record it points to has to be on disk first
+    newData.force();
+    newTable.force();
+    Files.move(tmpFile.toPath(), tableFile.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+    directoryUnsynced = true;
+    if (compactData) {
+      data.close();
+      Files.delete(dataFile(generation).toPath());
+      data = newData;
+    }
+    table = newTable;
+    capacity = newCapacity;
+    tombstones = 0;
+    garbage = newGarbage;
+    generation = newGeneration;
+    dirty = false;
+  }
+
+  /**
+   * Удаляет файлы, оставшиеся от прерванной перестройки.
+   */
+  private void deleteStaleFiles() throws IOException {
+    String current = dataFile(generation).getName();
+    File[] stale = workDir.toFile().listFiles((dir, name) -> name.equals(tableFileName + ".tmp")
+        || (name.startsWith(dataFilePrefix) && !name.equals(current)));
+    if (stale == null) {
+      return;
+    }
+    for (File file : stale) {
+      Files.delete(file.toPath());
+    }
+  }
+
+  private File dataFile(long generation) {
+    return new File(workDir.toFile(), dataFilePrefix + generation);
+  }
+
+  private static MappedByteBuffer createTable(File file, int capacity) throws IOException {
+    Files.deleteIfExists(file.toPath());
+    try (FileChannel channel = FileChannel.open(file.toPath(), READ, WRITE, CREATE)) {
+      long length = HEADER_SIZE + (long) capacity * SLOT_SIZE;
+      MappedByteBuffer buffer = channel.map(READ_WRITE, 0, length);
+      buffer.putInt(0, MAGIC);
+      return buffer;
+    }
+  }
+
+  private static MappedByteBuffer map(File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), READ, WRITE)) {
+      return channel.map(READ_WRITE, 0, channel.size());
+    }
+  }
+
+  private static void writeHeader(MappedByteBuffer table, int capacity, int size, int tombstones,
+      long garbage, long generation) {
+    table.putInt(CAPACITY_POSITION, capacity);
+    table.putInt(SIZE_POSITION, size);
+    table.putInt(TOMBSTONES_POSITION, tombstones);
+    table.putLong(GARBAGE_POSITION, garbage);
+    table.putLong(GENERATION_POSITION, generation);
+  }
+
+  private static void writeSlot(MappedByteBuffer table, int slot, int hash, int length,
+      long offset) {
+    int position = slotPosition(slot);
+    table.putInt(position, hash);
+    table.putInt(position + SLOT_LENGTH, length);
+    // the offset goes last: a non-empty offset is what makes the slot visible
+    table.putLong(position + SLOT_OFFSET, offset);
+  }
+
+  private int slotHash(int slot) {
+    return table.getInt(slotPosition(slot));
+  }
+
+  private int slotLength(int slot) {
+    return table.getInt(slotPosition(slot) + SLOT_LENGTH);
+  }
+
+  private long slotOffset(int slot) {
+    return table.getLong(slotPosition(slot) + SLOT_OFFSET);
+  }
+
+  private static int slotPosition(int slot) {
+    return HEADER_SIZE + slot * SLOT_SIZE;
+  }
+
+  private static int hash(byte[] key) {
+    int hash = Arrays.hashCode(key) * 0x9E3779B9;
+    return hash ^ (hash >>> 16);
+  }
+
+  /**
+   * Файл записей, отображенный в память участками по {@value #DATA_REGION_SIZE} байт. Файл растет
+   * целыми участками, а где кончаются записи, хранится в его первых {@value #DATA_HEADER_SIZE}
+   * байтах. В файлах, записанных до этого, там 0, и записи кончаются вместе с файлом.
+   * <p>
+   * Каждая запись обрамлена: { int длина, int CRC32C типа и содержимого, byte тип, содержимое }.
+   * У {@link IndexLog#UPSERT} содержимое -- ключ и блоки, у {@link IndexLog#REMOVE} -- ключ с
+   * пустым списком блоков, у {@link IndexLog#BATCH} -- изменения набора в виде
+   * { byte тип, int длина, содержимое }. Слот указывает на содержимое записи или изменения набора.
+   */
+  private static final class DataFile {
+
+    private final FileChannel channel;
+    private final List<MappedByteBuffer> regions = new ArrayList<>();
+    private long end;
+
+    private DataFile(FileChannel channel) {
+      this.channel = channel;
+    }
+
+    static DataFile create(File file) throws IOException {
+      DataFile data = new DataFile(FileChannel.open(file.toPath(), READ, WRITE, CREATE));
+      data.channel.truncate(0);
+      data.setEnd(DATA_HEADER_SIZE);
+      return data;
+    }
+
+    static DataFile open(File file) throws IOException {
+      DataFile data = new DataFile(FileChannel.open(file.toPath(), READ, WRITE));
+      long size = data.channel.size();
+      data.ensureMapped(Math.max(size, DATA_HEADER_SIZE));
+      long end = data.regions.get(0).getLong(0);
+      data.setEnd(end == 0 ? size : end);
+      return data;
+    }
+
+    long end() {
+      return end;
+    }
+
+    /**
+     * Дописывает запись и только потом сдвигает конец, так что слот, ссылающийся на нее, никогда
+     * не указывает за конец файла.
+     *
+     * @return смещение содержимого записи
+     */
+    long append(byte type, byte[] payload) throws IOException {
+      long offset = end;
+      long frameEnd = offset + FRAME_HEADER_SIZE + payload.length;
+      ensureMapped(frameEnd);
+      CRC32C crc = new CRC32C();
+      crc.update(type);
+      crc.update(payload);
+      copy(offset, ByteBuffer.allocate(FRAME_HEADER_SIZE).putInt(payload.length)
+          .putInt((int) crc.getValue()).put(type).array(), true);
+      copy(offset + FRAME_HEADER_SIZE, payload, true);
+      setEnd(frameEnd);
+      return offset + FRAME_HEADER_SIZE;
+    }
+
+    /**
+     * Передает visitor изменения из записей по порядку до первой записи, которая недописана, не
+     * сходится с контрольной суммой или не разбирается. Сохраненный конец не используется: после
+     * падения он мог попасть на диск раньше или позже самих записей.
+     */
+    void replay(IndexLog.Visitor visitor) throws IOException {
+      long limit = (long) regions.size() * DATA_REGION_SIZE;
+      long position = DATA_HEADER_SIZE;
+      byte[] header = new byte[FRAME_HEADER_SIZE];
+      CRC32C crc = new CRC32C();
+      while (limit - position >= FRAME_HEADER_SIZE) {
+        copy(position, header, false);
+        ByteBuffer frame = ByteBuffer.wrap(header);
+        int length = frame.getInt();
+        int checksum = frame.getInt();
+        byte type = frame.get();
+        if (length < 0 || length > limit - position - FRAME_HEADER_SIZE) {
+          return;
+        }
+        byte[] payload = new byte[length];
+        copy(position + FRAME_HEADER_SIZE, payload, false);
+        crc.reset();
+        crc.update(type);
+        crc.update(payload);
+        if ((int) crc.getValue() != checksum) {
+          return;
+        }
+        List<IndexEntry> changes = new ArrayList<>();
+        try {
+          decode(type, payload, changes);
+        } catch (IOException | RuntimeException e) {
+          return;
+        }
+        for (IndexEntry change : changes) {
+          if (change.blocks() == null) {
+            visitor.remove(change.key());
+          } else {
+            visitor.upsert(change.key(), change.blocks());
+          }
+        }
+        position += FRAME_HEADER_SIZE + length;
+      }
+    }
+
+    /**
+     * Разбирает содержимое записи в changes; у удаления блоки null.
+     */
+    private static void decode(byte type, byte[] payload, List<IndexEntry> changes)
+        throws IOException {
+      switch (type) {
+        case IndexLog.UPSERT -> changes.add(ConfigSaver.decodeIndexEntry(payload));
+        case IndexLog.REMOVE -> changes.add(
+            new IndexEntry(ConfigSaver.decodeIndexEntry(payload).key(), null));
+        case IndexLog.BATCH -> {
+          ByteBuffer items = ByteBuffer.wrap(payload);
+          while (items.hasRemaining()) {
+            byte itemType = items.get();
+            if (itemType == IndexLog.BATCH) {
+              throw new IOException("Nested index data batch");
+            }
+            byte[] item = new byte[items.getInt()];
+            items.get(item);
+            decode(itemType, item, changes);
+          }
+        }
+        default -> throw new IOException("Unknown index data record type: " + type);
+      }
+    }
+
+    /**
+     * Отображает место еще под length байт записей, чтобы их дописывание не расширяло файл.
+     */
+    void reserve(long length) throws IOException {
+      ensureMapped(end + length);
+    }
+
+    byte[] read(long offset, int length) throws IOException {
+      if (offset + length > end) {
+        throw new IOException("Index data file is truncated");
+      }
+      byte[] record = new byte[length];
+      copy(offset, record, false);
+      return record;
+    }
+
+    void force() throws IOException {
+      for (MappedByteBuffer region : regions) {
+        region.force();
+      }
+      // the mappings have grown the file, its new length has to reach the disk too
+      channel.force(false);
+    }
+
+    void close() throws IOException {
+      channel.close();
+    }
+
+    private void setEnd(long newEnd) throws IOException {
+      ensureMapped(newEnd);
+      end = newEnd;
+      regions.get(0).putLong(0, newEnd);
+    }
+
+    private void ensureMapped(long length) throws IOException {
+      while ((long) regions.size() * DATA_REGION_SIZE < length) {
+        // mapping past the end extends the file
+        regions.add(channel.map(READ_WRITE, (long) regions.size() * DATA_REGION_SIZE,
+            DATA_REGION_SIZE));
+      }
+    }
+
+    private void copy(long offset, byte[] bytes, boolean write) {
+      int done = 0;
+      while (done < bytes.length) {
+        long position = offset + done;
+        MappedByteBuffer region = regions.get((int) (position / DATA_REGION_SIZE));
+        int regionOffset = (int) (position % DATA_REGION_SIZE);
+        int length = Math.min(bytes.length - done, DATA_REGION_SIZE - regionOffset);
+        if (write) {
+          region.put(regionOffset, bytes, done, length);
+        } else {
+          region.get(regionOffset, bytes, done, length);
+        }
+        done += length;
+      }
+    }
+  }
+}
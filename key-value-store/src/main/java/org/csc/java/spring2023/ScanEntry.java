@@ -0,0 +1,46 @@
+package org.csc.java.spring2023;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Ключ, найденный {@link KeyValueStore#scan}. Значение читается лениво, только когда его
+ * запрашивают, по блокам, найденным при перечислении, так что ключ второй раз не ищется. Если эти
+ * блоки с тех пор уже освобождены, ключ ищется заново и читается его значение на момент чтения:
+ * если ключ успели удалить, чтение бросит IOException.
+ */
+public final class ScanEntry {
+
+  /**
+   * Читает значение по блокам, найденным при перечислении.
+   */
+  interface ValueReader {
+
+    InputStream openValueStream(byte[] key, List<FileBlockLocation> blocks) throws IOException;
+
+    byte[] loadValue(byte[] key, List<FileBlockLocation> blocks) throws IOException;
+  }
+
+  private final ValueReader reader;
+  private final byte[] key;
+  private final List<FileBlockLocation> blocks;
+
+  ScanEntry(ValueReader reader, byte[] key, List<FileBlockLocation> blocks) {
+    this.reader = reader;
+    this.key = key;
+    this.blocks = blocks;
+  }
+
+  public byte[] key() {
+    return key.clone();
+  }
+
+  public InputStream openValueStream() throws IOException {
+    return reader.openValueStream(key, blocks);
+  }
+
+  public byte[] loadValue() throws IOException {
+    return reader.loadValue(key, blocks);
+  }
+}
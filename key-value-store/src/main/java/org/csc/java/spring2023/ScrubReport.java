@@ -0,0 +1,15 @@
+package org.csc.java.spring2023;
+
+import java.util.List;
+
+/**
+ * Результат проверки контрольных сумм хранилища.
+ *
+ * @param checkedValues   сколько значений проверено
+ * @param uncheckedValues сколько значений записано без контрольных сумм и не было проверено
+ * @param corruptedKeys   ключи значений, которые не удалось прочитать или у которых не совпала
+ *                        контрольная сумма
+ */
+public record ScrubReport(long checkedValues, long uncheckedValues, List<byte[]> corruptedKeys) {
+
+}
@@ -0,0 +1,653 @@
+package org.csc.java.spring2023;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import javax.management.ObjectName;
+
+/**
+ * Хранилище, которое раскладывает ключи по хешу между несколькими независимыми хранилищами, по
+ * одному на рабочую директорию. У каждого шарда свои индекс, файлы значений и блокировки, так что
+ * операции с разными шардами друг друга не ждут, а директории можно разнести по разным дискам.
+ * Шарды открываются и закрываются параллельно.
+ * <p>
+ * Ключ всегда попадает в один и тот же шард, поэтому в каждой директории записано, каким по счету
+ * шардом из скольких она является, и открыть директории в другом порядке или в другом количестве
+ * нельзя. {@link #write(WriteBatch)} применяет набор атомарно только в пределах одного шарда.
+ */
+final class ShardedKeyValueStore implements KeyValueStore {
+
+  static final String SHARD_INFO_FILE_NAME = "shard.info";
+
+  private final KeyValueStore[] shards;
+  // the shards measure their own operations, but their percentiles can't be merged
+  private final LatencyHistogram writeLatency = new LatencyHistogram();
+  private final LatencyHistogram containsLatency = new LatencyHistogram();
+  private final LatencyHistogram loadLatency = new LatencyHistogram();
+  private final LatencyHistogram upsertLatency = new LatencyHistogram();
+  private final LatencyHistogram removeLatency = new LatencyHistogram();
+  // null unless the metrics are registered in JMX, the shards never register their own
+  private final ObjectName jmxName;
+
+  /**
+   * Место рабочей директории в шардированном хранилище.
+   */
+  record ShardInfo(int shard, int shards) {
+
+  }
+
+  /**
+   * Действие над одним шардом, которое выполняется параллельно с остальными.
+   */
+  private interface ShardTask<T> {
+
+    T run(int shard) throws IOException;
+  }
+
+  ShardedKeyValueStore(List<Path> workDirs, int fileSize, KeyValueStoreOptions options)
+      throws IOException {
+    if (workDirs.isEmpty()) {
+      throw new IllegalArgumentException("At least one working directory is required");
+    }
+    Set<Path> distinct = new HashSet<>();
+    for (Path workDir : workDirs) {
+      if (!distinct.add(workDir.toAbsolutePath().normalize())) {
+        throw new IllegalArgumentException("Working directory " + workDir + " is used twice");
+      }
+    }
+    shards = new KeyValueStore[workDirs.size()];
+    KeyValueStoreOptions shardOptions = options.withoutJmxName();
+    try {
+      inParallel(shards.length, shard -> {
+        shards[shard] = openShard(workDirs.get(shard), new ShardInfo(shard, shards.length),
+            fileSize, shardOptions);
+        return null;
+      });
+      jmxName = options.jmxName() == null ? null
+          : KeyValueStoreMetricsBean.register(options.jmxName(), this);
+    } catch (IOException | RuntimeException e) {
+      // the shards that did open must not stay open
+      try {
+        inParallel(shards.length, shard -> {
+          if (shards[shard] != null) {
+            shards[shard].close();
+          }
+          return null;
+        });
+      } catch (IOException | RuntimeException closeFailure) {
+        e.addSuppressed(closeFailure);
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Собирает хранилище из уже открытых шардов, например из их снимков.
+   */
+  private ShardedKeyValueStore(KeyValueStore[] shards) {
+    this.shards = shards;
+    this.jmxName = null;
+  }
+
+  /**
+   * Открывает хранилище шарда, а в новой директории сначала записывает, каким шардом она стала.
+   * Непустую директорию без этой записи шардом не делает: в ней может лежать отдельное хранилище,
+   * чьи ключи не разложены по шардам.
+   */
+  private static KeyValueStore openShard(Path workDir, ShardInfo info, int fileSize,
+      KeyValueStoreOptions options) throws IOException {
+    File infoFile = new File(workDir.toString(), SHARD_INFO_FILE_NAME);
+    if (infoFile.exists()) {
+      ShardInfo saved = ConfigSaver.loadShardInfo(infoFile);
+      if (!saved.equals(info)) {
+        throw new IllegalArgumentException(
+            workDir + " is shard " + saved.shard() + " of " + saved.shards()
+                + ", but was opened as shard " + info.shard() + " of " + info.shards());
+      }
+    } else if (Files.isDirectory(workDir)) {
+      File tmpFile = new File(workDir.toString(), SHARD_INFO_FILE_NAME + ".tmp");
+      try (Stream<Path> files = Files.list(workDir)) {
+        // a leftover tmp file means that a crash cut the previous attempt short
+        if (files.anyMatch(file -> !file.equals(tmpFile.toPath()))) {
+          throw new IllegalArgumentException(
+              workDir + " is not empty, but is not a shard of a sharded store");
+        }
+      }
+      ConfigSaver.saveShardInfo(info, tmpFile);
+      Files.move(tmpFile.toPath(), infoFile.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+      FileChannelCache.syncDirectory(workDir);
+    }
+    return KeyValueStoreFactory.create(workDir, fileSize, options);
+  }
+
+  /**
+   * Номер шарда ключа. Хеш перемешивается, потому что младшие биты {@link Arrays#hashCode(byte[])}
+   * у похожих ключей почти совпадают.
+   */
+  static int shardOf(byte[] key, int shards) {
+    int hash = Arrays.hashCode(key);
+    hash ^= hash >>> 16;
+    hash *= 0x85ebca6b;
+    hash ^= hash >>> 13;
+    hash *= 0xc2b2ae35;
+    hash ^= hash >>> 16;
+    return Math.floorMod(hash, shards);
+  }
+
+  private KeyValueStore shardFor(byte[] key) {
+    Objects.requireNonNull(key, "Key can't be null");
+    return shards[shardOf(key, shards.length)];
+  }
+
+  /**
+   * Выполняет task для каждого шарда в отдельном потоке и дожидается всех, даже если какие-то
+   * упали. Возвращает результаты по порядку шардов; ошибки всех шардов собираются в первую.
+   */
+  private static <T> List<T> inParallel(int shards, ShardTask<T> task) throws IOException {
+    ExecutorService executor = Executors.newFixedThreadPool(shards, runnable -> {
+      Thread thread = new Thread(runnable, "shard-worker");
+      thread.setDaemon(true);
+      return thread;
+    });
+    try {
+      List<Future<T>> futures = new ArrayList<>(shards);
+      for (int i = 0; i < shards; i++) {
+        int shard = i;
+        futures.add(executor.submit(() -> task.run(shard)));
+      }
+      List<T> results = new ArrayList<>(shards);
+      Throwable failure = null;
+      boolean interrupted = false;
+      for (Future<T> future : futures) {
+        T result = null;
+        while (true) {
+          try {
+            result = future.get();
+            break;
+          } catch (InterruptedException e) {
+            // a shard left half opened or half closed is worse than a late interrupt
+            interrupted = true;
+          } catch (ExecutionException e) {
+            if (failure == null) {
+              failure = e.getCause();
+            } else {
+              failure.addSuppressed(e.getCause());
+            }
+            break;
+          }
+        }
+        results.add(result);
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+      if (failure instanceof IOException e) {
+        throw e;
+      }
+      if (failure instanceof RuntimeException e) {
+        throw e;
+      }
+      if (failure instanceof Error e) {
+        throw e;
+      }
+      return results;
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Override
+  public boolean contains(byte[] key) throws IOException {
+    long start = System.nanoTime();
+    try {
+      return shardFor(key).contains(key);
+    } finally {
+      containsLatency.record(System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public InputStream openValueStream(byte[] key) throws IOException {
+    return shardFor(key).openValueStream(key);
+  }
+
+  @Override
+  public byte[] loadValue(byte[] key) throws IOException {
+    long start = System.nanoTime();
+    try {
+      return shardFor(key).loadValue(key);
+    } finally {
+      loadLatency.record(System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public int readValue(byte[] key, ByteBuffer dst) throws IOException {
+    long start = System.nanoTime();
+    try {
+      return shardFor(key).readValue(key, dst);
+    } finally {
+      loadLatency.record(System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public int valueSize(byte[] key) throws IOException {
+    return shardFor(key).valueSize(key);
+  }
+
+  @Override
+  public long transferValueTo(byte[] key, WritableByteChannel target) throws IOException {
+    return shardFor(key).transferValueTo(key, target);
+  }
+
+  /**
+   * Раскладывает ключи по шардам, и каждый шард читает свои значения в порядке их расположения.
+   */
+  @Override
+  public List<byte[]> loadValues(Collection<byte[]> keys) throws IOException {
+    long start = System.nanoTime();
+    try {
+      return loadValuesByShard(keys);
+    } finally {
+      loadLatency.record(System.nanoTime() - start);
+    }
+  }
+
+  private List<byte[]> loadValuesByShard(Collection<byte[]> keys) throws IOException {
+    List<List<byte[]>> keysByShard = new ArrayList<>(shards.length);
+    List<List<Integer>> positionsByShard = new ArrayList<>(shards.length);
+    for (int i = 0; i < shards.length; i++) {
+      keysByShard.add(new ArrayList<>());
+      positionsByShard.add(new ArrayList<>());
+    }
+    int position = 0;
+    for (byte[] key : keys) {
+      Objects.requireNonNull(key, "Key can't be null");
+      int shard = shardOf(key, shards.length);
+      keysByShard.get(shard).add(key);
+      positionsByShard.get(shard).add(position++);
+    }
+    byte[][] values = new byte[position][];
+    for (int shard = 0; shard < shards.length; shard++) {
+      if (keysByShard.get(shard).isEmpty()) {
+        continue;
+      }
+      List<byte[]> shardValues = shards[shard].loadValues(keysByShard.get(shard));
+      List<Integer> positions = positionsByShard.get(shard);
+      for (int i = 0; i < positions.size(); i++) {
+        values[positions.get(i)] = shardValues.get(i);
+      }
+    }
+    return Arrays.asList(values);
+  }
+
+  @Override
+  public void upsert(byte[] key, byte[] value) throws IOException {
+    long start = System.nanoTime();
+    shardFor(key).upsert(key, value);
+    long elapsed = System.nanoTime() - start;
+    writeLatency.record(elapsed);
+    upsertLatency.record(elapsed);
+  }
+
+  @Override
+  public void upsert(byte[] key, byte[] value, Duration ttl) throws IOException {
+    long start = System.nanoTime();
+    shardFor(key).upsert(key, value, ttl);
+    long elapsed = System.nanoTime() - start;
+    writeLatency.record(elapsed);
+    upsertLatency.record(elapsed);
+  }
+
+  @Override
+  public void upsertStream(byte[] key, InputStream source) throws IOException {
+    long start = System.nanoTime();
+    shardFor(key).upsertStream(key, source);
+    long elapsed = System.nanoTime() - start;
+    writeLatency.record(elapsed);
+    upsertLatency.record(elapsed);
+  }
+
+  @Override
+  public void upsertChannel(byte[] key, ReadableByteChannel source) throws IOException {
+    long start = System.nanoTime();
+    shardFor(key).upsertChannel(key, source);
+    long elapsed = System.nanoTime() - start;
+    writeLatency.record(elapsed);
+    upsertLatency.record(elapsed);
+  }
+
+  /**
+   * Сливает упорядоченные переборы всех шардов в один.
+   */
+  @Override
+  public Iterator<ScanEntry> scan(byte[] fromKey, byte[] toKey) throws IOException {
+    List<Iterator<ScanEntry>> scans = new ArrayList<>(shards.length);
+    for (KeyValueStore shard : shards) {
+      scans.add(shard.scan(fromKey, toKey));
+    }
+    return merge(scans, ScanEntry::key);
+  }
+
+  /**
+   * Сливает переборы шардов, упорядоченные по ключу. Ключи у шардов не пересекаются.
+   */
+  private static <T> Iterator<T> merge(List<Iterator<T>> sources, Function<T, byte[]> key) {
+    record Head<T>(byte[] key, T entry, Iterator<T> rest) {
+
+    }
+    PriorityQueue<Head<T>> heads = new PriorityQueue<>(
+        Comparator.comparing(Head::key, Arrays::compareUnsigned));
+    for (Iterator<T> source : sources) {
+      if (source.hasNext()) {
+        T entry = source.next();
+        heads.add(new Head<>(key.apply(entry), entry, source));
+      }
+    }
+    return new Iterator<>() {
+      @Override
+      public boolean hasNext() {
+        return !heads.isEmpty();
+      }
+
+      @Override
+      public T next() {
+        Head<T> head = heads.poll();
+        if (head == null) {
+          throw new NoSuchElementException();
+        }
+        if (head.rest().hasNext()) {
+          T entry = head.rest().next();
+          heads.add(new Head<>(key.apply(entry), entry, head.rest()));
+        }
+        return head.entry();
+      }
+    };
+  }
+
+  @Override
+  public boolean remove(byte[] key) throws IOException {
+    long start = System.nanoTime();
+    boolean removed = shardFor(key).remove(key);
+    long elapsed = System.nanoTime() - start;
+    writeLatency.record(elapsed);
+    removeLatency.record(elapsed);
+    return removed;
+  }
+
+  /**
+   * Делит набор по шардам и применяет части по очереди. Набор атомарен только в пределах шарда:
+   * если запись в какой-то шард не удалась, части, уже примененные в других шардах, остаются на
+   * месте, а после падения процесса может восстановиться любое подмножество частей.
+   */
+  @Override
+  public void write(WriteBatch batch) throws IOException {
+    Objects.requireNonNull(batch, "batch can't be null");
+    long start = System.nanoTime();
+    WriteBatch[] parts = new WriteBatch[shards.length];
+    List<byte[]> keys = batch.keys();
+    List<byte[]> values = batch.values();
+    for (int i = 0; i < keys.size(); i++) {
+      int shard = shardOf(keys.get(i), shards.length);
+      if (parts[shard] == null) {
+        parts[shard] = new WriteBatch();
+      }
+      if (values.get(i) == null) {
+        parts[shard].delete(keys.get(i));
+      } else {
+        parts[shard].put(keys.get(i), values.get(i));
+      }
+    }
+    for (int shard = 0; shard < shards.length; shard++) {
+      if (parts[shard] != null) {
+        shards[shard].write(parts[shard]);
+      }
+    }
+    writeLatency.record(System.nanoTime() - start);
+  }
+
+  /**
+   * Дефрагментирует шарды параллельно. Фрагментация в отчете -- среднее по шардам.
+   */
+  @Override
+  public DefragmentationReport defragment(int fragmentThreshold) throws IOException {
+    List<DefragmentationReport> reports =
+        inParallel(shards.length, shard -> shards[shard].defragment(fragmentThreshold));
+    int relocated = 0;
+    long reclaimed = 0;
+    double before = 0;
+    double after = 0;
+    for (DefragmentationReport report : reports) {
+      relocated += report.relocatedValues();
+      reclaimed += report.reclaimedBytes();
+      before += report.fragmentationBefore();
+      after += report.fragmentationAfter();
+    }
+    return new DefragmentationReport(relocated, reclaimed, before / shards.length,
+        after / shards.length);
+  }
+
+  /**
+   * Проверяет шарды по очереди, каждый в parallelism потоков, чтобы не читать с одного диска
+   * больше чем в parallelism потоков.
+   */
+  @Override
+  public ScrubReport scrub(int parallelism) throws IOException {
+    long checked = 0;
+    long unchecked = 0;
+    List<byte[]> corrupted = new ArrayList<>();
+    for (KeyValueStore shard : shards) {
+      ScrubReport report = shard.scrub(parallelism);
+      checked += report.checkedValues();
+      unchecked += report.uncheckedValues();
+      corrupted.addAll(report.corruptedKeys());
+    }
+    return new ScrubReport(checked, unchecked, corrupted);
+  }
+
+  /**
+   * Собирает снимки всех шардов. Как и {@link #write(WriteBatch)}, снимок согласован только в
+   * пределах каждого шарда.
+   */
+  @Override
+  public KeyValueStore snapshot() throws IOException {
+    KeyValueStore[] snapshots = new KeyValueStore[shards.length];
+    try {
+      for (int shard = 0; shard < shards.length; shard++) {
+        snapshots[shard] = shards[shard].snapshot();
+      }
+    } catch (IOException | RuntimeException e) {
+      for (KeyValueStore snapshot : snapshots) {
+        if (snapshot != null) {
+          try {
+            snapshot.close();
+          } catch (IOException closeFailure) {
+            e.addSuppressed(closeFailure);
+          }
+        }
+      }
+      throw e;
+    }
+    return new ShardedKeyValueStore(snapshots);
+  }
+
+  @Override
+  public LatencyStats writeLatency() {
+    return writeLatency.stats();
+  }
+
+  /**
+   * Счетчики, размеры индексов и статистика кешей шардов складываются, а фрагментация
+   * усредняется с весами по числу ключей в шарде.
+   */
+  @Override
+  public StoreMetrics metrics() throws IOException {
+    long bytesRead = 0;
+    long bytesWritten = 0;
+    long filesCreated = 0;
+    long indexEntries = 0;
+    long freeExtents = 0;
+    double weightedFragmentation = 0;
+    long channelHits = 0;
+    long channelMisses = 0;
+    long channelEvictions = 0;
+    int openFiles = 0;
+    long valueHits = 0;
+    long valueMisses = 0;
+    long valueEvictions = 0;
+    long cachedBytes = 0;
+    for (KeyValueStore shard : shards) {
+      StoreMetrics metrics = shard.metrics();
+      channelHits += metrics.channelCache().hits();
+      channelMisses += metrics.channelCache().misses();
+      channelEvictions += metrics.channelCache().evictions();
+      openFiles += metrics.channelCache().openFiles();
+      valueHits += metrics.valueCache().hits();
+      valueMisses += metrics.valueCache().misses();
+      valueEvictions += metrics.valueCache().evictions();
+      cachedBytes += metrics.valueCache().sizeBytes();
+      bytesRead += metrics.bytesRead();
+      bytesWritten += metrics.bytesWritten();
+      filesCreated += metrics.filesCreated();
+      indexEntries += metrics.indexEntries();
+      freeExtents += metrics.freeExtents();
+      weightedFragmentation += metrics.fragmentation() * metrics.indexEntries();
+    }
+    return new StoreMetrics(containsLatency.stats(), loadLatency.stats(), upsertLatency.stats(),
+        removeLatency.stats(), bytesRead, bytesWritten, filesCreated, indexEntries, freeExtents,
+        indexEntries == 0 ? 0 : weightedFragmentation / indexEntries,
+        new ChannelCacheStats(channelHits, channelMisses, channelEvictions, openFiles),
+        new ValueCacheStats(valueHits, valueMisses, valueEvictions, cachedBytes));
+  }
+
+  /**
+   * Индекс, который раскладывает ключи по индексам шардов так же, как само хранилище.
+   */
+  @Override
+  public IndexManager getIndexManager() {
+    return new ShardedIndexManager();
+  }
+
+  /**
+   * Индексы всех шардов как один. Ключ ищется и меняется в индексе своего шарда, а перебор
+   * сливает упорядоченные переборы шардов; ключи у шардов не пересекаются. Как и
+   * {@link #write(WriteBatch)}, {@link #applyBatch} атомарен только в пределах шарда.
+   */
+  private final class ShardedIndexManager implements IndexManager {
+
+    private IndexManager indexFor(byte[] key) {
+      return shardFor(key).getIndexManager();
+    }
+
+    @Override
+    public void add(byte[] key, List<FileBlockLocation> writtenBlocks) throws IOException {
+      indexFor(key).add(key, writtenBlocks);
+    }
+
+    @Override
+    public void remove(byte[] key) throws IOException {
+      indexFor(key).remove(key);
+    }
+
+    @Override
+    public void applyBatch(List<IndexEntry> upserts, List<byte[]> removes) throws IOException {
+      List<List<IndexEntry>> upsertsByShard = new ArrayList<>(shards.length);
+      List<List<byte[]>> removesByShard = new ArrayList<>(shards.length);
+      for (int i = 0; i < shards.length; i++) {
+        upsertsByShard.add(new ArrayList<>());
+        removesByShard.add(new ArrayList<>());
+      }
+      for (IndexEntry entry : upserts) {
+        upsertsByShard.get(shardOf(entry.key(), shards.length)).add(entry);
+      }
+      for (byte[] key : removes) {
+        removesByShard.get(shardOf(key, shards.length)).add(key);
+      }
+      for (int shard = 0; shard < shards.length; shard++) {
+        if (!upsertsByShard.get(shard).isEmpty() || !removesByShard.get(shard).isEmpty()) {
+          shards[shard].getIndexManager()
+              .applyBatch(upsertsByShard.get(shard), removesByShard.get(shard));
+        }
+      }
+    }
+
+    @Override
+    public List<FileBlockLocation> getFileBlocksLocations(byte[] key) throws IOException {
+      return indexFor(key).getFileBlocksLocations(key);
+    }
+
+    @Override
+    public void sync() throws IOException {
+      for (KeyValueStore shard : shards) {
+        shard.getIndexManager().sync();
+      }
+    }
+
+    @Override
+    public Iterator<IndexEntry> entries() throws IOException {
+      List<Iterator<IndexEntry>> all = new ArrayList<>(shards.length);
+      for (KeyValueStore shard : shards) {
+        all.add(shard.getIndexManager().entries());
+      }
+      return all.stream().flatMap(entries -> Stream.generate(() -> entries)
+          .takeWhile(Iterator::hasNext).map(Iterator::next)).iterator();
+    }
+
+    @Override
+    public Iterator<IndexEntry> range(byte[] from, byte[] to) throws IOException {
+      List<Iterator<IndexEntry>> ranges = new ArrayList<>(shards.length);
+      for (KeyValueStore shard : shards) {
+        ranges.add(shard.getIndexManager().range(from, to));
+      }
+      return merge(ranges, IndexEntry::key);
+    }
+
+    /**
+     * Индексы принадлежат шардам и закрываются вместе с ними.
+     */
+    @Override
+    public void close() {
+    }
+  }
+
+  /**
+   * Закрывает шарды параллельно, каждый сохраняет свой индекс независимо от остальных.
+   */
+  @Override
+  public void close() throws IOException {
+    if (jmxName != null) {
+      KeyValueStoreMetricsBean.unregister(jmxName);
+    }
+    inParallel(shards.length, shard -> {
+      shards[shard].close();
+      return null;
+    });
+  }
+}
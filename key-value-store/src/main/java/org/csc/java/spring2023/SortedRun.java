@@ -0,0 +1,353 @@
+package org.csc.java.spring2023;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Неизменяемый файл LSM-индекса с записями, отсортированными по ключу.
+ * <p>
+ * Формат: записи {@link ConfigSaver#encodeRunEntry}, затем разреженный индекс (ключ и смещение
+ * каждой {@value #FENCE_INTERVAL}-й записи), затем фильтр Блума и футер { long смещение
+ * разреженного индекса, long число записей, int MAGIC }. Разреженный индекс и фильтр держатся в
+ * памяти, так что поиск отсутствующего ключа почти никогда не читает файл, а поиск существующего
+ * читает один участок из {@value #FENCE_INTERVAL} записей.
+ */
+final class SortedRun implements Closeable {
+
+  private static final int MAGIC = 0x4B56524E;
+  private static final int FENCE_INTERVAL = 16;
+  private static final int FOOTER_SIZE = 2 * Long.BYTES + Integer.BYTES;
+  private static final int ITERATOR_READ_SIZE = 1 << 16;
+
+  private final long id;
+  private final File file;
+  private final FileChannel channel;
+  private final byte[][] fenceKeys;
+  private final long[] fenceOffsets;
+  private final long dataEnd;
+  private final long entries;
+  private final BloomFilter bloomFilter;
+  private final AtomicLong reads;
+  // the index itself holds one reference until delete, every unfinished iterator holds another
+  private final AtomicInteger references = new AtomicInteger(1);
+  private volatile boolean deleted;
+
+  private SortedRun(long id, File file, AtomicLong reads) throws IOException {
+    this.id = id;
+    this.file = file;
+    this.reads = reads;
+    this.channel = FileChannel.open(file.toPath(), READ);
+    try {
+      ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+      readFully(footer, channel.size() - FOOTER_SIZE);
+      footer.flip();
+      dataEnd = footer.getLong();
+      entries = footer.getLong();
+      if (footer.getInt() != MAGIC) {
+        throw new IOException("Not a sorted index run: " + file);
+      }
+      ByteBuffer meta = ByteBuffer.allocate(
+          Math.toIntExact(channel.size() - FOOTER_SIZE - dataEnd));
+      readFully(meta, dataEnd);
+      try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(meta.array()))) {
+        int fences = in.readInt();
+        fenceKeys = new byte[fences][];
+        fenceOffsets = new long[fences];
+        for (int i = 0; i < fences; i++) {
+          fenceKeys[i] = ConfigSaver.readKey(in);
+          fenceOffsets[i] = in.readLong();
+        }
+        bloomFilter = BloomFilter.readFrom(in);
+      }
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  static SortedRun open(long id, File file, AtomicLong reads) throws IOException {
+    return new SortedRun(id, file, reads);
+  }
+
+  /**
+   * Записывает отсортированные по ключу записи (надгробия с blocks == null) в новый файл и
+   * открывает его.
+   */
+  static SortedRun write(long id, File file, Iterator<IndexEntry> sorted, long expectedEntries,
+      AtomicLong reads) throws IOException {
+    List<byte[]> fenceKeys = new ArrayList<>();
+    List<Long> fenceOffsets = new ArrayList<>();
+    BloomFilter bloomFilter = new BloomFilter(expectedEntries);
+    long entries = 0;
+    long offset = 0;
+    try (FileOutputStream fileOut = new FileOutputStream(file);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+      while (sorted.hasNext()) {
+        IndexEntry entry = sorted.next();
+        if (entries % FENCE_INTERVAL == 0) {
+          fenceKeys.add(entry.key());
+          fenceOffsets.add(offset);
+        }
+        bloomFilter.add(entry.key());
+        byte[] encoded = ConfigSaver.encodeRunEntry(entry.key(), entry.blocks());
+        out.write(encoded);
+        offset += encoded.length;
+        entries++;
+      }
+      long fenceOffset = offset;
+      out.writeInt(fenceKeys.size());
+      for (int i = 0; i < fenceKeys.size(); i++) {
+        ConfigSaver.writeKey(out, fenceKeys.get(i));
+        out.writeLong(fenceOffsets.get(i));
+      }
+      bloomFilter.writeTo(out);
+      out.writeLong(fenceOffset);
+      out.writeLong(entries);
+      out.writeInt(MAGIC);
+      out.flush();
+      // the manifest will refer to this file, so it must be on disk before that
+      fileOut.getFD().sync();
+    }
+    return open(id, file, reads);
+  }
+
+  long id() {
+    return id;
+  }
+
+  long entries() {
+    return entries;
+  }
+
+  /**
+   * Ищет ключ. Возвращает null, если ключа в файле нет, иначе запись, у которой blocks == null,
+   * если это надгробие.
+   */
+  IndexEntry get(byte[] key) throws IOException {
+    if (fenceKeys.length == 0 || !bloomFilter.mightContain(key)) {
+      return null;
+    }
+    int fence = floorFence(key);
+    if (fence < 0) {
+      return null;
+    }
+    long from = fenceOffsets[fence];
+    long to = fence + 1 < fenceOffsets.length ? fenceOffsets[fence + 1] : dataEnd;
+    ByteBuffer range = ByteBuffer.allocate(Math.toIntExact(to - from));
+    readFully(range, from);
+    reads.incrementAndGet();
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(range.array()))) {
+      while (in.available() > 0) {
+        IndexEntry entry = ConfigSaver.readRunEntry(in);
+        int compared = Arrays.compareUnsigned(entry.key(), key);
+        if (compared == 0) {
+          return entry;
+        }
+        if (compared > 0) {
+          break;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Перебирает записи по возрастанию ключей, включая надгробия. Файл читается позиционными
+   * чтениями по {@value #ITERATOR_READ_SIZE} байт через общий канал, а сам перебор держит ссылку на
+   * файл, пока не дойдет до конца, так что удаление файла после сжатия откладывается до тех пор.
+   */
+  Iterator<IndexEntry> iterator() {
+    return iterator(null);
+  }
+
+  /**
+   * То же, что {@link #iterator()}, но начиная с первого ключа не меньше from: чтение начинается с
+   * ближайшей к нему точки разреженного индекса.
+   */
+  Iterator<IndexEntry> iterator(byte[] from) {
+    Iterator<IndexEntry> sequential = new RunIterator(from == null ? 0 : Math.max(0,
+        floorFence(from)));
+    if (from == null) {
+      return sequential;
+    }
+    // up to FENCE_INTERVAL - 1 entries before from are read and dropped
+    return new Iterator<>() {
+      private IndexEntry next = advance();
+
+      @Override
+      public boolean hasNext() {
+        return next != null;
+      }
+
+      @Override
+      public IndexEntry next() {
+        if (next == null) {
+          throw new NoSuchElementException();
+        }
+        IndexEntry entry = next;
+        next = sequential.hasNext() ? sequential.next() : null;
+        return entry;
+      }
+
+      private IndexEntry advance() {
+        while (sequential.hasNext()) {
+          IndexEntry entry = sequential.next();
+          if (Arrays.compareUnsigned(entry.key(), from) >= 0) {
+            return entry;
+          }
+        }
+        return null;
+      }
+    };
+  }
+
+  /**
+   * Последовательный перебор записей с точки разреженного индекса. Читает файл кусками, которые
+   * начинаются и заканчиваются на точках разреженного индекса, так что записи не разрезаются.
+   */
+  private final class RunIterator implements Iterator<IndexEntry> {
+
+    private int nextFence;
+    private ByteArrayInputStream chunk = new ByteArrayInputStream(new byte[0]);
+    private DataInputStream in = new DataInputStream(chunk);
+    private boolean released;
+
+    RunIterator(int fence) {
+      nextFence = fence;
+      references.incrementAndGet();
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (chunk.available() == 0) {
+        if (nextFence >= fenceOffsets.length) {
+          release();
+          return false;
+        }
+        readChunk();
+      }
+      return true;
+    }
+
+    @Override
+    public IndexEntry next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      try {
+        return ConfigSaver.readRunEntry(in);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    private void readChunk() {
+      long from = fenceOffsets[nextFence];
+      int fence = nextFence + 1;
+      while (fence < fenceOffsets.length && fenceOffsets[fence] - from < ITERATOR_READ_SIZE) {
+        fence++;
+      }
+      long to = fence < fenceOffsets.length ? fenceOffsets[fence] : dataEnd;
+      ByteBuffer range = ByteBuffer.allocate(Math.toIntExact(to - from));
+      try {
+        readFully(range, from);
+      } catch (IOException e) {
+        release();
+        throw new UncheckedIOException(e);
+      }
+      nextFence = fence;
+      chunk = new ByteArrayInputStream(range.array());
+      in = new DataInputStream(chunk);
+    }
+
+    private void release() {
+      if (!released) {
+        released = true;
+        SortedRun.this.release();
+      }
+    }
+  }
+
+  /**
+   * Удаляет файл. Если его еще читают переборы, файл закрывается и удаляется, когда последний из
+   * них дойдет до конца или когда файл закроют через {@link #close()}.
+   */
+  void delete() throws IOException {
+    deleted = true;
+    release();
+  }
+
+  /**
+   * Читают ли файл еще переборы, начатые до его удаления.
+   */
+  boolean inUse() {
+    return references.get() > 0;
+  }
+
+  /**
+   * Закрывает файл, даже если его еще читают переборы: их следующие чтения бросят исключение.
+   */
+  @Override
+  public void close() throws IOException {
+    channel.close();
+    if (deleted) {
+      Files.deleteIfExists(file.toPath());
+    }
+  }
+
+  private void release() {
+    if (references.decrementAndGet() == 0) {
+      try {
+        close();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  private int floorFence(byte[] key) {
+    int low = 0;
+    int high = fenceKeys.length - 1;
+    int floor = -1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      if (Arrays.compareUnsigned(fenceKeys[middle], key) <= 0) {
+        floor = middle;
+        low = middle + 1;
+      } else {
+        high = middle - 1;
+      }
+    }
+    return floor;
+  }
+
+  private void readFully(ByteBuffer dst, long position) throws IOException {
+    while (dst.hasRemaining()) {
+      int read = channel.read(dst, position);
+      if (read < 0) {
+        throw new EOFException("Sorted index run " + file + " is truncated");
+      }
+      position += read;
+    }
+  }
+}
@@ -0,0 +1,27 @@
+package org.csc.java.spring2023;
+
+/**
+ * Метрики хранилища на момент запроса. Счетчики считаются с открытия хранилища.
+ *
+ * @param containsLatency время {@link KeyValueStore#contains}
+ * @param loadLatency     время чтений значений целиком ({@link KeyValueStore#loadValue},
+ *                        {@link KeyValueStore#readValue}, {@link KeyValueStore#loadValues})
+ * @param upsertLatency   время записей значений по ключу, включая потоковые
+ * @param removeLatency   время {@link KeyValueStore#remove}
+ * @param bytesRead       сколько байт прочитано из файлов со значениями
+ * @param bytesWritten    сколько байт записано в файлы со значениями
+ * @param filesCreated    сколько файлов со значениями создано
+ * @param indexEntries    сколько ключей в индексе, включая истекшие, которые сборщик еще не
+ *                        удалил
+ * @param freeExtents     на сколько свободных участков разбито место под новые значения
+ * @param fragmentation   доля блоков, без которых значения поместились бы каждое в один блок
+ * @param channelCache    статистика кеша открытых файлов со значениями
+ * @param valueCache      статистика кеша горячих значений, нули, если кеш выключен
+ */
+public record StoreMetrics(LatencyStats containsLatency, LatencyStats loadLatency,
+                           LatencyStats upsertLatency, LatencyStats removeLatency, long bytesRead,
+                           long bytesWritten, long filesCreated, long indexEntries,
+                           long freeExtents, double fragmentation,
+                           ChannelCacheStats channelCache, ValueCacheStats valueCache) {
+
+}
@@ -0,0 +1,53 @@
+package org.csc.java.spring2023;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Блокировки писателей, разбитые на полосы по хешу ключа: изменения разных ключей почти никогда не
+ * ждут друг друга, а изменения одного ключа всегда упорядочены.
+ */
+final class StripedLocks {
+
+  private final ReentrantLock[] locks;
+
+  StripedLocks(int stripes) {
+    locks = new ReentrantLock[stripes];
+    for (int i = 0; i < stripes; i++) {
+      locks[i] = new ReentrantLock();
+    }
+  }
+
+  ReentrantLock lockFor(byte[] key) {
+    return locks[Math.floorMod(Arrays.hashCode(key), locks.length)];
+  }
+
+  /**
+   * Возвращает полосы всех ключей без повторов в порядке их номеров: если брать их в этом порядке,
+   * два набора ключей не могут ждать друг друга по кругу.
+   */
+  List<ReentrantLock> locksFor(List<byte[]> keys) {
+    TreeSet<Integer> stripes = new TreeSet<>();
+    for (byte[] key : keys) {
+      stripes.add(Math.floorMod(Arrays.hashCode(key), locks.length));
+    }
+    return stripes.stream().map(stripe -> locks[stripe]).toList();
+  }
+
+  /**
+   * Берет все полосы по порядку, например чтобы дождаться всех писателей перед закрытием.
+   */
+  void lockAll() {
+    for (ReentrantLock lock : locks) {
+      lock.lock();
+    }
+  }
+
+  void unlockAll() {
+    for (int i = locks.length - 1; i >= 0; i--) {
+      locks[i].unlock();
+    }
+  }
+}
@@ -0,0 +1,105 @@
+package org.csc.java.spring2023;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Иерархическое колесо таймеров. Уровень 0 делит ближайшие {@value #WHEEL_SIZE} тиков на ячейки
+ * по одному тику, а каждая ячейка следующего уровня покрывает весь оборот предыдущего. Когда время
+ * доходит до ячейки верхнего уровня, ее таймеры раскладываются по нижним, так что каждый таймер
+ * перекладывается не больше {@value #LEVELS} раз, а продвижение времени стоит O(1) на тик плюс
+ * O(сработавших таймеров). Таймеры дальше верхнего уровня ждут в отдельном списке, пока верхний
+ * уровень не сделает полный оборот.
+ * <p>
+ * Не потокобезопасно.
+ */
+final class TimingWheel {
+
+  private static final int WHEEL_BITS = 6;
+  private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+  private static final int LEVELS = 4;
+
+  record Timer(byte[] key, long deadlineMillis) {
+
+  }
+
+  private final long tickMillis;
+  private final List<List<List<Timer>>> levels = new ArrayList<>(LEVELS);
+  // timers beyond the top level, placed again once the top level wraps around
+  private final List<Timer> overflow = new ArrayList<>();
+  // timers that were already due when placed
+  private final List<Timer> ready = new ArrayList<>();
+  private long currentTick;
+
+  TimingWheel(long tickMillis, long nowMillis) {
+    this.tickMillis = tickMillis;
+    this.currentTick = Math.floorDiv(nowMillis, tickMillis);
+    for (int level = 0; level < LEVELS; level++) {
+      List<List<Timer>> slots = new ArrayList<>(WHEEL_SIZE);
+      for (int slot = 0; slot < WHEEL_SIZE; slot++) {
+        slots.add(new ArrayList<>());
+      }
+      levels.add(slots);
+    }
+  }
+
+  void add(Timer timer) {
+    // rounded up, so a timer never fires before its deadline
+    long deadlineTick = -Math.floorDiv(-timer.deadlineMillis(), tickMillis);
+    long delta = deadlineTick - currentTick;
+    if (delta <= 0) {
+      ready.add(timer);
+      return;
+    }
+    for (int level = 0; level < LEVELS; level++) {
+      if (delta < 1L << (WHEEL_BITS * (level + 1))) {
+        levels.get(level).get(slot(deadlineTick, level)).add(timer);
+        return;
+      }
+    }
+    overflow.add(timer);
+  }
+
+  /**
+   * Продвигает время до nowMillis и возвращает таймеры, чей срок наступил.
+   */
+  List<Timer> advance(long nowMillis) {
+    long nowTick = Math.floorDiv(nowMillis, tickMillis);
+    List<Timer> due = new ArrayList<>();
+    while (currentTick < nowTick) {
+      currentTick++;
+      cascade();
+      List<Timer> slot = levels.get(0).get(slot(currentTick, 0));
+      due.addAll(slot);
+      slot.clear();
+    }
+    due.addAll(ready);
+    ready.clear();
+    return due;
+  }
+
+  /**
+   * Раскладывает по нижним уровням ячейки, до которых дошло время. Верхние уровни идут первыми:
+   * их таймеры могут попасть в ячейки нижних, которые разбираются в тот же тик.
+   */
+  private void cascade() {
+    if (currentTick % (1L << (WHEEL_BITS * LEVELS)) == 0) {
+      List<Timer> far = new ArrayList<>(overflow);
+      overflow.clear();
+      far.forEach(this::add);
+    }
+    for (int level = LEVELS - 1; level >= 1; level--) {
+      if (currentTick % (1L << (WHEEL_BITS * level)) != 0) {
+        continue;
+      }
+      List<Timer> slot = levels.get(level).get(slot(currentTick, level));
+      List<Timer> timers = new ArrayList<>(slot);
+      slot.clear();
+      timers.forEach(this::add);
+    }
+  }
+
+  private static int slot(long tick, int level) {
+    return (int) (tick >>> (WHEEL_BITS * level)) & (WHEEL_SIZE - 1);
+  }
+}
@@ -0,0 +1,190 @@
+package org.csc.java.spring2023;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Кеш горячих значений с ограничением по суммарному размеру и вытеснением segmented LRU: новое
+ * значение попадает в испытательный сегмент и переходит в защищенный только при повторном
+ * обращении, так что однократные чтения не вытесняют часто читаемые значения.
+ * <p>
+ * Вместе со значением хранятся блоки, из которых оно прочитано, и запись считается верной, только
+ * пока индекс указывает на те же блоки. Поэтому значение, прочитанное с диска одновременно с его
+ * перезаписью, не может надолго остаться в кеше устаревшим.
+ * <p>
+ * Большой кеш разбит на сегменты по хешу ключа, каждый со своей блокировкой и своей долей
+ * лимита, так что чтения разных ключей из разных потоков не упираются в одну блокировку.
+ * Маленький кеш остается одним сегментом, чтобы не дробить лимит на доли меньше значения.
+ */
+final class ValueCache {
+
+  private static final double PROTECTED_SHARE = 0.8;
+  private static final int MAX_SEGMENTS = 16;
+  private static final long MIN_SEGMENT_BYTES = 1 << 20;
+
+  private final Segment[] segments;
+
+  private record Entry(List<FileBlockLocation> blocks, byte[] value) {
+
+  }
+
+  ValueCache(long maxBytes) {
+    int count = 1;
+    while (count < MAX_SEGMENTS && maxBytes / (count * 2L) >= MIN_SEGMENT_BYTES) {
+      count *= 2;
+    }
+    segments = new Segment[count];
+    for (int i = 0; i < count; i++) {
+      segments[i] = new Segment(maxBytes / count);
+    }
+  }
+
+  /**
+   * Возвращает закешированное значение, если оно прочитано из тех же блоков, иначе null.
+   * Возвращаемый массив нельзя изменять.
+   */
+  byte[] get(byte[] key, List<FileBlockLocation> blocks) {
+    ByteWrapper wrapper = new ByteWrapper(key);
+    return segmentOf(wrapper).get(wrapper, blocks);
+  }
+
+  /**
+   * Кладет значение, прочитанное из blocks. Массив после этого нельзя изменять.
+   */
+  void put(byte[] key, List<FileBlockLocation> blocks, byte[] value) {
+    ByteWrapper wrapper = new ByteWrapper(key.clone());
+    segmentOf(wrapper).put(wrapper, blocks, value);
+  }
+
+  void invalidate(byte[] key) {
+    ByteWrapper wrapper = new ByteWrapper(key);
+    segmentOf(wrapper).invalidate(wrapper);
+  }
+
+  ValueCacheStats stats() {
+    long hits = 0;
+    long misses = 0;
+    long evictions = 0;
+    long sizeBytes = 0;
+    for (Segment segment : segments) {
+      ValueCacheStats stats = segment.stats();
+      hits += stats.hits();
+      misses += stats.misses();
+      evictions += stats.evictions();
+      sizeBytes += stats.sizeBytes();
+    }
+    return new ValueCacheStats(hits, misses, evictions, sizeBytes);
+  }
+
+  private Segment segmentOf(ByteWrapper key) {
+    int hash = key.hashCode();
+    // the low bits of the array hash are mixed with the high ones, as HashMap does
+    return segments[(hash ^ (hash >>> 16)) & (segments.length - 1)];
+  }
+
+  /**
+   * Segmented LRU с лимитом maxBytes под своей блокировкой.
+   */
+  private static final class Segment {
+
+    private final long maxBytes;
+    private final long maxProtectedBytes;
+    private final LinkedHashMap<ByteWrapper, Entry> probation =
+        new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<ByteWrapper, Entry> protectedSegment =
+        new LinkedHashMap<>(16, 0.75f, true);
+    private long probationBytes;
+    private long protectedBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    Segment(long maxBytes) {
+      this.maxBytes = maxBytes;
+      this.maxProtectedBytes = (long) (maxBytes * PROTECTED_SHARE);
+    }
+
+    synchronized byte[] get(ByteWrapper wrapper, List<FileBlockLocation> blocks) {
+      Entry entry = protectedSegment.get(wrapper);
+      boolean inProbation = false;
+      if (entry == null) {
+        entry = probation.get(wrapper);
+        inProbation = entry != null;
+      }
+      if (entry == null || !entry.blocks().equals(blocks)) {
+        // a stale entry belongs to a value that has been rewritten since it was cached
+        remove(wrapper);
+        misses++;
+        return null;
+      }
+      if (inProbation) {
+        probation.remove(wrapper);
+        probationBytes -= entry.value().length;
+        promote(wrapper, entry);
+      }
+      hits++;
+      return entry.value();
+    }
+
+    synchronized void put(ByteWrapper wrapper, List<FileBlockLocation> blocks, byte[] value) {
+      if (value.length > maxBytes - maxProtectedBytes) {
+        return;
+      }
+      remove(wrapper);
+      probation.put(wrapper, new Entry(blocks, value));
+      probationBytes += value.length;
+      evictIfNeeded();
+    }
+
+    synchronized void invalidate(ByteWrapper key) {
+      remove(key);
+    }
+
+    synchronized ValueCacheStats stats() {
+      return new ValueCacheStats(hits, misses, evictions, probationBytes + protectedBytes);
+    }
+
+    private void promote(ByteWrapper key, Entry entry) {
+      protectedSegment.put(key, entry);
+      protectedBytes += entry.value().length;
+      // the protected segment overflows into the head of probation instead of losing entries
+      Iterator<Map.Entry<ByteWrapper, Entry>> eldest = protectedSegment.entrySet().iterator();
+      while (protectedBytes > maxProtectedBytes) {
+        Map.Entry<ByteWrapper, Entry> demoted = eldest.next();
+        eldest.remove();
+        protectedBytes -= demoted.getValue().value().length;
+        probation.put(demoted.getKey(), demoted.getValue());
+        probationBytes += demoted.getValue().value().length;
+      }
+      evictIfNeeded();
+    }
+
+    private void evictIfNeeded() {
+      while (probationBytes + protectedBytes > maxBytes) {
+        var segment = probation.isEmpty() ? protectedSegment : probation;
+        Iterator<Map.Entry<ByteWrapper, Entry>> eldest = segment.entrySet().iterator();
+        Entry evicted = eldest.next().getValue();
+        eldest.remove();
+        if (segment == probation) {
+          probationBytes -= evicted.value().length;
+        } else {
+          protectedBytes -= evicted.value().length;
+        }
+        evictions++;
+      }
+    }
+
+    private void remove(ByteWrapper key) {
+      Entry entry = probation.remove(key);
+      if (entry != null) {
+        probationBytes -= entry.value().length;
+      }
+      entry = protectedSegment.remove(key);
+      if (entry != null) {
+        protectedBytes -= entry.value().length;
+      }
+    }
+  }
+}
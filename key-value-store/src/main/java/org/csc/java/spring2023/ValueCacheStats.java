@@ -0,0 +1,13 @@
+package org.csc.java.spring2023;
+
+/**
+ * Статистика кеша горячих значений.
+ *
+ * @param hits      сколько раз значение нашлось в кеше
+ * @param misses    сколько раз значение пришлось читать с диска
+ * @param evictions сколько значений было вытеснено из-за превышения бюджета
+ * @param sizeBytes сколько байт значений лежит в кеше сейчас
+ */
+public record ValueCacheStats(long hits, long misses, long evictions, long sizeBytes) {
+
+}
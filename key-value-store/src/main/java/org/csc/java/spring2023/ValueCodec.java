@@ -0,0 +1,35 @@
+package org.csc.java.spring2023;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+
+/**
+ * Алгоритм сжатия значений, см. {@link KeyValueStoreOptions#valueCodec}. Идентификатор кодека
+ * пишется рядом с каждым сжатым значением, поэтому его нельзя менять у уже записанных данных
+ */
+public interface ValueCodec {
+
+  /**
+   * Идентификатор, по которому при чтении выбирается кодек. 0 зарезервирован за несжатыми
+   * значениями, 1 — за {@link #deflate()}
+   */
+  byte id();
+
+  /**
+   * Сжимает значение целиком
+   */
+  byte[] compress(byte[] value);
+
+  /**
+   * Возвращает поток, лениво распаковывающий compressed. Закрытие потока закрывает compressed
+   */
+  InputStream decompress(InputStream compressed) throws IOException;
+
+  /**
+   * Deflate с самым быстрым уровнем сжатия
+   */
+  static ValueCodec deflate() {
+    return new DeflateCodec(Deflater.BEST_SPEED);
+  }
+}
@@ -0,0 +1,58 @@
+package org.csc.java.spring2023;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * Файлы со значениями в рабочей директории. Их имена -- случайные UUID, так что их можно отличить
+ * от файлов индекса и прочего состояния хранилища.
+ */
+final class ValueFiles {
+
+  private static final Pattern NAME = Pattern.compile(
+      "[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}");
+
+  private ValueFiles() {
+  }
+
+  static String newFileName() {
+    return UUID.randomUUID().toString();
+  }
+
+  /**
+   * Для каждого файла со значениями в workDir возвращает блоки, на которые указывают entries,
+   * упорядоченные по смещению. Файлы, на которые никто не указывает, получают пустой список.
+   * Нужно, чтобы восстановить учет свободного места по индексу, если хранилище не было закрыто.
+   */
+  static Map<String, List<FileBlockLocation>> usedBlocks(Path workDir,
+      Iterator<IndexEntry> entries) throws IOException {
+    File[] files = workDir.toFile().listFiles((dir, name) -> NAME.matcher(name).matches());
+    if (files == null) {
+      throw new IOException("Can't list value files in " + workDir);
+    }
+    Map<String, List<FileBlockLocation>> used = new HashMap<>();
+    for (File file : files) {
+      used.put(file.getName(), new ArrayList<>());
+    }
+    while (entries.hasNext()) {
+      for (FileBlockLocation block : entries.next().blocks()) {
+        List<FileBlockLocation> fileBlocks = used.get(block.fileName());
+        if (fileBlocks != null) {
+          fileBlocks.add(block);
+        }
+      }
+    }
+    used.values().forEach(
+        blocks -> blocks.sort(Comparator.comparingInt(FileBlockLocation::offset)));
+    return used;
+  }
+}
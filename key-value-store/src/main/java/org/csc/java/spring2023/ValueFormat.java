@@ -0,0 +1,143 @@
+package org.csc.java.spring2023;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+
+/**
+ * Формат значений хранилища со сжатием. Каждое значение на диске начинается с заголовка { byte
+ * идентификатор кодека, int длина несжатого значения }, за которым идут сжатые байты или, при
+ * идентификаторе {@value #STORED}, само значение. Блоки значения в индексе описывают его вместе с
+ * заголовком, так что форматы индексов от сжатия не зависят.
+ * <p>
+ * Хранилище, созданное со сжатием, помечается файлом {@value #MARKER_FILE_NAME} и дальше всегда
+ * пишет заголовки, даже если открыть его без кодека.
+ */
+final class ValueFormat {
+
+  static final int HEADER_SIZE = Byte.BYTES + Integer.BYTES;
+  static final byte STORED = 0;
+  static final String MARKER_FILE_NAME = "values.framed";
+
+  // values that shrink less than this are stored as is: decompressing them is not worth it
+  private static final double MAX_COMPRESSION_RATIO = 0.875;
+  private static final int MIN_COMPRESSIBLE_SIZE = 64;
+
+  // null when new values are stored uncompressed
+  private final ValueCodec codec;
+
+  private ValueFormat(ValueCodec codec) {
+    this.codec = codec;
+  }
+
+  /**
+   * Возвращает формат хранилища в workDir или null, если значения хранятся без заголовков.
+   * Включить сжатие можно только в новом хранилище, где еще нет значений.
+   */
+  static ValueFormat open(Path workDir, ValueCodec codec, IndexManager index) throws IOException {
+    File marker = new File(workDir.toString(), MARKER_FILE_NAME);
+    if (marker.exists()) {
+      return new ValueFormat(codec);
+    }
+    if (codec == null) {
+      return null;
+    }
+    if (index.entries().hasNext()) {
+      throw new IllegalArgumentException(
+          "Compression can't be enabled for a store created without it");
+    }
+    if (!marker.createNewFile()) {
+      throw new IOException("Can't create " + marker);
+    }
+    return new ValueFormat(codec);
+  }
+
+  /**
+   * Сжимает значение и добавляет к нему заголовок. Короткие и плохо сжимающиеся значения
+   * сохраняются как есть.
+   */
+  byte[] encode(byte[] value) {
+    if (codec != null && value.length >= MIN_COMPRESSIBLE_SIZE) {
+      byte[] compressed = codec.compress(value);
+      if (compressed.length <= value.length * MAX_COMPRESSION_RATIO) {
+        return frame(codec.id(), value.length, compressed);
+      }
+    }
+    return frame(STORED, value.length, value);
+  }
+
+  /**
+   * Добавляет заголовок к значению неизвестной длины, которое читается из source. Такие значения
+   * не сжимаются: выгодно ли сжатие, станет ясно, только когда значение уже записано.
+   */
+  ReadableByteChannel encode(ReadableByteChannel source) {
+    byte[] header = frame(STORED, -1, new byte[0]);
+    return Channels.newChannel(new SequenceInputStream(new ByteArrayInputStream(header),
+        Channels.newInputStream(source)));
+  }
+
+  byte[] decode(byte[] stored) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(stored);
+    byte codecId = buffer.get();
+    int length = buffer.getInt();
+    if (codecId == STORED) {
+      return ByteBuffer.allocate(buffer.remaining()).put(buffer).array();
+    }
+    try (InputStream in = codec(codecId).decompress(new ByteArrayInputStream(stored,
+        HEADER_SIZE, stored.length - HEADER_SIZE))) {
+      byte[] value = in.readNBytes(length);
+      if (value.length != length || in.read() >= 0) {
+        throw new IOException("Compressed value is corrupted");
+      }
+      return value;
+    }
+  }
+
+  /**
+   * Читает заголовок из stored и возвращает поток, который лениво распаковывает остаток.
+   */
+  InputStream decode(InputStream stored) throws IOException {
+    byte[] header = stored.readNBytes(HEADER_SIZE);
+    if (header.length < HEADER_SIZE) {
+      throw new EOFException("Value header is truncated");
+    }
+    return isCompressed(header) ? codec(header[0]).decompress(stored) : stored;
+  }
+
+  static boolean isCompressed(byte[] header) {
+    return header[0] != STORED;
+  }
+
+  /**
+   * Размер значения по его заголовку и числу занятых им на диске байт.
+   */
+  static int size(byte[] header, int storedSize) {
+    return isCompressed(header) ? ByteBuffer.wrap(header, 1, Integer.BYTES).getInt()
+        : storedSize - HEADER_SIZE;
+  }
+
+  private ValueCodec codec(byte id) throws IOException {
+    if (codec != null && codec.id() == id) {
+      return codec;
+    }
+    if (id == DeflateCodec.ID) {
+      return ValueCodec.deflate();
+    }
+    throw new IOException("Value is compressed with an unknown codec " + id);
+  }
+
+  private static byte[] frame(byte codecId, int length, byte[] payload) {
+    return ByteBuffer.allocate(HEADER_SIZE + payload.length)
+        .put(codecId)
+        .putInt(length)
+        .put(payload)
+        .array();
+  }
+}
@@ -3,26 +3,282 @@ package org.csc.java.spring2023;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32C;
 
 /**
  * Класс, который занимается записью/чтением значений в файлы
  */
 interface ValueStoreManager extends Closeable {
 
+  /**
+   * Соседние чтения с промежутком не больше этого читаются одной операцией вместе с промежутком
+   */
+  int MAX_MERGED_READ_GAP = 4096;
+
+  /**
+   * Размер куска, которыми значение неизвестной длины читается из источника и пишется на диск
+   */
+  int STREAM_CHUNK_SIZE = 1 << 16;
+
   /**
    * Записывает значение в файл, возвращает блоки, в которые было записано значение для добавления
    * этой информации в индекс
    */
   List<FileBlockLocation> add(byte[] value) throws IOException;
 
+  /**
+   * Записывает значение, читая его из source кусками до конца потока, так что значение целиком в
+   * памяти не держится. Если чтение или запись не удались, уже записанные блоки освобождаются.
+   * source должен быть в блокирующем режиме, иначе бросается IllegalArgumentException
+   */
+  default List<FileBlockLocation> add(ReadableByteChannel source) throws IOException {
+    FileChannelCache.requireBlocking(source);
+    List<FileBlockLocation> usedBlocks = new ArrayList<>();
+    ByteBuffer chunk = ByteBuffer.allocate(STREAM_CHUNK_SIZE);
+    // checksum of the last block, which keeps growing while chunks land right after it
+    CRC32C lastChecksum = new CRC32C();
+    try {
+      boolean finished = false;
+      while (!finished) {
+        chunk.clear();
+        while (chunk.hasRemaining()) {
+          if (source.read(chunk) < 0) {
+            finished = true;
+            break;
+          }
+        }
+        // add doesn't keep the array, so a full chunk is written as is and reused for the next
+        byte[] bytes = chunk.hasRemaining()
+            ? Arrays.copyOf(chunk.array(), chunk.position()) : chunk.array();
+        int offset = 0;
+        for (FileBlockLocation block : add(bytes)) {
+          appendMerging(usedBlocks, block, lastChecksum, bytes, offset);
+          offset += block.size();
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      try {
+        remove(usedBlocks);
+      } catch (IOException | RuntimeException suppressed) {
+        e.addSuppressed(suppressed);
+      }
+      throw e;
+    }
+    return usedBlocks;
+  }
+
+  /**
+   * Добавляет блок в конец списка, склеивая его с последним блоком, если они идут в файле подряд.
+   * Контрольная сумма склеенного блока досчитывается по байтам data, записанным в block.
+   */
+  private static void appendMerging(List<FileBlockLocation> blocks, FileBlockLocation block,
+      CRC32C lastChecksum, byte[] data, int dataOffset) {
+    if (!blocks.isEmpty()) {
+      FileBlockLocation last = blocks.get(blocks.size() - 1);
+      if (last.fileName().equals(block.fileName())
+          && last.offset() + last.size() == block.offset()) {
+        lastChecksum.update(data, dataOffset, block.size());
+        blocks.set(blocks.size() - 1, new FileBlockLocation(last.fileName(), last.offset(),
+            last.size() + block.size(), lastChecksum.getValue()));
+        return;
+      }
+    }
+    lastChecksum.reset();
+    lastChecksum.update(data, dataOffset, block.size());
+    blocks.add(block);
+  }
+
+  /**
+   * Записывает несколько значений подряд в участки, выделенные под них разом, так что значения
+   * лежат на диске друг за другом, но в одну копию в памяти не склеиваются. Возвращает блоки
+   * каждого значения в том же порядке. Если запись не удалась, все выделенные блоки освобождаются
+   */
+  default List<List<FileBlockLocation>> addAll(List<byte[]> values) throws IOException {
+    long total = 0;
+    for (byte[] value : values) {
+      total += value.length;
+    }
+    List<FileBlockLocation> reserved = allocate(total);
+    try {
+      List<List<FileBlockLocation>> result = split(reserved, values);
+      for (int i = 0; i < values.size(); i++) {
+        write(values.get(i), result.get(i));
+      }
+      return result;
+    } catch (IOException | RuntimeException e) {
+      try {
+        remove(reserved);
+      } catch (IOException | RuntimeException suppressed) {
+        e.addSuppressed(suppressed);
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Выделяет место под length байт в как можно меньшем числе непрерывных участков, ничего в них
+   * не записывая. Выделенные блоки надо либо заполнить через {@link #write}, либо освободить
+   */
+  List<FileBlockLocation> allocate(long length) throws IOException;
+
+  /**
+   * Записывает value в блоки, выделенные {@link #allocate}, по порядку. Сумма размеров блоков
+   * должна совпадать с длиной значения
+   */
+  void write(byte[] value, List<FileBlockLocation> blocks) throws IOException;
+
+  /**
+   * Разрезает блоки, в которые записаны подряд идущие значения, на блоки каждого из значений и
+   * считает контрольные суммы получившихся частей.
+   */
+  private static List<List<FileBlockLocation>> split(List<FileBlockLocation> blocks,
+      List<byte[]> values) {
+    List<List<FileBlockLocation>> result = new ArrayList<>(values.size());
+    int blockIndex = 0;
+    int usedInBlock = 0;
+    for (byte[] value : values) {
+      List<FileBlockLocation> valueBlocks = new ArrayList<>();
+      int remaining = value.length;
+      while (remaining > 0) {
+        FileBlockLocation block = blocks.get(blockIndex);
+        int size = Math.min(remaining, block.size() - usedInBlock);
+        valueBlocks.add(new FileBlockLocation(block.fileName(), block.offset() + usedInBlock, size)
+            .withChecksumOf(value, value.length - remaining));
+        usedInBlock += size;
+        remaining -= size;
+        if (usedInBlock == block.size()) {
+          blockIndex++;
+          usedInBlock = 0;
+        }
+      }
+      result.add(valueBlocks);
+    }
+    return result;
+  }
+
+  /**
+   * Записывает значение в как можно меньшее число непрерывных блоков, при необходимости создавая
+   * для него новые файлы
+   */
+  List<FileBlockLocation> addContiguous(byte[] value) throws IOException;
+
   /**
    * Возвращает входной поток из которого можно читать значение из конкретного блока
    */
   InputStream openBlockStream(FileBlockLocation location) throws IOException;
 
+  /**
+   * Читает первые dst.remaining() байт блока в dst. Если блок прочитан целиком, сверяет его
+   * контрольную сумму и бросает IOException, если она не совпала
+   */
+  void read(FileBlockLocation block, ByteBuffer dst) throws IOException;
+
+  /**
+   * Передает содержимое блока в target, по возможности без копирования через память процесса
+   */
+  void transferTo(FileBlockLocation block, WritableByteChannel target) throws IOException;
+
+  /**
+   * Считывает несколько значений, упорядочивая чтения по файлам и смещениям и объединяя соседние
+   * участки в одно чтение. Для null вместо списка блоков возвращает null
+   */
+  default List<byte[]> readValues(List<List<FileBlockLocation>> values) throws IOException {
+    record Piece(FileBlockLocation block, byte[] value, int valueOffset) {
+
+    }
+
+    List<byte[]> result = new ArrayList<>(values.size());
+    List<Piece> pieces = new ArrayList<>();
+    for (List<FileBlockLocation> blocks : values) {
+      if (blocks == null) {
+        result.add(null);
+        continue;
+      }
+      int length = 0;
+      for (FileBlockLocation block : blocks) {
+        length = Math.addExact(length, block.size());
+      }
+      byte[] value = new byte[length];
+      int valueOffset = 0;
+      for (FileBlockLocation block : blocks) {
+        pieces.add(new Piece(block, value, valueOffset));
+        valueOffset += block.size();
+      }
+      result.add(value);
+    }
+    pieces.sort(Comparator.comparing((Piece piece) -> piece.block().fileName())
+        .thenComparingInt(piece -> piece.block().offset()));
+
+    int from = 0;
+    while (from < pieces.size()) {
+      FileBlockLocation first = pieces.get(from).block();
+      long end = (long) first.offset() + first.size();
+      int to = from + 1;
+      while (to < pieces.size()) {
+        FileBlockLocation next = pieces.get(to).block();
+        if (!next.fileName().equals(first.fileName())
+            || next.offset() - end > MAX_MERGED_READ_GAP
+            || (long) next.offset() + next.size() - first.offset() > Integer.MAX_VALUE) {
+          break;
+        }
+        end = Math.max(end, (long) next.offset() + next.size());
+        to++;
+      }
+      byte[] range = new byte[(int) (end - first.offset())];
+      read(new FileBlockLocation(first.fileName(), first.offset(), range.length),
+          ByteBuffer.wrap(range));
+      for (Piece piece : pieces.subList(from, to)) {
+        piece.block().verify(range, piece.block().offset() - first.offset());
+        System.arraycopy(range, piece.block().offset() - first.offset(), piece.value(),
+            piece.valueOffset(), piece.block().size());
+      }
+      from = to;
+    }
+    return result;
+  }
+
+  /**
+   * Сбрасывает на диск все значения, записанные до вызова, вместе с новыми файлами для них
+   */
+  void sync() throws IOException;
+
   /**
    * Добавляет удаленные блоки в список свободных блоков
    */
   void remove(List<FileBlockLocation> valueBlocksLocations) throws IOException;
+
+  /**
+   * Возвращает файлы, живые значения из которых стоит переписать в другое место, чтобы освободить
+   * занятое мусором место
+   */
+  Set<String> filesToCompact();
+
+  /**
+   * Удаляет полностью свободные файлы и обрезает свободные хвосты файлов. Возвращает, сколько байт
+   * на диске освобождено с прошлого вызова
+   */
+  long reclaimFreeSpace() throws IOException;
+
+  /**
+   * Возвращает статистику кеша открытых файлов со значениями
+   */
+  ChannelCacheStats channelCacheStats();
+
+  /**
+   * Возвращает, сколько байт значений прочитано и записано и сколько файлов создано
+   */
+  FileChannelCache.IoStats ioStats();
+
+  /**
+   * Возвращает, на сколько свободных участков разбито место для новых значений
+   */
+  int freeExtents();
 }
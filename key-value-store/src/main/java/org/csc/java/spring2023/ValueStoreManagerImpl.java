@@ -1,42 +1,68 @@
 package org.csc.java.spring2023;
 
-import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
-import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
-import java.util.UUID;
+import java.util.Set;
 
 class ValueStoreManagerImpl implements ValueStoreManager {
 
   private final Path workDir;
   private final int fileSize;
   private final File emptyBlocksFile;
-  private Deque<FileBlockLocation> emptyBlocks;
+  private final FileChannelCache channels;
+  private FreeSpaceAllocator freeSpace;
 
-  ValueStoreManagerImpl(Path workDir, int fileSize) throws IOException {
+  /**
+   * Список свободных блоков сохраняется только при закрытии и удаляется при открытии, так что после
+   * падения его нет, и свободным считается все место в файлах значений, на которое не указывает
+   * восстановленный из журнала index.
+   */
+  ValueStoreManagerImpl(Path workDir, int fileSize, int maxOpenFiles, IndexManager index)
+      throws IOException {
     this.workDir = workDir;
     this.fileSize = fileSize;
+    this.channels = new FileChannelCache(workDir, maxOpenFiles);
     this.emptyBlocksFile = new File(this.workDir.toFile(), "emptyBlocks");
 
-    if (emptyBlocksFile.createNewFile()) {
-      this.emptyBlocks = new ArrayDeque<>();
+    this.freeSpace = new FreeSpaceAllocator();
+    if (emptyBlocksFile.exists()) {
+      ConfigSaver.loadEmptyBlocks(emptyBlocksFile).forEach(freeSpace::free);
+      // the list goes stale with the first allocation, a crash after it must not bring it back
+      Files.delete(emptyBlocksFile.toPath());
+      FileChannelCache.syncDirectory(workDir);
     } else {
-      this.emptyBlocks = ConfigSaver.loadEmptyBlocks(emptyBlocksFile);
+      rebuildFreeSpace(index.entries());
     }
+  }
 
-
+  private void rebuildFreeSpace(Iterator<IndexEntry> entries) throws IOException {
+    for (var file : ValueFiles.usedBlocks(workDir, entries).entrySet()) {
+      String fileName = file.getKey();
+      long position = 0;
+      for (FileBlockLocation block : file.getValue()) {
+        if (block.offset() > position) {
+          freeSpace.free(new FileBlockLocation(fileName, (int) position,
+              block.offset() - (int) position));
+        }
+        position = Math.max(position, (long) block.offset() + block.size());
+      }
+      long length = Files.size(workDir.resolve(fileName));
+      if (length > position) {
+        freeSpace.free(new FileBlockLocation(fileName, (int) position, (int) (length - position)));
+      }
+    }
   }
 
   /**
@@ -45,42 +71,75 @@ class ValueStoreManagerImpl implements ValueStoreManager {
    */
   @Override
   public List<FileBlockLocation> add(byte[] value) throws IOException {
-    if (emptyBlocks == null) {
-      throw new IllegalStateException("Storage is closed");
-    }
+    List<FileBlockLocation> usedBlocks = allocateScattered(value.length);
+    write(value, usedBlocks);
+    return FileBlockLocation.withChecksums(usedBlocks, value);
+  }
+
+  /**
+   * Записывает значение в один свободный участок, а если такого нет -- в новые файлы, так что
+   * значение разбивается только на границах файлов.
+   */
+  @Override
+  public List<FileBlockLocation> addContiguous(byte[] value) throws IOException {
+    List<FileBlockLocation> usedBlocks = allocateContiguous(value.length);
+    write(value, usedBlocks);
+    return FileBlockLocation.withChecksums(usedBlocks, value);
+  }
+
+  // blocks are allocated under the lock, but the data is written without it
+  private synchronized List<FileBlockLocation> allocateScattered(int length) throws IOException {
+    checkOpen();
     List<FileBlockLocation> usedBlocks = new ArrayList<>();
-    int offset = 0;
-    int restSize = value.length - offset;
-    while (restSize > 0) {
-      FileBlockLocation block;
-      if (emptyBlocks.isEmpty()) {
-        block = addFile();
-      } else {
-        block = emptyBlocks.pop();
+    int allocated = 0;
+    while (allocated < length) {
+      FileBlockLocation block = freeSpace.allocate(length - allocated);
+      if (block == null) {
+        freeSpace.free(addFile());
+        continue;
       }
-      writeToFile(value, offset, Math.min(restSize, block.size()), block.file(workDir),
-          block.offset());
+      usedBlocks.add(block);
+      allocated += block.size();
+    }
+    return usedBlocks;
+  }
 
-      if (block.size() > restSize) {
-        // use part of the block
-        emptyBlocks.add(new FileBlockLocation(block.fileName(), block.offset() + restSize,
-            block.size() - restSize));
-        usedBlocks.add(new FileBlockLocation(block.fileName(), block.offset(), restSize));
-      } else {
-        usedBlocks.add(block);
-      }
-      offset += Math.min(block.size(), restSize);
+  @Override
+  public List<FileBlockLocation> allocate(long length) throws IOException {
+    return allocateContiguous(length);
+  }
 
-      restSize = value.length - offset;
+  private synchronized List<FileBlockLocation> allocateContiguous(long length)
+      throws IOException {
+    checkOpen();
+    if (length == 0) {
+      return List.of();
+    }
+    if (length <= fileSize) {
+      FileBlockLocation fitting = freeSpace.allocateFitting((int) length);
+      if (fitting != null) {
+        return List.of(fitting);
+      }
+    }
+    List<FileBlockLocation> usedBlocks = new ArrayList<>();
+    long allocated = 0;
+    while (allocated < length) {
+      FileBlockLocation file = addFile();
+      int size = (int) Math.min(fileSize, length - allocated);
+      usedBlocks.add(new FileBlockLocation(file.fileName(), 0, size));
+      freeSpace.free(new FileBlockLocation(file.fileName(), size, fileSize - size));
+      allocated += size;
     }
     return usedBlocks;
   }
 
-  private void writeToFile(byte[] value, int offset, int size, File file, int fileOffset)
-      throws IOException {
-    try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
-      randomAccessFile.seek(fileOffset);
-      randomAccessFile.write(value, offset, size);
+  @Override
+  public void write(byte[] value, List<FileBlockLocation> blocks) throws IOException {
+    int offset = 0;
+    for (FileBlockLocation block : blocks) {
+      channels.writeFully(block.fileName(), ByteBuffer.wrap(value, offset, block.size()),
+          block.offset());
+      offset += block.size();
     }
   }
 
@@ -88,47 +147,82 @@ class ValueStoreManagerImpl implements ValueStoreManager {
    * Возвращает входной поток из которого можно читать значение из конкретного блока.
    */
   @Override
-  public InputStream openBlockStream(FileBlockLocation block) throws IOException {
-    try (FileChannel channel = FileChannel.open(Paths.get(block.file(workDir).getAbsolutePath()),
-        READ)) {
-      MappedByteBuffer content = channel.map(READ_ONLY, block.offset(), block.size());
-      return new ByteBufferBackedInputStream(content);
-    }
+  public InputStream openBlockStream(FileBlockLocation block) {
+    return new BlockInputStream(channels, block);
+  }
 
+  @Override
+  public void read(FileBlockLocation block, ByteBuffer dst) throws IOException {
+    int from = dst.position();
+    channels.readFully(block.fileName(), dst, block.offset());
+    if (dst.position() - from == block.size()) {
+      block.verify(dst, from);
+    }
   }
 
-  private static class ByteBufferBackedInputStream extends InputStream {
+  @Override
+  public void sync() throws IOException {
+    channels.force();
+  }
 
-    private final ByteBuffer buf;
+  @Override
+  public void transferTo(FileBlockLocation block, WritableByteChannel target)
+      throws IOException {
+    channels.transferTo(block.fileName(), block.offset(), block.size(), target);
+  }
 
-    public ByteBufferBackedInputStream(ByteBuffer buf) {
-      this.buf = buf;
-    }
+  /**
+   * Освобожденные блоки переиспользуются при записи, поэтому сжимать нечего.
+   */
+  @Override
+  public Set<String> filesToCompact() {
+    return Set.of();
+  }
 
-    public int read() {
-      if (!buf.hasRemaining()) {
-        return -1;
+  @Override
+  public synchronized long reclaimFreeSpace() throws IOException {
+    checkOpen();
+    long reclaimed = 0;
+    for (String fileName : freeSpace.files()) {
+      Path file = workDir.resolve(fileName);
+      long length = Files.size(file);
+      FileBlockLocation tail = freeSpace.takeTail(fileName, length);
+      if (tail == null) {
+        continue;
+      }
+      if (tail.offset() == 0) {
+        channels.evict(fileName);
+        Files.delete(file);
+      } else {
+        channels.truncate(fileName, tail.offset());
       }
-      return buf.get() & 0xFF;
+      reclaimed += tail.size();
     }
+    return reclaimed;
+  }
 
-    public int read(byte[] bytes, int off, int desiredLen) {
-      if (!buf.hasRemaining()) {
-        return -1;
-      }
+  @Override
+  public ChannelCacheStats channelCacheStats() {
+    return channels.stats();
+  }
 
-      int len = Math.min(desiredLen, buf.remaining());
-      buf.get(bytes, off, len);
-      return len;
-    }
+  @Override
+  public FileChannelCache.IoStats ioStats() {
+    return channels.ioStats();
+  }
+
+  @Override
+  public synchronized int freeExtents() {
+    return freeSpace == null ? 0 : freeSpace.extentCount();
   }
 
   /**
    * Добавляет удаленные блоки в список свободных блоков.
    */
   @Override
-  public void remove(List<FileBlockLocation> valueBlocksLocations) {
-    emptyBlocks.addAll(valueBlocksLocations);
+  public synchronized void remove(List<FileBlockLocation> valueBlocksLocations) {
+    checkOpen();
+    valueBlocksLocations.forEach(freeSpace::free);
   }
 
   /**
@@ -138,12 +232,22 @@ class ValueStoreManagerImpl implements ValueStoreManager {
    * @throws IOException if an I/O error occurs
    */
   @Override
-  public void close() throws IOException {
-    if (emptyBlocks == null) {
+  public synchronized void close() throws IOException {
+    if (freeSpace == null) {
       return;
     }
-    ConfigSaver.saveEmptyBlocks(emptyBlocks, emptyBlocksFile);
-    emptyBlocks = null;
+    channels.close();
+    File tmpFile = new File(emptyBlocksFile.getParentFile(), emptyBlocksFile.getName() + ".tmp");
+    ConfigSaver.saveEmptyBlocks(freeSpace.extents(), tmpFile);
+    Files.move(tmpFile.toPath(), emptyBlocksFile.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+    FileChannelCache.syncDirectory(workDir);
+    freeSpace = null;
+  }
+
+  private void checkOpen() {
+    if (freeSpace == null) {
+      throw new IllegalStateException("Storage is closed");
+    }
   }
 
   /**
@@ -152,12 +256,13 @@ class ValueStoreManagerImpl implements ValueStoreManager {
    * @return location of the new block.
    */
   private FileBlockLocation addFile() throws IOException {
-    String fileName = UUID.randomUUID().toString();
+    String fileName = ValueFiles.newFileName();
     FileBlockLocation block = new FileBlockLocation(fileName, 0, fileSize);
     File filePath = block.file(workDir);
     try (RandomAccessFile file = new RandomAccessFile(filePath, "rw")) {
       file.setLength(fileSize);
     }
+    channels.fileCreated();
     return block;
   }
 }
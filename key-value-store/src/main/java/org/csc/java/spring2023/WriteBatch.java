@@ -0,0 +1,68 @@
+package org.csc.java.spring2023;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Набор изменений, который {@link KeyValueStore#write(WriteBatch)} применяет разом: место под все
+ * значения выделяется за один раз, значения пишутся большими последовательными кусками, а индекс
+ * меняется одной записью журнала.
+ * <p>
+ * Если один ключ меняется в наборе несколько раз, применяется последнее изменение. Массивы не
+ * копируются, поэтому их нельзя менять, пока набор не записан.
+ */
+public final class WriteBatch {
+
+  // null value means the key is deleted
+  private final Map<ByteWrapper, byte[]> changes = new LinkedHashMap<>();
+
+  /**
+   * Записывает значение по ключу.
+   */
+  public WriteBatch put(byte[] key, byte[] value) {
+    Objects.requireNonNull(key, "Key can't be null");
+    Objects.requireNonNull(value, "Value can't be null");
+    changes.put(new ByteWrapper(key), value);
+    return this;
+  }
+
+  /**
+   * Удаляет значение по ключу, если оно есть.
+   */
+  public WriteBatch delete(byte[] key) {
+    Objects.requireNonNull(key, "Key can't be null");
+    changes.put(new ByteWrapper(key), null);
+    return this;
+  }
+
+  /**
+   * Количество различных ключей в наборе.
+   */
+  public int size() {
+    return changes.size();
+  }
+
+  public boolean isEmpty() {
+    return changes.isEmpty();
+  }
+
+  public void clear() {
+    changes.clear();
+  }
+
+  List<byte[]> keys() {
+    List<byte[]> keys = new ArrayList<>(changes.size());
+    changes.keySet().forEach(key -> keys.add(key.getBytes()));
+    return keys;
+  }
+
+  /**
+   * Значения в порядке {@link #keys()}, null для удаляемых ключей.
+   */
+  List<byte[]> values() {
+    return new ArrayList<>(changes.values());
+  }
+}
@@ -1,5 +1,7 @@
 package org.csc.java.spring2023;
 
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.WRITE;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
@@ -8,16 +10,37 @@ import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.Pipe;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.NotDirectoryException;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Stream;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 
@@ -361,6 +384,344 @@ public class KeyValueStoreTest {
     kvStore.close();
   }
 
+  @Test
+  public void testIndexChangesVisibleWithoutClose(@TempDir Path tempDir) throws IOException {
+    KeyValueStore kvStore = initStore(tempDir, 5);
+
+    byte[] key1 = "a".getBytes();
+    byte[] key2 = "b".getBytes();
+    kvStore.upsert(key1, "123".getBytes());
+    kvStore.upsert(key2, "456".getBytes());
+    kvStore.remove(key1);
+
+    // the first store is never closed, as if the process crashed
+    try (KeyValueStore reopened = initStore(tempDir, 5)) {
+      assertFalse(reopened.contains(key1));
+      assertArrayEquals(reopened.loadValue(key2), "456".getBytes());
+    }
+  }
+
+  @Test
+  public void testFreeSpaceIsRebuiltAfterCrash(@TempDir Path tempDir) throws IOException {
+    for (KeyValueStoreOptions.StorageMode mode : KeyValueStoreOptions.StorageMode.values()) {
+      Path workDir = Files.createDirectory(tempDir.resolve(mode.name()));
+      KeyValueStoreOptions options = KeyValueStoreOptions.defaults().storageMode(mode);
+      try (KeyValueStore kvStore = KeyValueStoreFactory.create(workDir, 8, options)) {
+        for (int i = 0; i < 4; i++) {
+          kvStore.upsert(("k" + i).getBytes(), "aaaa".getBytes());
+        }
+        kvStore.remove("k0".getBytes());
+      }
+
+      KeyValueStore crashed = KeyValueStoreFactory.create(workDir, 8, options);
+      crashed.upsert("k4".getBytes(), "bbbb".getBytes());
+      crashed.upsert("k1".getBytes(), "cccc".getBytes());
+      // the store is not closed, as if the process crashed
+
+      try (KeyValueStore kvStore = KeyValueStoreFactory.create(workDir, 8, options)) {
+        for (int i = 5; i < 10; i++) {
+          kvStore.upsert(("k" + i).getBytes(), "dddd".getBytes());
+        }
+        assertFalse(kvStore.contains("k0".getBytes()));
+        assertArrayEquals("cccc".getBytes(), kvStore.loadValue("k1".getBytes()));
+        assertArrayEquals("aaaa".getBytes(), kvStore.loadValue("k2".getBytes()));
+        assertArrayEquals("bbbb".getBytes(), kvStore.loadValue("k4".getBytes()));
+        assertArrayEquals("dddd".getBytes(), kvStore.loadValue("k9".getBytes()));
+        assertThat(kvStore.scrub(1).corruptedKeys()).isEmpty();
+        kvStore.defragment(1);
+        assertArrayEquals("bbbb".getBytes(), kvStore.loadValue("k4".getBytes()));
+      }
+    }
+  }
+
+  @Test
+  void testFailedIndexCheckpointDoesNotPublishTheValue(@TempDir Path tempDir) throws Exception {
+    KeyValueStore kvStore = initStore(tempDir, 64);
+    byte[] key = "key".getBytes();
+    kvStore.upsert(key, "value 0".getBytes());
+    // the background merge cannot create its temporary file and fails
+    Files.createDirectory(tempDir.resolve("index.tmp"));
+    String stored = "value 0";
+    IOException failure = null;
+    long deadline = System.currentTimeMillis() + 5000;
+    for (int i = 1; failure == null && System.currentTimeMillis() < deadline; i++) {
+      try {
+        kvStore.upsert(key, ("value " + i).getBytes());
+        stored = "value " + i;
+      } catch (IOException e) {
+        failure = e;
+      }
+    }
+    assertThat(failure).isNotNull();
+    assertArrayEquals(stored.getBytes(), kvStore.loadValue(key));
+    assertThrows(IOException.class, () -> kvStore.upsert("other".getBytes(), "x".getBytes()));
+    assertArrayEquals(stored.getBytes(), kvStore.loadValue(key));
+    assertThrows(IOException.class, kvStore::close);
+  }
+
+  @Test
+  void testIndexLogStopsAtZeroFilledOrCorruptTail(@TempDir Path tempDir) throws IOException {
+    List<FileBlockLocation> blocks = List.of(new FileBlockLocation("f", 0, 1));
+    Path logFile = tempDir.resolve("index.log");
+    try (IndexLog log = new IndexLog(logFile.toFile(), new HashMap<>())) {
+      log.appendUpsert("a".getBytes(), blocks);
+      log.appendUpsert("b".getBytes(), blocks);
+    }
+    long validLength = Files.size(logFile);
+    // a power loss can leave a zero-filled tail behind the last record
+    try (FileChannel channel = FileChannel.open(logFile, WRITE)) {
+      channel.write(ByteBuffer.allocate(64), validLength);
+    }
+    Map<ByteWrapper, List<FileBlockLocation>> index = new HashMap<>();
+    new IndexLog(logFile.toFile(), index).close();
+    assertThat(index).containsOnlyKeys(
+        new ByteWrapper("a".getBytes()), new ByteWrapper("b".getBytes()));
+    assertEquals(validLength, Files.size(logFile));
+
+    // a record with a plausible length but damaged content is dropped with everything after it
+    byte[] bytes = Files.readAllBytes(logFile);
+    bytes[bytes.length - 1] ^= 1;
+    Files.write(logFile, bytes);
+    index.clear();
+    try (IndexLog log = new IndexLog(logFile.toFile(), index)) {
+      log.appendUpsert("c".getBytes(), blocks);
+    }
+    index.clear();
+    new IndexLog(logFile.toFile(), index).close();
+    assertThat(index).containsOnlyKeys(
+        new ByteWrapper("a".getBytes()), new ByteWrapper("c".getBytes()));
+
+    // a log written before records had checksums is read and rewritten with them
+    byte[] record = ConfigSaver.encodeIndexRecord(IndexLog.UPSERT, "d".getBytes(), blocks);
+    Files.write(logFile, ByteBuffer.allocate(Integer.BYTES + record.length)
+        .putInt(record.length).put(record).array());
+    index.clear();
+    try (IndexLog log = new IndexLog(logFile.toFile(), index)) {
+      log.appendRemove("d".getBytes());
+      log.appendUpsert("e".getBytes(), blocks);
+    }
+    index.clear();
+    new IndexLog(logFile.toFile(), index).close();
+    assertThat(index).containsOnlyKeys(new ByteWrapper("e".getBytes()));
+  }
+
+  @Test
+  void testIndexRecoversFromBaseDeltasAndLogTailAndMergesDeltas(@TempDir Path tempDir)
+      throws IOException {
+    List<FileBlockLocation> oldBlocks = List.of(new FileBlockLocation("f", 0, 1));
+    List<FileBlockLocation> newBlocks = List.of(new FileBlockLocation("f", 1, 1));
+    Map<ByteWrapper, List<FileBlockLocation>> base = new HashMap<>();
+    for (String key : List.of("a", "b", "c")) {
+      base.put(new ByteWrapper(key.getBytes()), oldBlocks);
+    }
+    ConfigSaver.saveIndex(base, tempDir.resolve("index").toFile());
+    // two sealed deltas the background merge has not folded in yet, and the tail of the log
+    try (IndexLog delta = new IndexLog(tempDir.resolve("index.delta.0").toFile(), base)) {
+      delta.appendRemove("a".getBytes());
+      delta.appendUpsert("b".getBytes(), newBlocks);
+    }
+    try (IndexLog delta = new IndexLog(tempDir.resolve("index.delta.1").toFile(), base)) {
+      delta.appendUpsert("a".getBytes(), newBlocks);
+      delta.appendUpsert("d".getBytes(), newBlocks);
+    }
+    try (IndexLog log = new IndexLog(tempDir.resolve("index.log").toFile(), base)) {
+      log.appendRemove("c".getBytes());
+    }
+
+    Map<String, List<FileBlockLocation>> expected = Map.of("a", newBlocks, "b", newBlocks,
+        "d", newBlocks, "e", newBlocks);
+    try (IndexManagerImpl index = new IndexManagerImpl(tempDir)) {
+      assertThat(index.getFileBlocksLocations("c".getBytes())).isNull();
+      for (String key : List.of("a", "b", "d")) {
+        assertEquals(newBlocks, index.getFileBlocksLocations(key.getBytes()));
+      }
+      // the log outgrows the index, gets sealed into a third delta and all three are merged
+      for (int i = 0; i < 4; i++) {
+        index.add("e".getBytes(), newBlocks);
+      }
+    }
+
+    try (Stream<Path> files = Files.list(tempDir)) {
+      assertThat(files.map(file -> file.getFileName().toString()))
+          .noneMatch(name -> name.startsWith("index.delta."));
+    }
+    Map<String, List<FileBlockLocation>> merged = new HashMap<>();
+    ConfigSaver.loadIndex(tempDir.resolve("index").toFile())
+        .forEach((key, blocks) -> merged.put(new String(key.getBytes()), blocks));
+    assertEquals(expected, merged);
+    try (IndexManagerImpl index = new IndexManagerImpl(tempDir)) {
+      Map<String, List<FileBlockLocation>> reopened = new HashMap<>();
+      index.entries().forEachRemaining(
+          entry -> reopened.put(new String(entry.key()), entry.blocks()));
+      assertEquals(expected, reopened);
+    }
+  }
+
+  @Test
+  public void testMappedIndexGrowsAndSurvivesReopen(@TempDir Path tempDir) throws IOException {
+    KeyValueStoreOptions options = KeyValueStoreOptions.defaults()
+        .indexType(KeyValueStoreOptions.IndexType.MAPPED_HASH_TABLE);
+    int keys = 2000;
+
+    try (KeyValueStore kvStore = KeyValueStoreFactory.create(tempDir, 64, options)) {
+      for (int i = 0; i < keys; i++) {
+        kvStore.upsert(("key" + i).getBytes(), ("value" + i).getBytes());
+      }
+      for (int i = 0; i < keys; i += 2) {
+        kvStore.upsert(("key" + i).getBytes(), ("new" + i).getBytes());
+      }
+      for (int i = 0; i < keys; i += 3) {
+        assertTrue(kvStore.remove(("key" + i).getBytes()));
+      }
+    }
+
+    try (KeyValueStore kvStore = KeyValueStoreFactory.create(tempDir, 64, options)) {
+      for (int i = 0; i < keys; i++) {
+        byte[] key = ("key" + i).getBytes();
+        if (i % 3 == 0) {
+          assertFalse(kvStore.contains(key));
+        } else {
+          String expected = (i % 2 == 0 ? "new" : "value") + i;
+          assertArrayEquals(kvStore.loadValue(key), expected.getBytes());
+        }
+      }
+    }
+
+    // any other index would find none of the entries and start a second, empty one
+    for (KeyValueStoreOptions.IndexType other : List.of(KeyValueStoreOptions.IndexType.IN_MEMORY,
+        KeyValueStoreOptions.IndexType.LSM_TREE)) {
+      assertThrows(IllegalArgumentException.class, () -> KeyValueStoreFactory.create(tempDir, 64,
+          KeyValueStoreOptions.defaults().indexType(other)));
+    }
+    try (KeyValueStore kvStore = KeyValueStoreFactory.create(tempDir, 64, options)) {
+      assertArrayEquals("value1".getBytes(), kvStore.loadValue("key1".getBytes()));
+    }
+  }
+
+  @Test
+  void testMappedIndexRebuildsFromDataAfterCrash(@TempDir Path tempDir) throws IOException {
+    KeyValueStoreOptions options = KeyValueStoreOptions.defaults()
+        .indexType(KeyValueStoreOptions.IndexType.MAPPED_HASH_TABLE);
+    int keys = 1000;
+    // the store is not closed, as if the process crashed
+    KeyValueStore crashed = KeyValueStoreFactory.create(tempDir, 64, options);
+    for (int i = 0; i < keys; i++) {
+      crashed.upsert(("key" + i).getBytes(), ("value" + i).getBytes());
+    }
+    for (int i = 0; i < keys; i += 3) {
+      assertTrue(crashed.remove(("key" + i).getBytes()));
+    }
+    crashed.write(new WriteBatch().put("key1".getBytes(), "batch".getBytes())
+        .delete("key2".getBytes()));
+
+    // none of the in-place slot updates has reached the disk
+    try (FileChannel table = FileChannel.open(tempDir.resolve("index.table"), WRITE)) {
+      long slots = table.size() - 32;
+      table.write(ByteBuffer.allocate((int) slots), 32);
+    }
+
+    try (KeyValueStore kvStore = KeyValueStoreFactory.create(tempDir, 64, options)) {
+      for (int i = 3; i < keys; i++) {
+        byte[] key = ("key" + i).getBytes();
+        if (i % 3 == 0) {
+          assertFalse(kvStore.contains(key));
+        } else {
+          assertArrayEquals(("value" + i).getBytes(), kvStore.loadValue(key));
+        }
+      }
+      assertArrayEquals("batch".getBytes(), kvStore.loadValue("key1".getBytes()));
+      assertFalse(kvStore.contains("key2".getBytes()));
+      kvStore.upsert("after".getBytes(), "recovery".getBytes());
+    }
+    try (KeyValueStore kvStore = KeyValueStoreFactory.create(tempDir, 64, options)) {
+      assertArrayEquals("recovery".getBytes(), kvStore.loadValue("after".getBytes()));
+      assertArrayEquals("batch".getBytes(), kvStore.loadValue("key1".getBytes()));
+    }
+  }
+
+  @Test
+  public void testOpenFilesAreCachedAndBounded(@TempDir Path tempDir) throws IOException {
+    KeyValueStoreOptions options = KeyValueStoreOptions.defaults().maxOpenFiles(2);
+
+    try (KeyValueStore kvStore = KeyValueStoreFactory.create(tempDir, 1, options)) {
+      byte[] key = "a".getBytes();
+      byte[] value = "12345".getBytes();
+      // one byte per file, so the value lies in as many files and each of them is looked up once
+      // by the upsert and once by every load
+      int files = value.length;
+      kvStore.upsert(key, value);
+      assertArrayEquals(kvStore.loadValue(key), value);
+      assertArrayEquals(kvStore.loadValue(key), value);
+
+      // going through more files than the cache holds evicts each one before it is needed again
+      int lookups = 3 * files;
+      ChannelCacheStats stats = kvStore.metrics().channelCache();
+      assertEquals(new ChannelCacheStats(0, lookups, lookups - 2, 2), stats);
+    }
+  }
+
+  @Test
+  void testConcurrentReadersShareAndEvictOpenFiles(@TempDir Path tempDir) throws Exception {
+    KeyValueStoreOptions options = KeyValueStoreOptions.defaults().maxOpenFiles(2);
+    try (KeyValueStore kvStore = KeyValueStoreFactory.create(tempDir, 16, options)) {
+      for (int i = 0; i < 20; i++) {
+        kvStore.upsert(("key" + i).getBytes(), ("value-" + i).repeat(i + 1).getBytes());
+      }
+
+      // readers race on the same few channels while misses keep evicting them
+      ExecutorService executor = Executors.newFixedThreadPool(8);
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < 8; t++) {
+        int thread = t;
+        futures.add(executor.submit(() -> {
+          for (int i = 0; i < 500; i++) {
+            int key = (thread * 7 + i) % 20;
+            assertArrayEquals(("value-" + key).repeat(key + 1).getBytes(),
+                kvStore.loadValue(("key" + key).getBytes()));
+          }
+          return null;
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+      executor.shutdown();
+
+      ChannelCacheStats stats = kvStore.metrics().channelCache();
+      assertThat(stats.openFiles()).isLessThanOrEqualTo(2);
+      assertThat(stats.evictions()).isPositive();
+    }
+  }
+
+  @Test
+  public void testLogStructuredStorageCompactsGarbage(@TempDir Path tempDir) throws IOException {
+    KeyValueStoreOptions options = KeyValueStoreOptions.defaults()
+        .storageMode(KeyValueStoreOptions.StorageMode.LOG_STRUCTURED);
+    int keys = 4;
+    int rounds = 50;
+
+    try (KeyValueStore kvStore = KeyValueStoreFactory.create(tempDir, 8, options)) {
+      for (int round = 0; round < rounds; round++) {
+        for (int i = 0; i < keys; i++) {
+          kvStore.upsert(("key" + i).getBytes(), ("v" + round + "-" + i).getBytes());
+        }
+      }
+      ((KeyValueStoreImpl) kvStore).compactSegments();
+
+      try (Stream<Path> files = Files.list(tempDir)) {
+        long segments = files.filter(p -> p.getFileName().toString().length() == 36).count();
+        assertThat(segments).isLessThanOrEqualTo(4);
+      }
+    }
+
+    try (KeyValueStore kvStore = KeyValueStoreFactory.create(tempDir, 8, options)) {
+      for (int i = 0; i < keys; i++) {
+        byte[] expected = ("v" + (rounds - 1) + "-" + i).getBytes();
+        assertArrayEquals(kvStore.loadValue(("key" + i).getBytes()), expected);
+      }
+    }
+  }
+
   @Test
   public void testMultipleFilesSupport(@TempDir Path tempDir) throws IOException {
     KeyValueStore kvStore = initStore(tempDir, 1);
@@ -374,6 +735,63 @@ public class KeyValueStoreTest {
     kvStore.close();
   }
 
+  @Test
+  public void testFreedNeighbourBlocksAreCoalesced(@TempDir Path tempDir) throws IOException {
+    KeyValueStore kvStore = initStore(tempDir, 12);
+
+    for (String key : List.of("a", "b", "c")) {
+      kvStore.upsert(key.getBytes(), "1234".getBytes());
+    }
+    // freed out of order, the three blocks still merge back into one
+    for (String key : List.of("a", "c", "b")) {
+      kvStore.remove(key.getBytes());
+    }
+
+    byte[] key = "d".getBytes();
+    byte[] value = "123456789012".getBytes();
+    kvStore.upsert(key, value);
+
+    assertEquals(kvStore.getIndexManager().getFileBlocksLocations(key).size(), 1);
+    assertArrayEquals(kvStore.loadValue(key), value);
+
+    kvStore.close();
+  }
+
+  @Test
+  public void testDefragmentationRewritesValuesAndDeletesFreeFiles(@TempDir Path tempDir)
+      throws IOException {
+    try (KeyValueStore kvStore = initStore(tempDir, 8)) {
+      for (int i = 0; i < 8; i++) {
+        kvStore.upsert(("k" + i).getBytes(), ("v" + i).getBytes());
+      }
+      for (int i = 0; i < 8; i += 2) {
+        kvStore.remove(("k" + i).getBytes());
+      }
+      byte[] key = "big".getBytes();
+      byte[] value = "123456".getBytes();
+      kvStore.upsert(key, value);
+      assertEquals(kvStore.getIndexManager().getFileBlocksLocations(key).size(), 3);
+
+      DefragmentationReport report = kvStore.defragment(1);
+
+      assertEquals(report.relocatedValues(), 1);
+      assertThat(report.fragmentationBefore()).isPositive();
+      assertThat(report.fragmentationAfter()).isZero();
+      assertEquals(kvStore.getIndexManager().getFileBlocksLocations(key).size(), 1);
+      assertArrayEquals(kvStore.loadValue(key), value);
+
+      kvStore.remove(key);
+      for (int i = 1; i < 8; i += 2) {
+        kvStore.remove(("k" + i).getBytes());
+      }
+      assertThat(kvStore.defragment(1).reclaimedBytes()).isPositive();
+
+      try (Stream<Path> files = Files.list(tempDir)) {
+        assertThat(files.filter(p -> p.getFileName().toString().length() == 36)).isEmpty();
+      }
+    }
+  }
+
   @Test
   public void testEmptyBlockNotRapidlyGrowing(@TempDir Path tempDir) throws IOException {
     int maxValueFileSize = 5;
@@ -407,6 +825,867 @@ public class KeyValueStoreTest {
     assertThat(bytesLength).isLessThan(200); // only index file without multiple block ones
   }
 
+  @Test
+  void testConcurrentWritersAndReaders(@TempDir Path tempDir) throws Exception {
+    KeyValueStore kvStore = initStore(tempDir, 64);
+    byte[] shared = "shared".getBytes();
+    byte[] oldValue = new byte[200];
+    Arrays.fill(oldValue, (byte) 1);
+    kvStore.upsert(shared, oldValue);
+    InputStream pinned = kvStore.openValueStream(shared);
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      int thread = t;
+      futures.add(executor.submit(() -> {
+        for (int i = 0; i < 200; i++) {
+          byte[] key = ("key-" + thread + "-" + i % 10).getBytes();
+          byte[] value = ("value-" + thread + "-" + i).repeat(i % 7 + 1).getBytes();
+          kvStore.upsert(key, value);
+          assertArrayEquals(value, kvStore.loadValue(key));
+          kvStore.upsert(shared, new byte[200]);
+        }
+        return null;
+      }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    executor.shutdown();
+
+    // blocks of the overwritten value are not reused while the stream is open
+    assertArrayEquals(oldValue, pinned.readAllBytes());
+    pinned.close();
+    assertArrayEquals(new byte[200], kvStore.loadValue(shared));
+    kvStore.close();
+  }
+
+  @Test
+  void testConcurrentAndInterruptedCloseTearDownOnce(@TempDir Path tempDir) throws Exception {
+    KeyValueStoreOptions options = KeyValueStoreOptions.defaults()
+        .storageMode(KeyValueStoreOptions.StorageMode.LOG_STRUCTURED);
+    KeyValueStore kvStore = KeyValueStoreFactory.create(tempDir, 64, options);
+    // a value with a ttl starts the expiry reaper, log-structured storage starts the compactor
+    kvStore.upsert("a".getBytes(), new byte[100], Duration.ofMinutes(1));
+
+    // an interrupt neither cuts the wait for background threads short nor gets lost
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    List<Future<Boolean>> futures = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      futures.add(executor.submit(() -> {
+        Thread.currentThread().interrupt();
+        kvStore.close();
+        return Thread.interrupted();
+      }));
+    }
+    for (Future<Boolean> future : futures) {
+      assertTrue(future.get());
+    }
+    executor.shutdown();
+    assertThrows(IllegalStateException.class, () -> kvStore.loadValue("a".getBytes()));
+
+    try (KeyValueStore reopened = KeyValueStoreFactory.create(tempDir, 64, options)) {
+      assertArrayEquals(new byte[100], reopened.loadValue("a".getBytes()));
+    }
+  }
+
+  @Test
+  void testCloseWaitsForWritersInFlight(@TempDir Path tempDir) throws Exception {
+    KeyValueStore kvStore = initStore(tempDir, 64);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    List<Future<Integer>> futures = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      int thread = t;
+      futures.add(executor.submit(() -> {
+        int written = 0;
+        try {
+          while (true) {
+            kvStore.upsert(("key-" + thread + "-" + written).getBytes(), new byte[100]);
+            written++;
+          }
+        } catch (IllegalStateException e) {
+          return written;
+        }
+      }));
+    }
+    Thread.sleep(50);
+    kvStore.close();
+    executor.shutdown();
+
+    // every upsert that returned before close is durable and readable after reopening
+    try (KeyValueStore reopened = initStore(tempDir, 64)) {
+      for (int t = 0; t < 4; t++) {
+        int written = futures.get(t).get();
+        assertThat(written).isPositive();
+        for (int i = 0; i < written; i++) {
+          assertArrayEquals(new byte[100], reopened.loadValue(("key-" + t + "-" + i).getBytes()));
+        }
+      }
+    }
+  }
+
+  @Test
+  void testWriteBatchAppliesAllChangesAtOnce(@TempDir Path tempDir) throws IOException {
+    try (KeyValueStore kvStore = initStore(tempDir, 16)) {
+      kvStore.upsert("old".getBytes(), "old value".getBytes());
+      kvStore.upsert("gone".getBytes(), "removed".getBytes());
+
+      WriteBatch batch = new WriteBatch();
+      for (int i = 0; i < 100; i++) {
+        batch.put(("key" + i).getBytes(), ("value" + i).getBytes());
+      }
+      batch.put("old".getBytes(), "new value".getBytes())
+          .delete("gone".getBytes())
+          .delete("missing".getBytes())
+          .put("key0".getBytes(), "last wins".getBytes());
+      kvStore.write(batch);
+
+      // the first store is still open, the batch must be replayed from the index log
+      try (KeyValueStore reopened = initStore(tempDir, 16)) {
+        for (KeyValueStore store : List.of(kvStore, reopened)) {
+          assertArrayEquals("last wins".getBytes(), store.loadValue("key0".getBytes()));
+          assertArrayEquals("value99".getBytes(), store.loadValue("key99".getBytes()));
+          assertArrayEquals("new value".getBytes(), store.loadValue("old".getBytes()));
+          assertFalse(store.contains("gone".getBytes()));
+          assertFalse(store.contains("missing".getBytes()));
+        }
+      }
+    }
+  }
+
+  @Test
+  void testLoadValuesReadsManyKeysAtOnce(@TempDir Path tempDir) throws IOException {
+    try (KeyValueStore kvStore = initStore(tempDir, 32)) {
+      List<byte[]> keys = new ArrayList<>();
+      for (int i = 0; i < 50; i++) {
+        kvStore.upsert(("key" + i).getBytes(), ("value" + i).repeat(i % 5 + 1).getBytes());
+        keys.add(("key" + (49 - i)).getBytes());
+      }
+      kvStore.remove("key7".getBytes());
+      kvStore.upsert("empty".getBytes(), new byte[0]);
+      keys.add("missing".getBytes());
+      keys.add("empty".getBytes());
+
+      List<byte[]> values = kvStore.loadValues(keys);
+
+      assertThat(values).hasSize(keys.size());
+      for (int i = 0; i < 50; i++) {
+        int key = 49 - i;
+        byte[] expected = key == 7 ? null : ("value" + key).repeat(key % 5 + 1).getBytes();
+        assertArrayEquals(expected, values.get(i));
+      }
+      assertThat(values.get(50)).isNull();
+      assertArrayEquals(new byte[0], values.get(51));
+    }
+  }
+
+  @Test
+  void testTransferValueToChannel(@TempDir Path tempDir) throws IOException {
+    Path storeDir = Files.createDirectory(tempDir.resolve("store"));
+    try (KeyValueStore kvStore = initStore(storeDir, 10)) {
+      byte[] key = "key".getBytes();
+      byte[] value = "a value split into several blocks".getBytes();
+      kvStore.upsert(key, value);
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      assertEquals(value.length, kvStore.transferValueTo(key, Channels.newChannel(out)));
+      assertArrayEquals(value, out.toByteArray());
+
+      Path target = tempDir.resolve("target");
+      try (FileChannel channel = FileChannel.open(target, CREATE_NEW, WRITE)) {
+        kvStore.transferValueTo(key, channel);
+      }
+      assertArrayEquals(value, Files.readAllBytes(target));
+
+      assertThrows(IOException.class,
+          () -> kvStore.transferValueTo("missing".getBytes(), Channels.newChannel(out)));
+
+      Pipe pipe = Pipe.open();
+      try (Pipe.SinkChannel sink = pipe.sink(); Pipe.SourceChannel source = pipe.source()) {
+        sink.configureBlocking(false);
+        assertThrows(IllegalArgumentException.class, () -> kvStore.transferValueTo(key, sink));
+      }
+    }
+  }
+
+  @Test
+  void testReadValueIntoReusableBuffer(@TempDir Path tempDir) throws IOException {
+    try (KeyValueStore kvStore = initStore(tempDir, 8)) {
+      byte[] key = "key".getBytes();
+      byte[] value = "value spanning blocks".getBytes();
+      kvStore.upsert(key, value);
+
+      assertEquals(value.length, kvStore.valueSize(key));
+      assertEquals(-1, kvStore.valueSize("missing".getBytes()));
+
+      for (ByteBuffer buffer : List.of(ByteBuffer.allocate(64), ByteBuffer.allocateDirect(64))) {
+        buffer.put((byte) 7);
+        assertEquals(value.length, kvStore.readValue(key, buffer));
+        assertEquals(1 + value.length, buffer.position());
+        byte[] read = new byte[value.length];
+        buffer.flip();
+        assertEquals(7, buffer.get());
+        buffer.get(read);
+        assertArrayEquals(value, read);
+        assertEquals(-1, kvStore.readValue("missing".getBytes(), buffer.clear()));
+      }
+
+      ByteBuffer small = ByteBuffer.allocate(value.length - 1);
+      assertThrows(BufferOverflowException.class, () -> kvStore.readValue(key, small));
+      assertEquals(0, small.position());
+    }
+  }
+
+  @Test
+  void testStreamingUpsertOfUnknownLength(@TempDir Path tempDir) throws IOException {
+    try (KeyValueStore kvStore = initStore(tempDir, 100_000)) {
+      byte[] key = "huge".getBytes();
+      byte[] value = new byte[300_000];
+      new Random(42).nextBytes(value);
+
+      kvStore.upsertStream(key, new ByteArrayInputStream(value));
+      assertArrayEquals(value, kvStore.loadValue(key));
+
+      kvStore.upsertChannel(key, Channels.newChannel(new ByteArrayInputStream(new byte[0])));
+      assertArrayEquals(new byte[0], kvStore.loadValue(key));
+
+      Pipe pipe = Pipe.open();
+      try (Pipe.SinkChannel sink = pipe.sink(); Pipe.SourceChannel source = pipe.source()) {
+        source.configureBlocking(false);
+        assertThrows(IllegalArgumentException.class, () -> kvStore.upsertChannel(key, source));
+      }
+      assertArrayEquals(new byte[0], kvStore.loadValue(key));
+    }
+  }
+
+  @Test
+  void testFailedStreamingUpsertFreesWrittenBlocks(@TempDir Path tempDir) throws IOException {
+    try (KeyValueStore kvStore = initStore(tempDir, 100_000)) {
+      byte[] key = "key".getBytes();
+      kvStore.upsert(key, "old".getBytes());
+      InputStream failing = new SequenceInputStream(new ByteArrayInputStream(new byte[200_000]),
+          new InputStream() {
+            @Override
+            public int read() throws IOException {
+              throw new IOException("connection reset");
+            }
+          });
+
+      assertThrows(IOException.class, () -> kvStore.upsertStream(key, failing));
+
+      assertArrayEquals("old".getBytes(), kvStore.loadValue(key));
+      // both files hold only freed bytes after "old", so they are truncated or deleted
+      assertThat(kvStore.defragment(1).reclaimedBytes()).isEqualTo(200_000 - "old".length());
+    }
+  }
+
+  @Test
+  void testHotValueCacheKeepsFrequentValues(@TempDir Path tempDir) throws IOException {
+    KeyValueStoreOptions options = KeyValueStoreOptions.defaults().valueCacheBytes(1000);
+    try (KeyValueStore kvStore = KeyValueStoreFactory.create(tempDir, 256, options)) {
+      byte[] hot = "hot".getBytes();
+      kvStore.upsert(hot, new byte[100]);
+      kvStore.loadValue(hot);
+      kvStore.loadValue(hot);
+      assertEquals(new ValueCacheStats(1, 1, 0, 100), kvStore.metrics().valueCache());
+
+      // a scan of values read once evicts only other values read once
+      for (int i = 0; i < 50; i++) {
+        byte[] key = ("cold" + i).getBytes();
+        kvStore.upsert(key, new byte[100]);
+        kvStore.loadValue(key);
+      }
+      assertThat(kvStore.metrics().valueCache().evictions()).isGreaterThan(0);
+      assertThat(kvStore.metrics().valueCache().sizeBytes()).isLessThanOrEqualTo(1000);
+      long hits = kvStore.metrics().valueCache().hits();
+      kvStore.loadValue(hot);
+      assertEquals(hits + 1, kvStore.metrics().valueCache().hits());
+
+      // cached values are invalidated by writes and returned as copies
+      kvStore.loadValue(hot)[0] = 1;
+      kvStore.upsert(hot, "new".getBytes());
+      assertArrayEquals("new".getBytes(), kvStore.loadValue(hot));
+      kvStore.remove(hot);
+      assertFalse(kvStore.contains(hot));
+      assertThrows(IOException.class, () -> kvStore.loadValue(hot));
+    }
+  }
+
+  @Test
+  void testLsmIndexFlushesCompactsAndSurvivesReopen(@TempDir Path tempDir) throws IOException {
+    KeyValueStoreOptions options = KeyValueStoreOptions.defaults()
+        .indexType(KeyValueStoreOptions.IndexType.LSM_TREE)
+        .memtableMaxEntries(50);
+    int keys = 2000;
+
+    try (KeyValueStore kvStore = KeyValueStoreFactory.create(tempDir, 64, options)) {
+      for (int i = 0; i < keys; i++) {
+        kvStore.upsert(("key" + i).getBytes(), ("value" + i).getBytes());
+      }
+      for (int i = 0; i < keys; i += 2) {
+        kvStore.upsert(("key" + i).getBytes(), ("new" + i).getBytes());
+      }
+      for (int i = 0; i < keys; i += 3) {
+        assertTrue(kvStore.remove(("key" + i).getBytes()));
+      }
+    }
+
+    try (KeyValueStore reopened = KeyValueStoreFactory.create(tempDir, 64, options)) {
+      for (int i = 0; i < keys; i++) {
+        byte[] key = ("key" + i).getBytes();
+        if (i % 3 == 0) {
+          assertFalse(reopened.contains(key));
+        } else {
+          String expected = (i % 2 == 0 ? "new" : "value") + i;
+          assertArrayEquals(expected.getBytes(), reopened.loadValue(key));
+        }
+      }
+      List<byte[]> iterated = new ArrayList<>();
+      reopened.getIndexManager().entries().forEachRemaining(entry -> iterated.add(entry.key()));
+      assertEquals(keys - (keys + 2) / 3, iterated.size());
+
+      LsmIndexManager index = (LsmIndexManager) reopened.getIndexManager();
+      long readsBefore = index.runReads();
+      for (int i = 0; i < 1000; i++) {
+        assertFalse(reopened.contains(("missing" + i).getBytes()));
+      }
+      // Bloom filters answer almost all lookups of missing keys without reading the runs
+      assertThat(index.runReads() - readsBefore).isLessThan(100);
+
+      // the store is still open while the next one recovers, as if the process crashed
+      reopened.upsert("after".getBytes(), "crash".getBytes());
+      reopened.remove("key1".getBytes());
+      try (KeyValueStore recovered = KeyValueStoreFactory.create(tempDir, 64, options)) {
+        assertArrayEquals("crash".getBytes(), recovered.loadValue("after".getBytes()));
+        assertFalse(recovered.contains("key1".getBytes()));
+        assertArrayEquals("value5".getBytes(), recovered.loadValue("key5".getBytes()));
+      }
+    }
+  }
+
+  @Test
+  void testScanAndScanPrefixWithEveryIndexType(@TempDir Path tempDir) throws IOException {
+    for (var indexType : KeyValueStoreOptions.IndexType.values()) {
+      KeyValueStoreOptions options = KeyValueStoreOptions.defaults()
+          .indexType(indexType)
+          .memtableMaxEntries(7);
+      Path storeDir = Files.createDirectory(tempDir.resolve(indexType.name()));
+      try (KeyValueStore kvStore = KeyValueStoreFactory.create(storeDir, 16, options)) {
+        for (int i = 0; i < 40; i++) {
+          kvStore.upsert(String.format("user/%02d", i).getBytes(), ("v" + i).getBytes());
+        }
+        kvStore.upsert("other".getBytes(), "x".getBytes());
+        kvStore.upsert(new byte[]{(byte) 0xFF}, "high".getBytes());
+        kvStore.remove("user/13".getBytes());
+
+        List<String> keys = new ArrayList<>();
+        kvStore.scanPrefix("user/1".getBytes())
+            .forEachRemaining(entry -> keys.add(new String(entry.key())));
+        assertEquals(List.of("user/10", "user/11", "user/12", "user/14", "user/15", "user/16",
+            "user/17", "user/18", "user/19"), keys);
+
+        Iterator<ScanEntry> range = kvStore.scan("user/38".getBytes(), null);
+        assertArrayEquals("v38".getBytes(), range.next().loadValue());
+        try (InputStream stream = range.next().openValueStream()) {
+          assertArrayEquals("v39".getBytes(), stream.readAllBytes());
+        }
+        assertArrayEquals(new byte[]{(byte) 0xFF}, range.next().key());
+        assertFalse(range.hasNext());
+
+        List<String> head = new ArrayList<>();
+        kvStore.scan(null, "user/02".getBytes())
+            .forEachRemaining(entry -> head.add(new String(entry.key())));
+        assertEquals(List.of("other", "user/00", "user/01"), head);
+
+        Iterator<ScanEntry> scanned = kvStore.scan("user/00".getBytes(), "user/02".getBytes());
+        ScanEntry first = scanned.next();
+        ScanEntry second = scanned.next();
+        try (InputStream pinned = kvStore.openValueStream("other".getBytes())) {
+          // the open stream keeps the overwritten blocks, so the scanned ones are read as is
+          kvStore.upsert("user/00".getBytes(), "changed".getBytes());
+          assertArrayEquals("v0".getBytes(), first.loadValue());
+        }
+        // once old blocks are freed, scanned keys are looked up again
+        kvStore.remove("user/01".getBytes());
+        assertThrows(IOException.class, second::loadValue);
+        assertArrayEquals("changed".getBytes(), first.loadValue());
+      }
+    }
+  }
+
+  @Test
+  void testCompressedValuesAreReadBackByEveryReadPath(@TempDir Path tempDir) throws IOException {
+    KeyValueStoreOptions options = KeyValueStoreOptions.defaults()
+        .valueCodec(ValueCodec.deflate());
+    byte[] json = "{\"name\": \"value\", \"tags\": [1, 2, 3]}, ".repeat(100).getBytes();
+    byte[] random = new byte[1000];
+    new Random(17).nextBytes(random);
+    byte[] jsonKey = "json".getBytes();
+    byte[] randomKey = "random".getBytes();
+    byte[] streamKey = "stream".getBytes();
+
+    try (KeyValueStore kvStore = KeyValueStoreFactory.create(tempDir, 256, options)) {
+      kvStore.upsert(jsonKey, json);
+      kvStore.upsert(randomKey, random);
+      kvStore.upsertStream(streamKey, new ByteArrayInputStream(json));
+
+      // compressible values take less space, incompressible ones only grow by the header
+      int jsonStored = kvStore.getIndexManager().getFileBlocksLocations(jsonKey).stream()
+          .mapToInt(FileBlockLocation::size).sum();
+      int randomStored = kvStore.getIndexManager().getFileBlocksLocations(randomKey).stream()
+          .mapToInt(FileBlockLocation::size).sum();
+      assertThat(jsonStored).isLessThan(json.length / 3);
+      assertEquals(random.length + ValueFormat.HEADER_SIZE, randomStored);
+    }
+
+    // the store stays compressed even when reopened without a codec
+    try (KeyValueStore kvStore = KeyValueStoreFactory.create(tempDir, 256)) {
+      for (byte[] key : List.of(jsonKey, randomKey, streamKey)) {
+        byte[] expected = key == randomKey ? random : json;
+        assertArrayEquals(expected, kvStore.loadValue(key));
+        assertEquals(expected.length, kvStore.valueSize(key));
+        try (InputStream in = kvStore.openValueStream(key)) {
+          assertArrayEquals(expected, in.readAllBytes());
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(expected.length);
+        assertEquals(expected.length, kvStore.readValue(key, buffer));
+        assertArrayEquals(expected, buffer.array());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(expected.length, kvStore.transferValueTo(key, Channels.newChannel(out)));
+        assertArrayEquals(expected, out.toByteArray());
+      }
+      assertThat(kvStore.loadValues(List.of(jsonKey, randomKey)))
+          .containsExactly(json, random);
+      kvStore.defragment(1);
+      assertArrayEquals(json, kvStore.loadValue(jsonKey));
+    }
+
+    // uncompressed values are read without their header, but the checksum still covers it
+    try (KeyValueStore kvStore = KeyValueStoreFactory.create(tempDir, 256, options)) {
+      FileBlockLocation first = kvStore.getIndexManager().getFileBlocksLocations(randomKey).get(0);
+      try (FileChannel channel = FileChannel.open(first.file(tempDir).toPath(), WRITE)) {
+        channel.write(ByteBuffer.wrap(new byte[]{(byte) ~random[0]}),
+            first.offset() + ValueFormat.HEADER_SIZE);
+      }
+      assertThrows(IOException.class, () -> kvStore.loadValue(randomKey));
+      assertThrows(IOException.class,
+          () -> kvStore.readValue(randomKey, ByteBuffer.allocate(random.length)));
+    }
+  }
+
+  @Test
+  void testCompressionCannotBeEnabledForExistingStore(@TempDir Path tempDir) throws IOException {
+    try (KeyValueStore kvStore = KeyValueStoreFactory.create(tempDir, 256)) {
+      kvStore.upsert("key".getBytes(), "value".getBytes());
+    }
+    KeyValueStoreOptions options = KeyValueStoreOptions.defaults()
+        .valueCodec(ValueCodec.deflate());
+    assertThrows(IllegalArgumentException.class,
+        () -> KeyValueStoreFactory.create(tempDir, 256, options));
+    try (KeyValueStore kvStore = KeyValueStoreFactory.create(tempDir, 256)) {
+      assertArrayEquals("value".getBytes(), kvStore.loadValue("key".getBytes()));
+    }
+
+    // a custom codec under the deflate id would take over reading deflated values
+    ValueCodec impostor = new ValueCodec() {
+      @Override
+      public byte id() {
+        return 1;
+      }
+
+      @Override
+      public byte[] compress(byte[] value) {
+        return value;
+      }
+
+      @Override
+      public InputStream decompress(InputStream compressed) {
+        return compressed;
+      }
+    };
+    assertThrows(IllegalArgumentException.class,
+        () -> KeyValueStoreOptions.defaults().valueCodec(impostor));
+  }
+
+  @Test
+  void testCorruptedBlocksAreDetectedOnReadAndByScrub(@TempDir Path tempDir) throws IOException {
+    byte[] streamed = new byte[200_000];
+    new Random(18).nextBytes(streamed);
+    byte[] victim = "victim".getBytes();
+    FileBlockLocation corruptedBlock;
+    try (KeyValueStore kvStore = KeyValueStoreFactory.create(tempDir, 1 << 20)) {
+      for (int i = 0; i < 100; i++) {
+        kvStore.upsert(("key" + i).getBytes(), ("value" + i).getBytes());
+      }
+      kvStore.upsert(victim, "to be corrupted".getBytes());
+      // checksums of blocks merged from several streamed chunks are still correct
+      kvStore.upsertStream("streamed".getBytes(), new ByteArrayInputStream(streamed));
+      assertArrayEquals(streamed, kvStore.loadValue("streamed".getBytes()));
+      corruptedBlock = kvStore.getIndexManager().getFileBlocksLocations(victim).get(0);
+    }
+
+    try (FileChannel channel = FileChannel.open(corruptedBlock.file(tempDir).toPath(), WRITE)) {
+      channel.write(ByteBuffer.wrap(new byte[]{'X'}), corruptedBlock.offset() + 3);
+    }
+
+    try (KeyValueStore kvStore = KeyValueStoreFactory.create(tempDir, 1 << 20)) {
+      assertThrows(IOException.class, () -> kvStore.loadValue(victim));
+      try (InputStream in = kvStore.openValueStream(victim)) {
+        assertThrows(IOException.class, in::readAllBytes);
+      }
+      assertThrows(IOException.class, () -> kvStore.loadValues(List.of(victim)));
+      assertArrayEquals("value7".getBytes(), kvStore.loadValue("key7".getBytes()));
+
+      ScrubReport report = kvStore.scrub(4);
+      assertEquals(102, report.checkedValues());
+      assertEquals(0, report.uncheckedValues());
+      assertThat(report.corruptedKeys()).containsExactly(victim);
+    }
+  }
+
+  @Test
+  void testEveryDurabilityModeWithConcurrentWriters(@TempDir Path tempDir) throws Exception {
+    for (KeyValueStoreOptions.Durability durability : KeyValueStoreOptions.Durability.values()) {
+      Path workDir = Files.createDirectory(tempDir.resolve(durability.name()));
+      KeyValueStoreOptions options = KeyValueStoreOptions.defaults()
+          .durability(durability)
+          .groupCommitMaxDelayMillis(2);
+      try (KeyValueStore kvStore = KeyValueStoreFactory.create(workDir, 4096, options)) {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+          int thread = t;
+          futures.add(executor.submit(() -> {
+            for (int i = 0; i < 25; i++) {
+              kvStore.upsert(("key-" + thread + "-" + i).getBytes(), ("value" + i).getBytes());
+            }
+            kvStore.remove(("key-" + thread + "-0").getBytes());
+            return null;
+          }));
+        }
+        for (Future<?> future : futures) {
+          future.get();
+        }
+        executor.shutdown();
+
+        LatencyStats latency = kvStore.writeLatency();
+        assertEquals(104, latency.count());
+        assertThat(latency.p50Nanos()).isLessThanOrEqualTo(latency.p99Nanos());
+        assertThat(latency.p99Nanos()).isLessThanOrEqualTo(latency.maxNanos());
+      }
+
+      try (KeyValueStore kvStore = KeyValueStoreFactory.create(workDir, 4096, options)) {
+        assertFalse(kvStore.contains("key-2-0".getBytes()));
+        assertArrayEquals("value24".getBytes(), kvStore.loadValue("key-3-24".getBytes()));
+      }
+    }
+  }
+
+  @Test
+  void testAsyncStoreKeepsPerKeyOrder(@TempDir Path tempDir) throws Exception {
+    KeyValueStoreOptions options = KeyValueStoreOptions.defaults()
+        .asyncIoThreads(3)
+        .asyncQueueCapacity(4096);
+    AsyncKeyValueStore asyncStore = KeyValueStoreFactory.createAsync(tempDir, 4096, options);
+    byte[] key = "key".getBytes();
+    CompletableFuture<Void> first = asyncStore.upsertAsync(key, "v1".getBytes());
+    CompletableFuture<Void> second = asyncStore.upsertAsync(key, "v2".getBytes());
+    CompletableFuture<byte[]> written = asyncStore.getAsync(key);
+    CompletableFuture<Boolean> removed = asyncStore.removeAsync(key);
+    CompletableFuture<byte[]> missing = asyncStore.getAsync(key);
+    CompletableFuture<Boolean> removedAgain = asyncStore.removeAsync(key);
+    CompletableFuture.allOf(first, second).get();
+    assertArrayEquals("v2".getBytes(), written.get());
+    assertTrue(removed.get());
+    assertEquals(null, missing.get());
+    assertFalse(removedAgain.get());
+
+    List<CompletableFuture<Void>> upserts = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      upserts.add(asyncStore.upsertAsync(("key" + i).getBytes(), ("value" + i).getBytes()));
+    }
+    CompletableFuture.allOf(upserts.toArray(CompletableFuture[]::new)).get();
+    List<CompletableFuture<byte[]>> gets = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      gets.add(asyncStore.getAsync(("key" + i).getBytes()));
+    }
+    for (int i = 0; i < 1000; i++) {
+      assertArrayEquals(("value" + i).getBytes(), gets.get(i).get());
+    }
+
+    // large values are not all merged into one batch
+    byte[] large = new byte[3 << 20];
+    Arrays.fill(large, (byte) 7);
+    List<CompletableFuture<Void>> largeUpserts = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      largeUpserts.add(asyncStore.upsertAsync(key, large));
+    }
+    CompletableFuture.allOf(largeUpserts.toArray(CompletableFuture[]::new)).get();
+    assertArrayEquals(large, asyncStore.getAsync(key).get());
+
+    asyncStore.close();
+    assertThatThrownBy(() -> asyncStore.getAsync(key).get())
+        .hasCauseInstanceOf(IllegalStateException.class);
+    try (KeyValueStore kvStore = KeyValueStoreFactory.create(tempDir, 4096)) {
+      assertArrayEquals("value999".getBytes(), kvStore.loadValue("key999".getBytes()));
+    }
+  }
+
+  @Test
+  void testShardedStore(@TempDir Path tempDir) throws IOException {
+    List<Path> workDirs = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      workDirs.add(Files.createDirectory(tempDir.resolve("shard" + i)));
+    }
+    KeyValueStoreOptions options = KeyValueStoreOptions.defaults()
+        .indexType(KeyValueStoreOptions.IndexType.SORTED_IN_MEMORY);
+    try (KeyValueStore kvStore = KeyValueStoreFactory.createSharded(workDirs, 1024, options)) {
+      for (int i = 0; i < 300; i++) {
+        kvStore.upsert(String.format("key%03d", i).getBytes(), ("value" + i).getBytes());
+      }
+      kvStore.write(new WriteBatch()
+          .put("key000".getBytes(), "changed".getBytes())
+          .delete("key001".getBytes())
+          .delete("key002".getBytes()));
+      assertTrue(kvStore.remove("key003".getBytes()));
+      assertFalse(kvStore.contains("key001".getBytes()));
+      assertEquals(302, kvStore.writeLatency().count());
+
+      List<byte[]> values = kvStore.loadValues(
+          List.of("key000".getBytes(), "key001".getBytes(), "key299".getBytes()));
+      assertArrayEquals("changed".getBytes(), values.get(0));
+      assertEquals(null, values.get(1));
+      assertArrayEquals("value299".getBytes(), values.get(2));
+
+      Iterator<ScanEntry> scan = kvStore.scanPrefix("key1".getBytes());
+      for (int i = 100; i < 200; i++) {
+        assertArrayEquals(String.format("key%03d", i).getBytes(), scan.next().key());
+      }
+      assertFalse(scan.hasNext());
+
+      IndexManager index = kvStore.getIndexManager();
+      assertFalse(index.getFileBlocksLocations("key150".getBytes()).isEmpty());
+      assertEquals(null, index.getFileBlocksLocations("key001".getBytes()));
+      Iterator<IndexEntry> range = index.range("key10".getBytes(), "key12".getBytes());
+      for (int i = 100; i < 120; i++) {
+        assertArrayEquals(String.format("key%03d", i).getBytes(), range.next().key());
+      }
+      assertFalse(range.hasNext());
+    }
+    for (Path workDir : workDirs) {
+      try (Stream<Path> files = Files.list(workDir)) {
+        assertThat(files.count()).isGreaterThan(1);
+      }
+    }
+
+    try (KeyValueStore kvStore = KeyValueStoreFactory.createSharded(workDirs, 1024, options)) {
+      assertArrayEquals("changed".getBytes(), kvStore.loadValue("key000".getBytes()));
+      assertFalse(kvStore.contains("key003".getBytes()));
+      assertArrayEquals("value150".getBytes(), kvStore.loadValue("key150".getBytes()));
+      assertEquals(297, kvStore.scrub(2).checkedValues());
+    }
+    assertThrows(IllegalArgumentException.class, () -> KeyValueStoreFactory.createSharded(
+        List.of(workDirs.get(1), workDirs.get(0), workDirs.get(2)), 1024, options));
+    assertThrows(IllegalArgumentException.class, () -> KeyValueStoreFactory.createSharded(
+        workDirs.subList(0, 2), 1024, options));
+
+    // a standalone store is not split into shards
+    Path standalone = Files.createDirectory(tempDir.resolve("standalone"));
+    KeyValueStoreFactory.create(standalone, 1024, options).close();
+    assertThatThrownBy(() -> KeyValueStoreFactory.createSharded(List.of(standalone), 1024, options))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessageContaining(standalone.toString());
+    // alongside fresh directories, which alone would make a valid new sharded store
+    List<Path> fresh = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      fresh.add(Files.createDirectory(tempDir.resolve("fresh" + i)));
+    }
+    fresh.add(standalone);
+    assertThatThrownBy(() -> KeyValueStoreFactory.createSharded(fresh, 1024, options))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessageContaining(standalone.toString());
+    // the rejected directory is left a working standalone store
+    try (KeyValueStore kvStore = KeyValueStoreFactory.create(standalone, 1024, options)) {
+      assertFalse(kvStore.contains("key".getBytes()));
+    }
+  }
+
+  @Test
+  void testSnapshotKeepsReadingOverwrittenValues(@TempDir Path tempDir) throws IOException {
+    try (KeyValueStore kvStore = initStore(tempDir, 64)) {
+      for (int i = 0; i < 10; i++) {
+        kvStore.upsert(("key" + i).getBytes(), ("old value " + i).getBytes());
+      }
+      KeyValueStore snapshot = kvStore.snapshot();
+      for (int i = 0; i < 10; i += 2) {
+        kvStore.upsert(("key" + i).getBytes(), ("new value " + i).getBytes());
+      }
+      assertTrue(kvStore.remove("key1".getBytes()));
+      // without the snapshot these would reuse the blocks of the old values
+      for (int i = 0; i < 10; i++) {
+        kvStore.upsert(("other" + i).getBytes(), ("filler value " + i).getBytes());
+      }
+
+      for (int i = 0; i < 10; i++) {
+        byte[] key = ("key" + i).getBytes();
+        assertArrayEquals(("old value " + i).getBytes(), snapshot.loadValue(key));
+      }
+      assertFalse(snapshot.contains("other0".getBytes()));
+      assertEquals(11, snapshot.valueSize("key1".getBytes()));
+      Iterator<ScanEntry> scan = snapshot.scanPrefix("key".getBytes());
+      for (int i = 0; i < 10; i++) {
+        assertArrayEquals(("old value " + i).getBytes(), scan.next().loadValue());
+      }
+      assertFalse(scan.hasNext());
+      assertThrows(UnsupportedOperationException.class,
+          () -> snapshot.upsert("key0".getBytes(), "value".getBytes()));
+      assertEquals(10, snapshot.scrub(2).checkedValues());
+      IndexManager index = snapshot.getIndexManager();
+      assertEquals(null, index.getFileBlocksLocations("other0".getBytes()));
+      assertFalse(index.getFileBlocksLocations("key1".getBytes()).isEmpty());
+      Iterator<IndexEntry> entries = index.entries();
+      for (int i = 0; i < 10; i++) {
+        assertArrayEquals(("key" + i).getBytes(), entries.next().key());
+      }
+      assertFalse(entries.hasNext());
+      assertThrows(UnsupportedOperationException.class,
+          () -> index.remove("key0".getBytes()));
+
+      assertArrayEquals("new value 0".getBytes(), kvStore.loadValue("key0".getBytes()));
+      assertFalse(kvStore.contains("key1".getBytes()));
+      KeyValueStore nested = snapshot.snapshot();
+      snapshot.close();
+      assertThrows(IllegalStateException.class, () -> snapshot.loadValue("key0".getBytes()));
+      // the nested snapshot still sees the store as the first one did
+      kvStore.upsert("key3".getBytes(), "new value 3".getBytes());
+      assertArrayEquals("old value 1".getBytes(), nested.loadValue("key1".getBytes()));
+      assertArrayEquals("old value 3".getBytes(), nested.loadValue("key3".getBytes()));
+      nested.close();
+      kvStore.upsert("key1".getBytes(), "value".getBytes());
+      assertArrayEquals("value".getBytes(), kvStore.loadValue("key1".getBytes()));
+    }
+  }
+
+  @Test
+  void testExpiredKeysDisappearAndAreReaped(@TempDir Path tempDir) throws Exception {
+    byte[] session = "session".getBytes();
+    byte[] renewed = "renewed".getBytes();
+    byte[] longLived = "long-lived".getBytes();
+    try (KeyValueStore kvStore = initStore(tempDir, 64)) {
+      kvStore.upsert(session, "data".getBytes(), Duration.ofMillis(300));
+      kvStore.upsert(renewed, "data".getBytes(), Duration.ofMillis(300));
+      kvStore.upsert(renewed, "forever".getBytes());
+      kvStore.upsert(longLived, "data".getBytes(), Duration.ofHours(1));
+      assertArrayEquals("data".getBytes(), kvStore.loadValue(session));
+      assertThrows(IllegalArgumentException.class,
+          () -> kvStore.upsert(session, "data".getBytes(), Duration.ZERO));
+
+      Thread.sleep(400);
+      assertFalse(kvStore.contains(session));
+      assertEquals(-1, kvStore.valueSize(session));
+      assertThrows(IOException.class, () -> kvStore.loadValue(session));
+      Iterator<ScanEntry> scan = kvStore.scan(null, null);
+      List<String> keys = new ArrayList<>();
+      scan.forEachRemaining(entry -> keys.add(new String(entry.key())));
+      assertThat(keys).containsExactlyInAnyOrder("renewed", "long-lived");
+
+      long deadline = System.currentTimeMillis() + 5000;
+      while (kvStore.getIndexManager().getFileBlocksLocations(session) != null) {
+        assertThat(System.currentTimeMillis()).isLessThan(deadline);
+        Thread.sleep(20);
+      }
+      assertArrayEquals("forever".getBytes(), kvStore.loadValue(renewed));
+    }
+
+    try (KeyValueStore kvStore = initStore(tempDir, 64)) {
+      kvStore.upsert(session, "data".getBytes(), Duration.ofMillis(100));
+    }
+    Thread.sleep(200);
+    try (KeyValueStore kvStore = initStore(tempDir, 64)) {
+      assertFalse(kvStore.contains(session));
+      assertFalse(kvStore.remove(session));
+      assertArrayEquals("data".getBytes(), kvStore.loadValue(longLived));
+      assertArrayEquals("forever".getBytes(), kvStore.loadValue(renewed));
+      kvStore.upsert(session, "data".getBytes(), Duration.ofMillis(100));
+    }
+
+    // a power loss can leave a zero-filled tail in the expiry log
+    Path expiryLog = tempDir.resolve(ExpiryTable.LOG_FILE_NAME);
+    try (FileChannel channel = FileChannel.open(expiryLog, WRITE)) {
+      channel.write(ByteBuffer.allocate(64), channel.size());
+    }
+    Thread.sleep(200);
+    try (KeyValueStore kvStore = initStore(tempDir, 64)) {
+      assertFalse(kvStore.contains(session));
+      assertArrayEquals("data".getBytes(), kvStore.loadValue(longLived));
+    }
+  }
+
+  @Test
+  void testTimingWheelFiresTimersAtTheirTick() {
+    long tick = 10;
+    TimingWheel wheel = new TimingWheel(tick, 0);
+    // deadlines in every level of the wheel and beyond it
+    long[] deadlines = {5, 10, 640, 655, 41_000, 2_621_450, 167_772_170, 200_000_000};
+    for (long deadline : deadlines) {
+      wheel.add(new TimingWheel.Timer(Long.toString(deadline).getBytes(), deadline));
+    }
+    List<Long> fired = new ArrayList<>();
+    for (long now = tick; fired.size() < deadlines.length; now += tick) {
+      for (TimingWheel.Timer timer : wheel.advance(now)) {
+        assertThat(timer.deadlineMillis()).isLessThanOrEqualTo(now).isGreaterThan(now - tick);
+        fired.add(timer.deadlineMillis());
+      }
+    }
+    assertThat(fired).containsExactly(5L, 10L, 640L, 655L, 41_000L, 2_621_450L, 167_772_170L,
+        200_000_000L);
+    wheel.add(new TimingWheel.Timer("late".getBytes(), 1));
+    assertEquals(1, wheel.advance(200_000_000).size());
+  }
+
+  @Test
+  void testMetricsFollowOperationsAndAreExportedToJmx(@TempDir Path tempDir) throws Exception {
+    String name = tempDir.toString();
+    ObjectName objectName = new ObjectName(
+        "org.csc.java.spring2023:type=KeyValueStore,name=" + ObjectName.quote(name));
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    KeyValueStoreOptions options = KeyValueStoreOptions.defaults().jmxName(name);
+    try (KeyValueStore kvStore = KeyValueStoreFactory.create(tempDir, 16, options)) {
+      kvStore.upsert("short".getBytes(), "12345678".getBytes());
+      kvStore.upsert("long".getBytes(), new byte[40]);
+      assertEquals(2L, kvStore.metrics().indexEntries());
+
+      assertTrue(kvStore.remove("short".getBytes()));
+      assertFalse(kvStore.remove("short".getBytes()));
+      kvStore.write(new WriteBatch().put("batched".getBytes(), "87654321".getBytes()));
+      kvStore.upsert("other".getBytes(), "abc".getBytes());
+      assertArrayEquals(new byte[40], kvStore.loadValue("long".getBytes()));
+      assertTrue(kvStore.contains("batched".getBytes()));
+
+      StoreMetrics metrics = kvStore.metrics();
+      assertEquals(1, metrics.containsLatency().count());
+      assertEquals(1, metrics.loadLatency().count());
+      assertEquals(3, metrics.upsertLatency().count());
+      assertEquals(2, metrics.removeLatency().count());
+      assertEquals(8 + 40 + 8 + 3, metrics.bytesWritten());
+      assertEquals(40, metrics.bytesRead());
+      assertThat(metrics.filesCreated()).isGreaterThanOrEqualTo(3);
+      assertEquals(3, metrics.indexEntries());
+      assertThat(metrics.fragmentation()).isGreaterThan(0);
+      // a threshold nothing exceeds only measures fragmentation by walking the index
+      assertEquals(kvStore.defragment(Integer.MAX_VALUE).fragmentationBefore(),
+          metrics.fragmentation(), 1e-9);
+
+      assertEquals(3L, server.getAttribute(objectName, "IndexEntries"));
+      assertEquals(metrics.bytesWritten(), server.getAttribute(objectName, "BytesWritten"));
+      assertThatThrownBy(() -> KeyValueStoreFactory.create(
+          Files.createDirectory(tempDir.resolve("other")), 16, options))
+          .isInstanceOf(IllegalArgumentException.class);
+    }
+    assertFalse(server.isRegistered(objectName));
+  }
+
   @Test
   void storeCannotBeUsedAfterBeingClosed(@TempDir Path tempDir) throws IOException {
     KeyValueStore kvStore = initStore(tempDir, 1);